@@ -0,0 +1,73 @@
+package com.github.emi_silva.debo;
+
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What every request pays before its own work: checking its session token, opaque or signed,
+ * and making new tokens at login.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthBenchmark {
+
+    /**
+     * A signed token and the keys that check it
+     */
+    @State(Scope.Benchmark)
+    public static class Signed {
+	SignedTokens tokens;
+	String token;
+
+	@Setup
+	public void setUp() {
+	    byte[] key = new byte[32];
+	    new SecureRandom().nextBytes(key);
+	    tokens = new SignedTokens(Base64.getEncoder().encodeToString(key), 86400);
+	    token = tokens.issue(1, Instant.now());
+	}
+    }
+
+    /**
+     * The random source new opaque tokens are drawn from
+     */
+    @State(Scope.Benchmark)
+    public static class Random {
+	SecureRandom random;
+
+	@Setup
+	public void setUp() {
+	    random = new SecureRandom();
+	}
+    }
+
+    @Benchmark
+    public int authenticate(Ledger ledger) throws DeboException {
+	return ledger.logic.authenticate(ledger.authHeader);
+    }
+
+    @Benchmark
+    public int verifySigned(Signed signed) throws DeboException {
+	return signed.tokens.verify(signed.token, Instant.now());
+    }
+
+    @Benchmark
+    public String newRandomString(Random random) {
+	return Logic.newRandomString(random.random, 64);
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.emi_silva.debo;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Balances of a single account and of all of them, now and as of a date. getBalancesPerAccount
+ * computes every balance the way GET /balances did before the balances table: each account is
+ * looked up and its transactions are read and summed in Java. Besides the time, each run reports
+ * the statements it ran as queries, and its operations as calls. Sweep the account count with
+ * -p accounts=10,100,1000 to see how both grow with it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BalancesBenchmark {
+
+    private static final String AS_OF = "2022-06-30";
+
+    /**
+     * The statements run by the operations of an iteration, read from the model's query log
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Queries {
+	public long queries;
+	public long calls;
+
+	@Setup(Level.Iteration)
+	public void reset() {
+	    queries = 0;
+	    calls = 0;
+	}
+
+	<T> T count(Ledger ledger, Operation<T> operation) throws DeboException {
+	    long before = ledger.model.queryLog.statements();
+	    T result = operation.run();
+	    queries += ledger.model.queryLog.statements() - before;
+	    calls++;
+	    return result;
+	}
+    }
+
+    interface Operation<T> {
+	T run() throws DeboException;
+    }
+
+    @Benchmark
+    public HashMap<String, BigDecimal> getBalance(Ledger ledger, Queries q)
+	throws DeboException {
+	return q.count(ledger, () -> ledger.logic.getBalance(ledger.names[0], ledger.userId,
+							      null, null));
+    }
+
+    @Benchmark
+    public HashMap<String, BigDecimal> getBalanceAsOf(Ledger ledger, Queries q)
+	throws DeboException {
+	return q.count(ledger, () -> ledger.logic.getBalance(ledger.names[0], ledger.userId,
+							      AS_OF, null));
+    }
+
+    @Benchmark
+    public Object getBalances(Ledger ledger, Queries q) throws DeboException {
+	return q.count(ledger, () -> ledger.logic.getBalances(ledger.userId, null, null));
+    }
+
+    @Benchmark
+    public Object getBalancesAsOf(Ledger ledger, Queries q) throws DeboException {
+	return q.count(ledger, () -> ledger.logic.getBalances(ledger.userId, AS_OF, null));
+    }
+
+    @Benchmark
+    public Object getBalancesPerAccount(Ledger ledger, Queries q) throws DeboException {
+	return q.count(ledger, () -> balancesPerAccount(ledger));
+    }
+
+    private static HashMap<String, HashMap<String, BigDecimal>> balancesPerAccount(Ledger ledger)
+	throws DeboException {
+	HashMap<String, HashMap<String, BigDecimal>> balances =
+	    new HashMap<String, HashMap<String, BigDecimal>>();
+	for(Model.Account a : ledger.model.getAccounts(new Model.Account(), ledger.userId)) {
+	    Model.Account account = ledger.model.getAccount(a.name, ledger.userId);
+	    boolean debit = ledger.logic.getNB(account).equals("debit");
+	    HashMap<String, BigDecimal> balance = new HashMap<String, BigDecimal>();
+	    Model.TxFilter filter = new Model.TxFilter();
+	    filter.account = account.name;
+	    try {
+		ledger.model.streamTransactions(filter, ledger.userId, tx -> {
+			BigDecimal amount = tx.debit.equals(account.name) == debit ? tx.amount
+			    : tx.amount.negate();
+			balance.merge(tx.currency, amount, BigDecimal::add);
+		    });
+	    }
+	    catch(IOException e) {
+		throw new DeboException(500, e.getMessage());
+	    }
+	    balances.put(account.name, balance);
+	}
+	return balances;
+    }
+}
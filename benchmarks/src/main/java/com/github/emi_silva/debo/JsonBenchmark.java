@@ -0,0 +1,74 @@
+package com.github.emi_silva.debo;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.rapidoid.data.JSON;
+
+/**
+ * Serializing transactions the way responses do: a whole list at once, as pages are, and one by
+ * one, as exports are. Needs no database.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class JsonBenchmark {
+
+    /**
+     * Transactions like those of a Ledger of the same size, made in memory
+     */
+    @State(Scope.Benchmark)
+    public static class Transactions {
+	@Param({"1000", "10000", "100000", "1000000"})
+	public int transactions;
+
+	ArrayList<Model.Transaction> list;
+
+	@Setup
+	public void setUp() {
+	    Random random = new Random(transactions);
+	    LocalDate start = LocalDate.of(2020, 1, 1);
+	    list = new ArrayList<Model.Transaction>(transactions);
+	    for(int i = 0; i < transactions; i++) {
+		Model.Transaction t = new Model.Transaction();
+		t.id = i + 1;
+		t.date = start.plusDays(random.nextInt(2000)) + "T00:00:00Z";
+		t.amount = BigDecimal.valueOf(1 + random.nextInt(100000), 2);
+		t.currency = Ledger.CURRENCY;
+		// among as many accounts as a Ledger has by default
+		t.debit = "benchmark " + random.nextInt(100);
+		t.credit = Ledger.EQUITY;
+		t.comment = Ledger.WORDS[random.nextInt(Ledger.WORDS.length)];
+		list.add(t);
+	    }
+	}
+    }
+
+    @Benchmark
+    public byte[] serializeList(Transactions state) {
+	return JSON.stringifyToBytes(state.list);
+    }
+
+    @Benchmark
+    public void serializeEach(Transactions state, Blackhole bh) {
+	for(Model.Transaction t : state.list) {
+	    bh.consume(JSON.stringifyToBytes(t));
+	}
+    }
+}
@@ -0,0 +1,124 @@
+package com.github.emi_silva.debo;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Random;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A user whose ledger holds a given number of transactions among a given number of asset
+ * accounts and an equity account. Each shape belongs to its own user and is only posted the first
+ * time, so later runs against the same database start right away. The transactions are drawn from a
+ * generator seeded with their number, so every database holds the same ledgers.
+ */
+@State(Scope.Benchmark)
+public class Ledger {
+
+    static final String CURRENCY = "BNC";
+    static final String EQUITY = "benchmark equity";
+    static final String[] WORDS = {"rent", "groceries", "salary", "coffee", "fuel", "books",
+				   "dinner", "insurance", "gift", "taxes"};
+    // posted last, so its presence means the ledger is complete
+    private static final String COMPLETE = "benchmark complete";
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int transactions;
+
+    @Param({"100"})
+    public int accounts;
+
+    Model model;
+    Logic logic;
+    int userId;
+    String authHeader;
+    String[] names;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+	model = new Model();
+	logic = new Logic(model);
+	String email = "benchmark-" + transactions + "x" + accounts + "@debo";
+	String token = model.newToken(email, logic.newRandomString(64),
+				      Instant.now().plusSeconds(86400)).get("session_token");
+	userId = model.authenticate(token);
+	authHeader = model.readProps("/auth.properties").getProperty("authKeyword") + " " + token;
+	names = new String[accounts];
+	for(int i = 0; i < accounts; i++) {
+	    names[i] = "benchmark " + i;
+	}
+	ArrayList<String> existing = new ArrayList<String>();
+	for(Model.Account a : model.getAccounts(new Model.Account(), userId)) {
+	    existing.add(a.name);
+	}
+	if(existing.contains(COMPLETE)) {
+	    return;
+	}
+	if(!existing.isEmpty()) {
+	    throw new IllegalStateException("The ledger of " + email + " was left half posted; "
+					    + "delete that user and run again.");
+	}
+	post();
+    }
+
+    private void post() throws Exception {
+	Model.Currency currency = new Model.Currency();
+	currency.code = CURRENCY;
+	currency.name = "Benchmark coin";
+	currency.type = "fiat";
+	logic.postCurrencies(currency, userId);
+	account(EQUITY, "equity");
+	for(String name : names) {
+	    account(name, "asset");
+	}
+	int batchSize = Integer.valueOf(model.readProps("/db.properties")
+					.getProperty("txBatchMaxSize"));
+	Random random = new Random(transactions);
+	LocalDate start = LocalDate.of(2020, 1, 1);
+	for(int posted = 0; posted < transactions; posted += batchSize) {
+	    Model.Transaction[] batch = new Model.Transaction[Math.min(batchSize,
+								       transactions - posted)];
+	    for(int i = 0; i < batch.length; i++) {
+		batch[i] = transaction(random, start);
+	    }
+	    logic.postTransactionsBatch(batch, userId);
+	}
+	account(COMPLETE, "equity");
+    }
+
+    private void account(String name, String type) throws DeboException {
+	Model.Account a = new Model.Account();
+	a.name = name;
+	a.type = type;
+	logic.postAccounts(a, userId);
+    }
+
+    private Model.Transaction transaction(Random random, LocalDate start) {
+	Model.Transaction t = new Model.Transaction();
+	t.date = start.plusDays(random.nextInt(2000)).toString();
+	t.amount = BigDecimal.valueOf(1 + random.nextInt(100000), 2);
+	t.currency = CURRENCY;
+	int debit = random.nextInt(accounts);
+	t.debit = names[debit];
+	// a quarter of the money comes from equity, the rest moves between assets
+	if(random.nextInt(4) == 0) {
+	    t.credit = EQUITY;
+	}
+	else {
+	    t.credit = names[(debit + 1 + random.nextInt(accounts - 1)) % accounts];
+	}
+	t.comment = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)];
+	return t;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+	model.close();
+    }
+}
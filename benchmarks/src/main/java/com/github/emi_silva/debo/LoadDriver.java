@@ -0,0 +1,413 @@
+package com.github.emi_silva.debo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPatch;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Replays a mix of API requests at fixed arrival rates and reports throughput and latency per
+ * route. Requests are sent on schedule whether or not earlier ones were answered, and their
+ * latency counts from when they were due, so a stalled server shows up as latency instead of
+ * as fewer requests (coordinated omission). Requests still unanswered timeout seconds after
+ * the last one was sent count as errors that took until then. Each rate runs for a warmup,
+ * which isn't measured, and then for the duration; raising the rates until the errors or the
+ * p99 take off finds the saturation point.
+ *
+ * Sessions are the users made by LedgerTool with the same seed and spec arguments, which the
+ * driver passes on to LedgerGenerator. Without a url, it boots the Controller in this JVM on
+ * the given port; to load a real deployment, give its url instead and run the driver elsewhere.
+ * Posted transactions are the ones patched and deleted later; when a session has none yet, a
+ * patch or delete is sent as a post instead.
+ *
+ * Usage: LoadDriver [rates=50,100,200] [duration=30] [warmup=5] [url=http://host:port]
+ *   [port=8888] [connections=512] [timeout=30]
+ *   [mix=balances:30,transactions:40,post:15,patch:10,delete:5] [seed=1] [users=10] ...
+ */
+public class LoadDriver {
+
+    private static final String[] OPS = {"balances", "transactions", "post", "patch", "delete"};
+    private static final String[] ROUTES = {"GET /balances", "GET /transactions",
+					    "POST /transactions", "PATCH /transaction/{id}",
+					    "DELETE /transaction/{id}"};
+    private static final int BALANCES = 0;
+    private static final int TRANSACTIONS = 1;
+    private static final int POST = 2;
+    private static final int PATCH = 3;
+    private static final int DELETE = 4;
+
+    /**
+     * A user the driver sends requests as
+     */
+    private static class Session {
+	String auth;
+	String currency;
+	ConcurrentLinkedDeque<Integer> posted = new ConcurrentLinkedDeque<Integer>();
+    }
+
+    /**
+     * What one route got during a measured run
+     */
+    private static class Route {
+	final Metrics.Histogram latency = new Metrics.Histogram();
+	final LongAdder sent = new LongAdder();
+	final LongAdder ok = new LongAdder();
+	final LongAdder errors = new LongAdder();
+    }
+
+    /**
+     * A request that was sent and isn't answered yet
+     */
+    private static class Pending {
+	final Route route;
+	final long due;
+	final AtomicBoolean finished = new AtomicBoolean();
+	Pending(Route route, long due) {
+	    this.route = route;
+	    this.due = due;
+	}
+    }
+
+    private final String base;
+    private final int[] weights;
+    private final Session[] sessions;
+    private final String[] assets;
+    private final String[] expenses;
+    private final int fromYear;
+    private final int years;
+    private final CloseableHttpAsyncClient client;
+    private final Set<Pending> outstanding;
+    private final Random random;
+
+    LoadDriver(String base, int[] weights, LedgerGenerator.Spec spec, int connections,
+	       int timeoutSeconds, String authKeyword) {
+	this.base = base;
+	this.weights = weights;
+	LedgerGenerator generator = new LedgerGenerator(spec, 1, 1, 1, 1);
+	sessions = new Session[spec.users];
+	for(int u = 0; u < sessions.length; u++) {
+	    sessions[u] = new Session();
+	    sessions[u].auth = authKeyword + " " + LedgerGenerator.token(spec.seed, u);
+	    sessions[u].currency = generator.currency(u);
+	}
+	assets = generator.accounts(LedgerGenerator.ASSET);
+	expenses = generator.accounts(LedgerGenerator.EXPENSE);
+	fromYear = spec.from.getYear();
+	years = Math.max(1, spec.to.getYear() - fromYear);
+	int timeout = timeoutSeconds * 1000;
+	client = HttpAsyncClients.custom()
+	    .setMaxConnTotal(connections)
+	    .setMaxConnPerRoute(connections)
+	    .setDefaultRequestConfig(RequestConfig.custom().setConnectTimeout(timeout)
+				     .setSocketTimeout(timeout)
+				     .setConnectionRequestTimeout(timeout).build())
+	    .build();
+	client.start();
+	outstanding = ConcurrentHashMap.newKeySet();
+	random = new Random(spec.seed);
+    }
+
+    /**
+     * Sends requests at a rate for warmup plus duration seconds, and measures those of the
+     * duration
+     */
+    Route[] run(double rate, int warmup, int duration, int timeout) throws InterruptedException {
+	Route[] measured = new Route[OPS.length];
+	Route[] discarded = new Route[OPS.length];
+	for(int i = 0; i < OPS.length; i++) {
+	    measured[i] = new Route();
+	    discarded[i] = new Route();
+	}
+	long start = System.nanoTime() + 10000000;
+	long measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+	long end = measureFrom + TimeUnit.SECONDS.toNanos(duration);
+	long maxLag = 0;
+	for(long i = 0; ; i++) {
+	    long due = start + (long) (i * 1e9 / rate);
+	    if(due >= end) {
+		break;
+	    }
+	    long now;
+	    while((now = System.nanoTime()) < due) {
+		LockSupport.parkNanos(due - now);
+	    }
+	    if(due >= measureFrom) {
+		maxLag = Math.max(maxLag, now - due);
+	    }
+	    send(pick(), sessions[random.nextInt(sessions.length)], due,
+		 due >= measureFrom ? measured : discarded);
+	}
+	long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+	while(!outstanding.isEmpty() && System.nanoTime() < deadline) {
+	    Thread.sleep(10);
+	}
+	// the slowest requests are the unanswered ones, so they count as errors that took until
+	// the deadline instead of being left out of the percentiles
+	int unanswered = 0;
+	for(Pending pending : outstanding) {
+	    if(finish(pending, deadline, false)) {
+		unanswered++;
+	    }
+	}
+	System.out.printf("rate %.0f/s, %d s: sent up to %.3f ms late, %d unanswered%n", rate,
+			  duration, maxLag / 1e6, unanswered);
+	return measured;
+    }
+
+    private int pick() {
+	int r = random.nextInt(weights[weights.length - 1]);
+	int op = 0;
+	while(r >= weights[op]) {
+	    op++;
+	}
+	return op;
+    }
+
+    private void send(int op, Session session, long due, Route[] routes) {
+	Integer id = null;
+	if(op == PATCH) {
+	    id = session.posted.peekLast();
+	}
+	else if(op == DELETE) {
+	    id = session.posted.pollFirst();
+	}
+	if((op == PATCH || op == DELETE) && id == null) {
+	    op = POST;
+	}
+	HttpRequestBase request;
+	switch(op) {
+	case BALANCES:
+	    request = new HttpGet(base + "/balances");
+	    break;
+	case TRANSACTIONS:
+	    int year = fromYear + random.nextInt(years);
+	    request = new HttpGet(base + "/transactions?account="
+				  + encode(assets[random.nextInt(assets.length)])
+				  + "&minDate=" + year + "-01-01&maxDate=" + year + "-12-31&limit=50");
+	    break;
+	case POST:
+	    HttpPost post = new HttpPost(base + "/transactions");
+	    JSONObject t = new JSONObject();
+	    t.put("amount", (1 + random.nextInt(20000)) / 100.0);
+	    t.put("currency", session.currency);
+	    t.put("debit", expenses[random.nextInt(expenses.length)]);
+	    t.put("credit", assets[random.nextInt(assets.length)]);
+	    t.put("comment", "load test");
+	    post.setEntity(new StringEntity(t.toString(), ContentType.APPLICATION_JSON));
+	    request = post;
+	    break;
+	case PATCH:
+	    HttpPatch patch = new HttpPatch(base + "/transaction/" + id);
+	    JSONObject comment = new JSONObject();
+	    comment.put("comment", "load test, patched");
+	    patch.setEntity(new StringEntity(comment.toString(), ContentType.APPLICATION_JSON));
+	    request = patch;
+	    break;
+	default:
+	    request = new HttpDelete(base + "/transaction/" + id);
+	}
+	request.setHeader("Authorization", session.auth);
+	Route route = routes[op];
+	route.sent.increment();
+	Pending pending = new Pending(route, due);
+	outstanding.add(pending);
+	boolean posting = op == POST;
+	client.execute(request, new FutureCallback<HttpResponse>() {
+		public void completed(HttpResponse response) {
+		    int status = response.getStatusLine().getStatusCode();
+		    String body = null;
+		    try {
+			body = response.getEntity() == null ? null
+			    : EntityUtils.toString(response.getEntity());
+		    }
+		    catch(IOException e) {
+			// the status is enough
+		    }
+		    finish(pending, System.nanoTime(), status >= 200 && status < 300);
+		    if(posting && status == 201 && body != null) {
+			try {
+			    session.posted.addLast(new JSONObject(body).getInt("id"));
+			}
+			catch(JSONException e) {
+			    // nothing to patch or delete later
+			}
+		    }
+		}
+		public void failed(Exception e) {
+		    finish(pending, System.nanoTime(), false);
+		}
+		public void cancelled() {
+		    failed(null);
+		}
+	    });
+    }
+
+    /**
+     * Records a request's outcome unless it was already recorded, and tells whether it was
+     */
+    private boolean finish(Pending pending, long at, boolean ok) {
+	if(!pending.finished.compareAndSet(false, true)) {
+	    return false;
+	}
+	pending.route.latency.record(at - pending.due);
+	(ok ? pending.route.ok : pending.route.errors).increment();
+	outstanding.remove(pending);
+	return true;
+    }
+
+    private static String encode(String value) {
+	try {
+	    return URLEncoder.encode(value, "UTF-8");
+	}
+	catch(IOException e) {
+	    throw new IllegalStateException(e);
+	}
+    }
+
+    /**
+     * Prints the throughput and latency percentiles of each route and of all of them
+     */
+    static void report(Route[] routes, int duration) {
+	System.out.printf("%-26s %8s %8s %8s %9s %9s %9s %9s %9s %9s%n", "route", "sent", "ok",
+			  "errors", "ok/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+	long[] all = new long[Metrics.Histogram.BUCKETS];
+	long sent = 0;
+	long ok = 0;
+	long errors = 0;
+	for(int i = 0; i < routes.length; i++) {
+	    long[] counts = routes[i].latency.snapshot();
+	    for(int b = 0; b < counts.length; b++) {
+		all[b] += counts[b];
+	    }
+	    sent += routes[i].sent.sum();
+	    ok += routes[i].ok.sum();
+	    errors += routes[i].errors.sum();
+	    line(ROUTES[i], routes[i].sent.sum(), routes[i].ok.sum(), routes[i].errors.sum(),
+		 counts, duration);
+	}
+	line("all", sent, ok, errors, all, duration);
+	System.out.println();
+    }
+
+    private static void line(String route, long sent, long ok, long errors, long[] counts,
+			     int duration) {
+	System.out.printf("%-26s %8d %8d %8d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n", route, sent,
+			  ok, errors, ok / (double) duration, millis(counts, 0.5),
+			  millis(counts, 0.9), millis(counts, 0.99), millis(counts, 0.999),
+			  millis(counts, 1));
+    }
+
+    private static double millis(long[] counts, double q) {
+	return Metrics.Histogram.quantile(counts, q) / 1e6;
+    }
+
+    /**
+     * Turns op:weight pairs into cumulative weights in OPS order
+     */
+    static int[] weights(String mix) {
+	int[] weights = new int[OPS.length];
+	for(String pair : mix.split(",")) {
+	    String[] kv = pair.split(":");
+	    int op = Arrays.asList(OPS).indexOf(kv[0].trim());
+	    if(op < 0 || kv.length != 2) {
+		throw new IllegalArgumentException("Unknown mix entry: " + pair);
+	    }
+	    weights[op] = Integer.valueOf(kv[1].trim());
+	}
+	for(int i = 1; i < weights.length; i++) {
+	    weights[i] += weights[i - 1];
+	}
+	if(weights[weights.length - 1] <= 0) {
+	    throw new IllegalArgumentException("The mix must weigh something.");
+	}
+	return weights;
+    }
+
+    private static void boot(int port) throws Exception {
+	// a Controller that can't start throws here, instead of leaving the port closed
+	Controller.start(new String[] {"on.port=" + port});
+	long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+	while(true) {
+	    try(Socket socket = new Socket()) {
+		socket.connect(new InetSocketAddress("localhost", port), 1000);
+		return;
+	    }
+	    catch(IOException e) {
+		if(System.nanoTime() > deadline) {
+		    throw e;
+		}
+		Thread.sleep(100);
+	    }
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	String rates = "50,100,200";
+	int duration = 30;
+	int warmup = 5;
+	String url = null;
+	int port = 8888;
+	int connections = 512;
+	int timeout = 30;
+	String mix = "balances:30,transactions:40,post:15,patch:10,delete:5";
+	String authKeyword = "Bearer";
+	ArrayList<String> ledgerArgs = new ArrayList<String>();
+	for(String arg : args) {
+	    int eq = arg.indexOf('=');
+	    String key = eq < 0 ? arg : arg.substring(0, eq);
+	    String value = arg.substring(eq + 1);
+	    switch(key) {
+	    case "rates": rates = value; break;
+	    case "duration": duration = Integer.valueOf(value); break;
+	    case "warmup": warmup = Integer.valueOf(value); break;
+	    case "url": url = value; break;
+	    case "port": port = Integer.valueOf(value); break;
+	    case "connections": connections = Integer.valueOf(value); break;
+	    case "timeout": timeout = Integer.valueOf(value); break;
+	    case "mix": mix = value; break;
+	    case "authKeyword": authKeyword = value; break;
+	    default: ledgerArgs.add(arg);
+	    }
+	}
+	LedgerGenerator.Spec spec = LedgerGenerator.Spec.parse(ledgerArgs.toArray(new String[0]));
+	if(url == null) {
+	    boot(port);
+	    url = "http://localhost:" + port;
+	}
+	LoadDriver driver = new LoadDriver(url, weights(mix), spec, connections, timeout,
+					   authKeyword);
+	System.out.println("Loading " + url + " as " + spec.users + " users of seed " + spec.seed
+			   + ", mix " + mix);
+	for(String rate : rates.split(",")) {
+	    Route[] routes = driver.run(Double.valueOf(rate), warmup, duration, timeout);
+	    report(routes, duration);
+	}
+	driver.client.close();
+	System.exit(0);
+    }
+}
@@ -0,0 +1,76 @@
+package com.github.emi_silva.debo;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * What the query log adds to a call: reading a page of a thousand transactions, column by
+ * column, through a connection borrowed from the query log and straight from the pool.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryLogBenchmark {
+
+    private static final String PAGE = "SELECT id, date, amount, currency, debit, credit, "
+	+ "comment FROM transactions WHERE user_id = ? ORDER BY date, id LIMIT 1000";
+
+    /**
+     * Whether connections are borrowed through the query log, which never logs a call here
+     */
+    @State(Scope.Benchmark)
+    public static class Log {
+	@Param({"on", "off"})
+	public String log;
+
+	QueryLog queryLog;
+
+	@Setup
+	public void setUp(Ledger ledger) {
+	    if(log.equals("on")) {
+		queryLog = new QueryLog(ledger.model.pool, Long.MAX_VALUE / 1000000, System.err);
+	    }
+	}
+
+	Connection connect(Ledger ledger) throws SQLException {
+	    return queryLog == null ? ledger.model.pool.getConnection()
+		: queryLog.connect("page");
+	}
+    }
+
+    @Benchmark
+    public void page(Ledger ledger, Log log, Blackhole bh) throws SQLException {
+	try(Connection conn = log.connect(ledger);
+	    PreparedStatement st = conn.prepareStatement(PAGE)) {
+	    st.setInt(1, ledger.userId);
+	    try(ResultSet rs = st.executeQuery()) {
+		while(rs.next()) {
+		    bh.consume(rs.getInt(1));
+		    bh.consume(rs.getTimestamp(2));
+		    bh.consume(rs.getBigDecimal(3));
+		    bh.consume(rs.getInt(4));
+		    bh.consume(rs.getInt(5));
+		    bh.consume(rs.getInt(6));
+		    bh.consume(rs.getString(7));
+		}
+	    }
+	}
+    }
+}
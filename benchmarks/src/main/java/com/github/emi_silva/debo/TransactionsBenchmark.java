@@ -0,0 +1,70 @@
+package com.github.emi_silva.debo;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Listing transactions: a full page of an account, which is mostly mapping rows, a comment
+ * search, and building the statement of a filter without running it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransactionsBenchmark {
+
+    /**
+     * A filter with a date range, an account and a limit, and the statements built for it
+     */
+    @State(Scope.Thread)
+    public static class Filter {
+	Model.TxFilter filter;
+	QueryShapes shapes;
+
+	@Setup
+	public void setUp() {
+	    filter = new Model.TxFilter();
+	    filter.minDate = "2021-01-01";
+	    filter.maxDate = "2021-12-31";
+	    filter.account = "benchmark 3";
+	    filter.limit = 100;
+	    shapes = new QueryShapes();
+	}
+    }
+
+    @Benchmark
+    public Model.TxPage getTransactions(Ledger ledger) throws DeboException {
+	Model.TxFilter f = new Model.TxFilter();
+	f.account = ledger.names[3];
+	f.limit = 1000;
+	return ledger.logic.getTransactions(f, ledger.userId);
+    }
+
+    @Benchmark
+    public Model.TxPage searchComments(Ledger ledger) throws DeboException {
+	Model.TxFilter f = new Model.TxFilter();
+	f.commentMatches = "coffee";
+	f.limit = 100;
+	return ledger.logic.getTransactions(f, ledger.userId);
+    }
+
+    @Benchmark
+    public void buildQuery(Filter state, Blackhole bh) throws DeboException {
+	int mask = state.filter.mask();
+	bh.consume(state.shapes.selectTransactions(mask));
+	ArrayList<Object> values = state.filter.values(1);
+	bh.consume(values);
+    }
+}
@@ -0,0 +1,18 @@
+-- Running balance of every (account, currency) pair, kept up to date by the Model on every
+-- transaction insert, update and delete. Amounts are debits minus credits; the sign is
+-- flipped for accounts whose normal balance is credit.
+
+CREATE TABLE IF NOT EXISTS debo.balances (
+       account INT NOT NULL REFERENCES debo.accounts ON DELETE CASCADE,
+       currency INT NOT NULL REFERENCES debo.currencies ON DELETE CASCADE,
+       amount NUMERIC NOT NULL DEFAULT 0,
+       PRIMARY KEY (account, currency)
+);
+
+INSERT INTO debo.balances (account, currency, amount)
+SELECT account, currency, sum(amount)
+FROM (SELECT debit AS account, currency, amount FROM debo.transactions
+      UNION ALL
+      SELECT credit AS account, currency, -amount FROM debo.transactions) movements
+GROUP BY account, currency
+ON CONFLICT DO NOTHING;
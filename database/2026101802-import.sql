@@ -0,0 +1,15 @@
+-- Content hash of a transaction, used to skip rows of an imported statement that were already
+-- imported. Amounts are rounded so 10 and 10.00 hash alike; equal hashes are always confirmed
+-- by comparing the columns themselves.
+
+CREATE OR REPLACE FUNCTION debo.tx_hash(date TIMESTAMPTZ, amount NUMERIC, currency INT,
+                                        debit INT, credit INT, comment TEXT)
+RETURNS UUID
+LANGUAGE sql IMMUTABLE STRICT PARALLEL SAFE
+AS $$
+       SELECT md5(concat_ws('|', floor(extract(epoch FROM date))::BIGINT, round(amount, 12),
+                            currency, debit, credit, comment))::UUID
+$$;
+
+CREATE INDEX IF NOT EXISTS transactions_content
+ON debo.transactions (user_id, debo.tx_hash(date, amount, currency, debit, credit, comment));
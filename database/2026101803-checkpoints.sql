@@ -0,0 +1,27 @@
+-- Balance of every (account, currency) pair at the end of each month (in UTC) with any
+-- movement, kept up to date by the Model along with debo.balances. Months without movements
+-- have no row; their balance is that of the latest month before them. A balance as of any
+-- date is the checkpoint of the month before plus the movements of that date's month.
+
+CREATE TABLE IF NOT EXISTS debo.balance_checkpoints (
+       account INT NOT NULL REFERENCES debo.accounts ON DELETE CASCADE,
+       currency INT NOT NULL REFERENCES debo.currencies ON DELETE CASCADE,
+       month DATE NOT NULL,
+       amount NUMERIC NOT NULL,
+       PRIMARY KEY (account, currency, month)
+);
+
+INSERT INTO debo.balance_checkpoints (account, currency, month, amount)
+SELECT account, currency, month,
+       sum(sum(amount)) OVER (PARTITION BY account, currency ORDER BY month)
+FROM (SELECT debit AS account, currency, amount, date FROM debo.transactions
+      UNION ALL
+      SELECT credit AS account, currency, -amount, date FROM debo.transactions) movements
+     CROSS JOIN LATERAL (SELECT date_trunc('month', date AT TIME ZONE 'UTC')::DATE AS month) m
+GROUP BY account, currency, month
+ON CONFLICT DO NOTHING;
+
+-- The movements of a single month, per account or per user
+CREATE INDEX IF NOT EXISTS transactions_debit_date ON debo.transactions (debit, date);
+CREATE INDEX IF NOT EXISTS transactions_credit_date ON debo.transactions (credit, date);
+CREATE INDEX IF NOT EXISTS transactions_user_date ON debo.transactions (user_id, date, id);
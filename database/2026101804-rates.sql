@@ -0,0 +1,11 @@
+-- Exchange rates shared by every user, keyed by currency code: one unit of base is worth rate
+-- units of quote from time on, until the pair's next rate. Loaded in bulk by RateTool.
+
+CREATE TABLE IF NOT EXISTS debo.rates (
+       base VARCHAR NOT NULL,
+       quote VARCHAR NOT NULL,
+       time TIMESTAMPTZ NOT NULL,
+       rate NUMERIC NOT NULL,
+       PRIMARY KEY (base, quote, time),
+       CONSTRAINT positive_rate CHECK (rate > 0)
+);
@@ -0,0 +1,45 @@
+-- Shared expenses: a group's members split expenses paid by one of them. Currencies are
+-- identified by code, since every user has their own currencies.
+
+CREATE TABLE IF NOT EXISTS debo.groups (
+       id SERIAL PRIMARY KEY,
+       name VARCHAR NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS debo.group_members (
+       group_id INT NOT NULL REFERENCES debo.groups ON DELETE CASCADE,
+       user_id INT NOT NULL REFERENCES debo.users,
+       PRIMARY KEY (group_id, user_id)
+);
+
+CREATE INDEX IF NOT EXISTS group_members_user ON debo.group_members (user_id);
+
+CREATE TABLE IF NOT EXISTS debo.expenses (
+       id SERIAL PRIMARY KEY,
+       group_id INT NOT NULL REFERENCES debo.groups ON DELETE CASCADE,
+       payer INT NOT NULL REFERENCES debo.users,
+       date TIMESTAMP (0) WITH TIME ZONE NOT NULL DEFAULT CURRENT_TIMESTAMP,
+       amount NUMERIC NOT NULL,
+       currency VARCHAR NOT NULL,
+       comment TEXT NOT NULL DEFAULT '',
+       CONSTRAINT positive_expense CHECK (amount > 0)
+);
+
+CREATE INDEX IF NOT EXISTS expenses_group ON debo.expenses (group_id, date, id);
+
+CREATE TABLE IF NOT EXISTS debo.expense_splits (
+       expense INT NOT NULL REFERENCES debo.expenses ON DELETE CASCADE,
+       user_id INT NOT NULL REFERENCES debo.users,
+       amount NUMERIC NOT NULL,
+       PRIMARY KEY (expense, user_id)
+);
+
+-- What every member is owed (positive) or owes (negative) per currency, kept up to date by the
+-- Model on every expense, so settling a group never reads its expenses.
+CREATE TABLE IF NOT EXISTS debo.group_balances (
+       group_id INT NOT NULL REFERENCES debo.groups ON DELETE CASCADE,
+       user_id INT NOT NULL REFERENCES debo.users,
+       currency VARCHAR NOT NULL,
+       amount NUMERIC NOT NULL DEFAULT 0,
+       PRIMARY KEY (group_id, user_id, currency)
+);
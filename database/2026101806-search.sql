@@ -0,0 +1,12 @@
+-- Indexes for searching comments. commentHas keeps its regex semantics and is answered from
+-- trigrams, while commentMatches is a ranked full-text search over the words of the comment.
+-- Both index the user id too, so a search only reads the requesting user's entries.
+
+CREATE EXTENSION IF NOT EXISTS pg_trgm SCHEMA debo;
+CREATE EXTENSION IF NOT EXISTS btree_gin SCHEMA debo;
+
+CREATE INDEX IF NOT EXISTS transactions_comment_trgm
+ON debo.transactions USING GIN (user_id, comment debo.gin_trgm_ops);
+
+CREATE INDEX IF NOT EXISTS transactions_comment_words
+ON debo.transactions USING GIN (user_id, to_tsvector('simple', comment));
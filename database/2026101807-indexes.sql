@@ -0,0 +1,13 @@
+-- Indexes for the lookups every request makes. Transactions are already indexed by
+-- (user_id, date, id), (debit, date) and (credit, date) for pages and balances.
+
+-- Authentication looks users up by session token
+CREATE INDEX IF NOT EXISTS users_session_token ON debo.users (session_token);
+
+-- Listing currencies and accounts, and the balances of every account, go by user. The unique
+-- constraints start with the code and name, so they can't answer these.
+CREATE INDEX IF NOT EXISTS currencies_user ON debo.currencies (user_id);
+CREATE INDEX IF NOT EXISTS accounts_user ON debo.accounts (user_id);
+
+-- Deleting a currency checks no transaction references it
+CREATE INDEX IF NOT EXISTS transactions_currency ON debo.transactions (currency);
@@ -0,0 +1,48 @@
+package com.github.emi_silva.debo;
+
+import java.util.ArrayList;
+
+/**
+ * Checks or recomputes the running balances and their month-end checkpoints out of the
+ * transactions table.
+ * Usage: BalanceTool verify|rebuild
+ */
+public class BalanceTool {
+
+    public static void main(String[] args) {
+	if(args.length != 1 || !(args[0].equals("verify") || args[0].equals("rebuild"))) {
+	    System.err.println("Usage: BalanceTool verify|rebuild");
+	    System.exit(2);
+	}
+	Model model;
+	try {
+	    model = new Model();
+	}
+	catch(Exception e) {
+	    System.err.println(e.toString());
+	    System.exit(1);
+	    return;
+	}
+	int status = 0;
+	try {
+	    if(args[0].equals("verify")) {
+		ArrayList<String> mismatches = model.verifyBalances();
+		for(String mismatch : mismatches) {
+		    System.out.println(mismatch);
+		}
+		System.out.println(mismatches.size() + " mismatched balances.");
+		status = mismatches.isEmpty() ? 0 : 1;
+	    }
+	    else {
+		int rows = model.rebuildBalances();
+		System.out.println("Rebuilt " + rows + " balances.");
+	    }
+	}
+	catch(DeboException e) {
+	    System.err.println(e.error);
+	    status = 1;
+	}
+	model.close();
+	System.exit(status);
+    }
+}
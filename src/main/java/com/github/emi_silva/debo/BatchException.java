@@ -0,0 +1,36 @@
+package com.github.emi_silva.debo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Collects the problems found in the elements of a batch, each with the element's index
+ */
+class BatchException extends DeboException {
+
+    public ArrayList<HashMap<String, Object>> errors;
+
+    public BatchException() {
+	super(400, "Some transactions are invalid. Nothing was created.");
+	errors = new ArrayList<HashMap<String, Object>>();
+    }
+
+    public void add(int index, String error) {
+	HashMap<String, Object> e = new HashMap<String, Object>();
+	e.put("index", index);
+	e.put("error", error);
+	errors.add(e);
+    }
+
+    public boolean isEmpty() {
+	return errors.isEmpty();
+    }
+
+    @Override
+    public HashMap<String, Object> toMap() {
+	HashMap<String, Object> map = super.toMap();
+	map.put("errors", errors);
+	return map;
+    }
+
+}
@@ -5,14 +5,26 @@ import org.rapidoid.setup.On;
 import org.rapidoid.u.U;
 import org.rapidoid.http.Req;
 import org.rapidoid.http.Resp;
+import org.rapidoid.http.MediaType;
+import org.rapidoid.data.JSON;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.time.Instant;
-import java.util.HashMap;
+import java.util.Properties;
+import org.rapidoid.http.Route;
 import org.rapidoid.setup.My;
 
 public class Controller {
 
     private static Logic logic;
+    private static Dispatcher dispatcher;
+    private static String retryAfter;
+    private static Metrics metrics;
+    private static boolean metricsEnabled;
+    private static String metricsToken;
+    private static String adminToken;
+    private static final Object UNMATCHED = new Object();
 
     private static int authenticate(Req req) throws DeboException {
 	String authHeader;
@@ -29,15 +41,335 @@ public class Controller {
     private static Resp showError(DeboException e, Req req) {
 	return req.response().json(e.toMap()).code(e.code);
     }
+
+    /**
+     * Records how long a request took and completes it
+     */
+    private static void finish(Req req, long start) {
+	record(req, start);
+	req.done();
+    }
+
+    private static void record(Req req, long start) {
+	Route route = req.route();
+	metrics.record(route == null ? UNMATCHED : route, req.response().code(),
+		       System.nanoTime() - start);
+    }
+
+    private static String label(Object route) {
+	if(route instanceof Route) {
+	    return ((Route) route).verb() + " " + ((Route) route).path();
+	}
+	return "unmatched";
+    }
+
+    /**
+     * Answers with every metric in the Prometheus text format. When a metricsToken is set,
+     * scrapers must send it as a bearer token.
+     */
+    private static Resp scrape(Req req, String token) {
+	if(token != null && !token.isEmpty() && !bearer(req, token)) {
+	    return showError(new DeboException(401, "Invalid metrics token."), req);
+	}
+	return req.response().contentType(MediaType.PLAIN_TEXT_UTF_8).body(metrics.scrape());
+    }
+
+    /**
+     * Tells whether a request carries a token as a bearer token
+     */
+    private static boolean bearer(Req req, String token) {
+	return ("Bearer " + token).equals(req.header("Authorization", null));
+    }
+
+    /**
+     * Reads the currency and account types again, for operators who changed their seed data.
+     * Callers must send the adminToken as a bearer token.
+     */
+    private static Object reloadTypes(Req req, String token) throws DeboException {
+	if(!bearer(req, token)) {
+	    throw new DeboException(401, "Invalid admin token.");
+	}
+	logic.reloadTypes();
+	return req.response().json("");
+    }
+
+    /**
+     * What a request does, which may block on the database or another server. It returns a
+     * response, or an object to answer with as JSON.
+     */
+    private interface Handler {
+	Object handle() throws DeboException;
+    }
+
+    /**
+     * Answers a request asynchronously with what a handler run by a worker returns
+     */
+    private static Object dispatch(Req req, Handler handler) {
+	long start = System.nanoTime();
+	req.async();
+	start(req, answer(req, start, handler), start);
+	return req;
+    }
+
+    /**
+     * Wraps a handler in a task that answers and completes an asynchronous request
+     */
+    private static Runnable answer(Req req, long start, Handler handler) {
+	return () -> {
+		try {
+		    Object result = handler.handle();
+		    if(!(result instanceof Resp)) {
+			req.response().json(result);
+		    }
+		}
+		catch(DeboException e) {
+		    showError(e, req);
+		}
+		catch(RuntimeException e) {
+		    showError(new DeboException(500), req);
+		}
+		finally {
+		    finish(req, start);
+		}
+	    };
+    }
+
+    /**
+     * Hands a request to a worker, which must complete it with finish()
+     */
+    private static Object offload(Req req, Task task) {
+	long start = System.nanoTime();
+	req.async();
+	start(req, () -> task.run(start), start);
+	return req;
+    }
+
+    /**
+     * What a streaming request does, given when it arrived so it can finish() it
+     */
+    private interface Task {
+	void run(long start);
+    }
+
+    /**
+     * Runs a task of an asynchronous request on a worker. When every worker is busy and the
+     * queue is full, answers 503 at once.
+     */
+    private static void start(Req req, Runnable task, long start) {
+	if(!dispatcher.execute(task)) {
+	    showError(new DeboException(503), req).header("Retry-After", retryAfter);
+	    finish(req, start);
+	}
+    }
+
+    /**
+     * Answers with pre-serialized JSON, which clients may cache but must revalidate with its
+     * ETag, so a reload of the types reaches them on their next request
+     */
+    private static Resp cachedJson(Req req, byte[] json, String eTag) {
+	Resp resp = req.response()
+	    .header("Cache-Control", "private, no-cache")
+	    .header("ETag", eTag);
+	if(eTag.equals(req.header("If-None-Match", null))) {
+	    return resp.code(304).body(new byte[0]);
+	}
+	return resp.contentType(MediaType.JSON).body(json);
+    }
+    
+    /**
+     * Reads a JSON array of transactions from the body
+     */
+    private static Model.Transaction[] readBatch(Req req) throws DeboException {
+	try {
+	    return JSON.parse(req.body(), Model.Transaction[].class);
+	}
+	catch(RuntimeException e) {
+	    throw new DeboException(400, "The body must be a JSON array of transactions.");
+	}
+    }
+
+    /**
+     * Reads the description of an imported statement from the query parameters
+     */
+    private static Model.ImportSpec readImportSpec(Req req) {
+	Model.ImportSpec spec = new Model.ImportSpec();
+	spec.format = req.param("format", null);
+	spec.currency = req.param("currency", null);
+	spec.account = req.param("account", null);
+	spec.counterAccount = req.param("counterAccount", null);
+	spec.delimiter = req.param("delimiter", null);
+	spec.dateColumn = req.param("dateColumn", null);
+	spec.amountColumn = req.param("amountColumn", null);
+	spec.currencyColumn = req.param("currencyColumn", null);
+	spec.debitColumn = req.param("debitColumn", null);
+	spec.creditColumn = req.param("creditColumn", null);
+	spec.commentColumn = req.param("commentColumn", null);
+	return spec;
+    }
+
+    /**
+     * The chunked body of a response, which is only started once something is written to it.
+     * What's written is sent to the client every FLUSH_BYTES bytes.
+     */
+    private static class ResponseStream extends OutputStream {
+
+	private static final int FLUSH_BYTES = 1 << 16;
+
+	private final Resp resp;
+	private final MediaType type;
+	private OutputStream out;
+	private int pending;
+
+	ResponseStream(Resp resp, MediaType type) {
+	    this.resp = resp;
+	    this.type = type;
+	}
+
+	public void write(int b) throws IOException {
+	    open().write(b);
+	    written(1);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+	    open().write(b, off, len);
+	    written(len);
+	}
+
+	public void flush() throws IOException {
+	    if(out != null) {
+		out.flush();
+	    }
+	    pending = 0;
+	}
+
+	public void close() throws IOException {
+	    open().close();
+	}
+
+	boolean started() {
+	    return out != null;
+	}
+
+	private OutputStream open() {
+	    if(out == null) {
+		out = resp.contentType(type).out();
+	    }
+	    return out;
+	}
+
+	private void written(int bytes) throws IOException {
+	    pending += bytes;
+	    if(pending >= FLUSH_BYTES) {
+		flush();
+	    }
+	}
+    }
+
+    /**
+     * Writes transactions to a response as the elements of a JSON array, as they arrive
+     */
+    private static class JsonExport implements Model.TxHandler {
+
+	private final ResponseStream out;
+	private boolean first;
+
+	JsonExport(ResponseStream out) {
+	    this.out = out;
+	    first = true;
+	}
+
+	public void handle(Model.Transaction t) throws IOException {
+	    out.write(first ? '[' : ',');
+	    first = false;
+	    out.write(JSON.stringifyToBytes(t));
+	}
+
+	void finish() throws IOException {
+	    if(first) {
+		out.write('[');
+	    }
+	    out.write(']');
+	    out.close();
+	}
+    }
+
+    /**
+     * Streams a user's transactions and completes the asynchronous request. Errors found
+     * before the first row are answered as usual; later ones can only cut the array short.
+     */
+    private static void exportTransactions(Model.TxFilter t, Req req, long start) {
+	ResponseStream out = new ResponseStream(req.response(), MediaType.JSON);
+	JsonExport export = new JsonExport(out);
+	try {
+	    int userId = authenticate(req);
+	    logic.exportTransactions(t, userId, export);
+	    export.finish();
+	}
+	catch(DeboException e) {
+	    if(!out.started()) {
+		showError(e, req);
+	    }
+	}
+	catch(IOException e) {
+	    // the client went away
+	}
+	finally {
+	    finish(req, start);
+	}
+    }
+
+    /**
+     * Answers with all of a user's rows of a table as CSV, copied straight from the database
+     */
+    private static Object exportCsv(String table, Req req) {
+	return offload(req, start -> {
+		ResponseStream out = new ResponseStream(req.response(), MediaType.CSV_UTF_8);
+		try {
+		    int userId = authenticate(req);
+		    logic.exportCsv(table, userId, out);
+		    out.close();
+		}
+		catch(DeboException e) {
+		    if(!out.started()) {
+			showError(e, req);
+		    }
+		}
+		catch(IOException e) {
+		    // the client went away
+		}
+		finally {
+		    finish(req, start);
+		}
+	    });
+    }
     
     public static void main(String[] args) {
 	try {
-	    logic = new Logic();
+	    start(args);
 	}
 	catch(Exception e) {
 	    System.err.println(e.toString());
-	    return;
 	}
+    }
+
+    /**
+     * Connects to the database and starts serving, or throws what kept it from starting
+     */
+    static void start(String[] args) throws Exception {
+	logic = new Logic();
+	Properties props = logic.readProps("/server.properties");
+	dispatcher = new Dispatcher(Integer.valueOf(props.getProperty("workers")),
+				    Integer.valueOf(props.getProperty("workerQueue")),
+				    Boolean.valueOf(props.getProperty("virtualThreads")));
+	retryAfter = props.getProperty("retryAfter");
+	metrics = new Metrics(Controller::label);
+	metrics.addJvm();
+	metrics.gauge("debo_requests_pending", "Requests running or waiting for a worker", null,
+		      dispatcher::pending);
+	logic.addMetrics(metrics);
+	metricsEnabled = Boolean.valueOf(props.getProperty("metrics"));
+	metricsToken = props.getProperty("metricsToken");
+	adminToken = props.getProperty("adminToken");
 	App.bootstrap(args);
 
 	My.errorHandler((req, resp, error) -> {
@@ -45,225 +377,235 @@ public class Controller {
 	    });
 
 	On.req(req -> {
-		try {
-		    authenticate(req);
-		    throw new DeboException(404, "The requested URL and method do not exist.");
-		}
-		catch(DeboException e) {
-		    return showError(e, req);
-		}
+		return dispatch(req, () -> {
+			authenticate(req);
+			throw new DeboException(404, "The requested URL and method do not exist.");
+		    });
 	    });
 
 	On.get("/login").json((Req req) -> {
+		long start = System.nanoTime();
 		String redirectUri = logic.getOAuthUri();
-		return req.response().redirect(redirectUri);
+		Resp resp = req.response().redirect(redirectUri);
+		record(req, start);
+		return resp;
 	    });
 
+	if(metricsEnabled) {
+	    On.get("/metrics").json((Req req) -> scrape(req, metricsToken));
+	}
+
+	if(adminToken != null && !adminToken.isEmpty()) {
+	    On.post("/admin/reload_types").json((Req req) -> {
+		    return dispatch(req, () -> reloadTypes(req, adminToken));
+		});
+	}
+
 	On.get("/redirect").json((String code, Req req) -> {
-		try {
-		    String accessToken = logic.getAccessToken(code);
-		    String email = logic.getEmail(accessToken);
-		    HashMap<String, String> session = logic.getSession(email);
-		    return req.response().json(session);
-		}
-		catch(DeboException e) {
-		    return showError(e, req);
-		}
+		// no worker waits for Google; one is only taken once the email is known
+		long start = System.nanoTime();
+		req.async();
+		logic.login(code).whenComplete((email, error) -> {
+			start(req, answer(req, start, () -> {
+				if(error != null) {
+				    throw OAuthClient.failure(error);
+				}
+				return logic.getSession(email);
+			    }), start);
+		    });
+		return req;
 	    });
 
 	On.get("/logout").json((Req req) -> {
-		try {
-		    int userId = authenticate(req);
-		    logic.logout(userId);
-		    return req.response().json("");
-		}
-		catch(DeboException e) {
-		    return showError(e, req);
-		}
+		return dispatch(req, () -> {
+			int userId = authenticate(req);
+			logic.logout(userId);
+			return req.response().json("");
+		    });
 	    });
 
 	On.get("/currency_types").json((Req req) -> {
-		try {
-		    authenticate(req);
-		    return U.list(logic.getCurrencyTypes());
-		}
-		catch(DeboException e) {
-		    return showError(e, req);
-		}
+		return dispatch(req, () -> {
+			authenticate(req);
+			TypeRegistry types = logic.getTypes();
+			return cachedJson(req, types.currencyTypesJson(), types.currencyTypesETag);
+		    });
 	    });
 
  	On.get("/account_types").json((Req req) -> {
-		try {
-		    authenticate(req);
-		    return U.list(logic.getAccountTypes());
-		}
-		catch(DeboException e) {
-		    return showError(e, req);
-		}
+		return dispatch(req, () -> {
+			authenticate(req);
+			TypeRegistry types = logic.getTypes();
+			return cachedJson(req, types.accountTypesJson(), types.accountTypesETag);
+		    });
 	    });
 
 	On.post("/currencies").json((Model.Currency c, Req req) -> {
-		try {
-		    int userId = authenticate(req);
-		    Model.Currency newCurrency = logic.postCurrencies(c, userId);
-		    return req.response().result(newCurrency).code(201);
-		}
-		catch(DeboException e) {
-		    return showError(e, req);
-		}
+		return dispatch(req, () -> {
+			int userId = authenticate(req);
+			Model.Currency newCurrency = logic.postCurrencies(c, userId);
+			return req.response().result(newCurrency).code(201);
+		    });
 	    });
 	On.post("/accounts").json((Model.Account a, Req req) -> {
-		try {
-		    int userId = authenticate(req);
-		    Model.Account newAccount = logic.postAccounts(a, userId);
-		    return req.response().result(newAccount).code(201);
-		}
-		catch(DeboException e) {
-		    return showError(e, req);
-		}
+		return dispatch(req, () -> {
+			int userId = authenticate(req);
+			Model.Account newAccount = logic.postAccounts(a, userId);
+			return req.response().result(newAccount).code(201);
+		    });
 	    });
 	On.post("/transactions").json((Model.Transaction t, Req req) -> {
-		try {
-		    int userId = authenticate(req);
-		    Model.Transaction newTx = logic.postTransactions(t, userId);
-		    return req.response().result(newTx).code(201);
-		}
-		catch(DeboException e) {
-		    return showError(e, req);
-		}
+		return dispatch(req, () -> {
+			int userId = authenticate(req);
+			Model.Transaction newTx = logic.postTransactions(t, userId);
+			return req.response().result(newTx).code(201);
+		    });
 	    });
 	
 	On.get("/currencies").json((Model.Currency c, Req req) -> {
-		try {
-		    int userId = authenticate(req);
-		    return U.list(logic.getCurrencies(c, userId));
-		}
-		catch(DeboException e) {
-		    return showError(e, req);
-		}
+		return dispatch(req, () -> {
+			int userId = authenticate(req);
+			return U.list(logic.getCurrencies(c, userId));
+		    });
 	    });
 	On.get("/accounts").json((Model.Account a, Req req) -> {
-		try {
-		    int userId = authenticate(req);
-		    return U.list(logic.getAccounts(a, userId));
-		}
-		catch(DeboException e) {
-		    return showError(e, req);
-		}
+		return dispatch(req, () -> {
+			int userId = authenticate(req);
+			return U.list(logic.getAccounts(a, userId));
+		    });
+	    });
+	On.post("/transactions/batch").json((Req req) -> {
+		return dispatch(req, () -> {
+			int userId = authenticate(req);
+			Model.Transaction[] ts = readBatch(req);
+			ArrayList<Model.Transaction> newTxs = logic.postTransactionsBatch(ts, userId);
+			return req.response().result(newTxs).code(201);
+		    });
+	    });
+	On.post("/import/transactions").json((Req req) -> {
+		return dispatch(req, () -> {
+			int userId = authenticate(req);
+			Model.ImportSpec spec = readImportSpec(req);
+			Model.ImportResult result = logic.importTransactions(spec, req.body(), userId);
+			return req.response().result(result).code(201);
+		    });
 	    });
 	On.get("/transactions").json((Model.TxFilter t, Req req) -> {
-		try {
-		    int userId = authenticate(req);
-		    return U.list(logic.getTransactions(t, userId));
-		}
-		catch(DeboException e) {
-		    return showError(e, req);
-		}
+		return dispatch(req, () -> {
+			int userId = authenticate(req);
+			return logic.getTransactions(t, userId);
+		    });
+	    });
+	On.get("/export/transactions.csv").json((Req req) -> exportCsv("transactions", req));
+	On.get("/export/accounts.csv").json((Req req) -> exportCsv("accounts", req));
+	On.get("/export/currencies.csv").json((Req req) -> exportCsv("currencies", req));
+	On.get("/export/transactions.json").json((Model.TxFilter t, Req req) -> {
+		return offload(req, start -> exportTransactions(t, req, start));
 	    });
 	
 	On.get("/currency/{code}").json((String code, Req req) -> {
-		try {
-		    int userId = authenticate(req);
-		    return logic.getCurrency(code, userId);
-		}
-		catch(DeboException e) {
-		    return showError(e, req);
-		}
+		return dispatch(req, () -> {
+			int userId = authenticate(req);
+			return logic.getCurrency(code, userId);
+		    });
 	    });
 	On.get("/account/{name}").json((String name, Req req) -> {
-		try {
-		    int userId = authenticate(req);
-		    return logic.getAccount(name, userId);
-		}
-		catch(DeboException e) {
-		    return showError(e, req);
-		}
+		return dispatch(req, () -> {
+			int userId = authenticate(req);
+			return logic.getAccount(name, userId);
+		    });
 	    });
 	On.get("/transaction/{id}").json((String id, Req req) -> {
-		try {
-		    int userId = authenticate(req);
-		    return logic.getTransaction(id, userId);
-		}
-		catch(DeboException e) {
-		    return showError(e, req);
-		}
+		return dispatch(req, () -> {
+			int userId = authenticate(req);
+			return logic.getTransaction(id, userId);
+		    });
 	    });
 	
 	On.patch("/currency/{oldCode}").json((String oldCode, Model.Currency c, Req req) -> {
-		try {
-		    int userId = authenticate(req);
-		    return logic.patchCurrency(oldCode, c, userId);
-		}
-		catch(DeboException e) {
-		    return showError(e, req);
-		}
+		return dispatch(req, () -> {
+			int userId = authenticate(req);
+			return logic.patchCurrency(oldCode, c, userId);
+		    });
 	    });
 	On.patch("/account/{oldName}").json((String oldName, Model.Account a, Req req) -> {
-		try {
-		    int userId = authenticate(req);
-		    return logic.patchAccount(oldName, a, userId);
-		}
-		catch(DeboException e) {
-		    return showError(e, req);
-		}
+		return dispatch(req, () -> {
+			int userId = authenticate(req);
+			return logic.patchAccount(oldName, a, userId);
+		    });
 	    });
 	On.patch("/transaction/{refId}").json((String refId, Model.Transaction t, Req req) -> {
-		try {
-		    int userId = authenticate(req);
-		    return logic.patchTransaction(refId, t, userId);
-		}
-		catch(DeboException e) {
-		    return showError(e, req);
-		}
+		return dispatch(req, () -> {
+			int userId = authenticate(req);
+			return logic.patchTransaction(refId, t, userId);
+		    });
 	    });
 	
 	On.delete("/currency/{code}").json((String code, Req req) -> {
-		try {
-		    int userId = authenticate(req);
-		    logic.deleteCurrency(code, userId);
-		    return req.response().json("");
-		}
-		catch(DeboException e) {
-		    return showError(e, req);
-		}
+		return dispatch(req, () -> {
+			int userId = authenticate(req);
+			logic.deleteCurrency(code, userId);
+			return req.response().json("");
+		    });
 	    });
 	On.delete("/account/{name}").json((String name, Req req) -> {
-		try {
-		    int userId = authenticate(req);
-		    logic.deleteAccount(name, userId);
-		    return req.response().json("");
-		}
-		catch(DeboException e) {
-		    return showError(e, req);
-		}
+		return dispatch(req, () -> {
+			int userId = authenticate(req);
+			logic.deleteAccount(name, userId);
+			return req.response().json("");
+		    });
 	    });
 	On.delete("/transaction/{id}").json((String id, Req req) -> {
-		try {
-		    int userId = authenticate(req);
-		    logic.deleteTransaction(id, userId);
-		    return req.response().json("");
-		}
-		catch(DeboException e) {
-		    return showError(e, req);
-		}
+		return dispatch(req, () -> {
+			int userId = authenticate(req);
+			logic.deleteTransaction(id, userId);
+			return req.response().json("");
+		    });
 	    });
 	On.get("/balance/{accountName}").json((String accountName, Req req) -> {
-		try {
-		    int userId = authenticate(req);
-		    return logic.getBalance(accountName, userId);
-		}
-		catch(DeboException e) {
-		    return showError(e, req);
-		}
+		return dispatch(req, () -> {
+			int userId = authenticate(req);
+			return logic.getBalance(accountName, userId, req.param("asOf", null),
+						req.param("in", null));
+		    });
 	    });
 	On.get("/balances").json((Req req) -> {
-		try {
-		    int userId = authenticate(req);
-		    return logic.getBalances(userId);
-		}
-		catch(DeboException e) {
-		    return showError(e, req);
-		}
+		return dispatch(req, () -> {
+			int userId = authenticate(req);
+			return logic.getBalances(userId, req.param("asOf", null),
+						 req.param("in", null));
+		    });
+	    });
+
+	On.post("/groups").json((Model.Group g, Req req) -> {
+		return dispatch(req, () -> {
+			int userId = authenticate(req);
+			return logic.postGroup(g, userId);
+		    });
+	    });
+	On.get("/groups/{id}").json((String id, Req req) -> {
+		return dispatch(req, () -> {
+			int userId = authenticate(req);
+			return logic.getGroup(id, userId);
+		    });
+	    });
+	On.post("/groups/{id}/members").json((String id, Model.Member m, Req req) -> {
+		return dispatch(req, () -> {
+			int userId = authenticate(req);
+			return logic.postGroupMember(id, m, userId);
+		    });
+	    });
+	On.post("/groups/{id}/expenses").json((String id, Model.Expense x, Req req) -> {
+		return dispatch(req, () -> {
+			int userId = authenticate(req);
+			return logic.postExpense(id, x, userId);
+		    });
+	    });
+	On.get("/groups/{id}/settle").json((String id, Req req) -> {
+		return dispatch(req, () -> {
+			int userId = authenticate(req);
+			return logic.settle(id, userId);
+		    });
 	    });
     }
 }
@@ -0,0 +1,826 @@
+package com.github.emi_silva.debo;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Date;
+import java.sql.NClob;
+import java.sql.Ref;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.RowId;
+import java.sql.SQLException;
+import java.sql.SQLType;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.Map;
+
+/**
+ * A result set that counts the rows read through it and hands every other call straight to the
+ * driver's, so reading a column costs the same as without the query log
+ */
+class CountedResultSet implements ResultSet {
+
+    private final ResultSet rs;
+    long rows;
+
+    CountedResultSet(ResultSet rs) {
+	this.rs = rs;
+    }
+
+    public boolean next() throws SQLException {
+	boolean next = rs.next();
+	if(next) {
+	    rows++;
+	}
+	return next;
+    }
+
+    public void close() throws SQLException {
+	rs.close();
+    }
+
+    public boolean absolute(int column) throws SQLException {
+	return rs.absolute(column);
+    }
+
+    public void afterLast() throws SQLException {
+	rs.afterLast();
+    }
+
+    public void beforeFirst() throws SQLException {
+	rs.beforeFirst();
+    }
+
+    public void cancelRowUpdates() throws SQLException {
+	rs.cancelRowUpdates();
+    }
+
+    public void clearWarnings() throws SQLException {
+	rs.clearWarnings();
+    }
+
+    public void deleteRow() throws SQLException {
+	rs.deleteRow();
+    }
+
+    public int findColumn(String label) throws SQLException {
+	return rs.findColumn(label);
+    }
+
+    public boolean first() throws SQLException {
+	return rs.first();
+    }
+
+    public Array getArray(String label) throws SQLException {
+	return rs.getArray(label);
+    }
+
+    public Array getArray(int column) throws SQLException {
+	return rs.getArray(column);
+    }
+
+    public InputStream getAsciiStream(String label) throws SQLException {
+	return rs.getAsciiStream(label);
+    }
+
+    public InputStream getAsciiStream(int column) throws SQLException {
+	return rs.getAsciiStream(column);
+    }
+
+    @Deprecated
+    public BigDecimal getBigDecimal(String label, int n) throws SQLException {
+	return rs.getBigDecimal(label, n);
+    }
+
+    public BigDecimal getBigDecimal(String label) throws SQLException {
+	return rs.getBigDecimal(label);
+    }
+
+    @Deprecated
+    public BigDecimal getBigDecimal(int column, int n) throws SQLException {
+	return rs.getBigDecimal(column, n);
+    }
+
+    public BigDecimal getBigDecimal(int column) throws SQLException {
+	return rs.getBigDecimal(column);
+    }
+
+    public InputStream getBinaryStream(String label) throws SQLException {
+	return rs.getBinaryStream(label);
+    }
+
+    public InputStream getBinaryStream(int column) throws SQLException {
+	return rs.getBinaryStream(column);
+    }
+
+    public Blob getBlob(String label) throws SQLException {
+	return rs.getBlob(label);
+    }
+
+    public Blob getBlob(int column) throws SQLException {
+	return rs.getBlob(column);
+    }
+
+    public boolean getBoolean(String label) throws SQLException {
+	return rs.getBoolean(label);
+    }
+
+    public boolean getBoolean(int column) throws SQLException {
+	return rs.getBoolean(column);
+    }
+
+    public byte getByte(String label) throws SQLException {
+	return rs.getByte(label);
+    }
+
+    public byte getByte(int column) throws SQLException {
+	return rs.getByte(column);
+    }
+
+    public byte[] getBytes(String label) throws SQLException {
+	return rs.getBytes(label);
+    }
+
+    public byte[] getBytes(int column) throws SQLException {
+	return rs.getBytes(column);
+    }
+
+    public Reader getCharacterStream(String label) throws SQLException {
+	return rs.getCharacterStream(label);
+    }
+
+    public Reader getCharacterStream(int column) throws SQLException {
+	return rs.getCharacterStream(column);
+    }
+
+    public Clob getClob(String label) throws SQLException {
+	return rs.getClob(label);
+    }
+
+    public Clob getClob(int column) throws SQLException {
+	return rs.getClob(column);
+    }
+
+    public int getConcurrency() throws SQLException {
+	return rs.getConcurrency();
+    }
+
+    public String getCursorName() throws SQLException {
+	return rs.getCursorName();
+    }
+
+    public Date getDate(String label, Calendar cal) throws SQLException {
+	return rs.getDate(label, cal);
+    }
+
+    public Date getDate(String label) throws SQLException {
+	return rs.getDate(label);
+    }
+
+    public Date getDate(int column, Calendar cal) throws SQLException {
+	return rs.getDate(column, cal);
+    }
+
+    public Date getDate(int column) throws SQLException {
+	return rs.getDate(column);
+    }
+
+    public double getDouble(String label) throws SQLException {
+	return rs.getDouble(label);
+    }
+
+    public double getDouble(int column) throws SQLException {
+	return rs.getDouble(column);
+    }
+
+    public int getFetchDirection() throws SQLException {
+	return rs.getFetchDirection();
+    }
+
+    public int getFetchSize() throws SQLException {
+	return rs.getFetchSize();
+    }
+
+    public float getFloat(String label) throws SQLException {
+	return rs.getFloat(label);
+    }
+
+    public float getFloat(int column) throws SQLException {
+	return rs.getFloat(column);
+    }
+
+    public int getHoldability() throws SQLException {
+	return rs.getHoldability();
+    }
+
+    public int getInt(String label) throws SQLException {
+	return rs.getInt(label);
+    }
+
+    public int getInt(int column) throws SQLException {
+	return rs.getInt(column);
+    }
+
+    public long getLong(String label) throws SQLException {
+	return rs.getLong(label);
+    }
+
+    public long getLong(int column) throws SQLException {
+	return rs.getLong(column);
+    }
+
+    public ResultSetMetaData getMetaData() throws SQLException {
+	return rs.getMetaData();
+    }
+
+    public Reader getNCharacterStream(String label) throws SQLException {
+	return rs.getNCharacterStream(label);
+    }
+
+    public Reader getNCharacterStream(int column) throws SQLException {
+	return rs.getNCharacterStream(column);
+    }
+
+    public NClob getNClob(String label) throws SQLException {
+	return rs.getNClob(label);
+    }
+
+    public NClob getNClob(int column) throws SQLException {
+	return rs.getNClob(column);
+    }
+
+    public String getNString(String label) throws SQLException {
+	return rs.getNString(label);
+    }
+
+    public String getNString(int column) throws SQLException {
+	return rs.getNString(column);
+    }
+
+    public <T> T getObject(String label, Class<T> type) throws SQLException {
+	return rs.getObject(label, type);
+    }
+
+    public Object getObject(String label, Map<String, Class<?>> map) throws SQLException {
+	return rs.getObject(label, map);
+    }
+
+    public Object getObject(String label) throws SQLException {
+	return rs.getObject(label);
+    }
+
+    public <T> T getObject(int column, Class<T> type) throws SQLException {
+	return rs.getObject(column, type);
+    }
+
+    public Object getObject(int column, Map<String, Class<?>> map) throws SQLException {
+	return rs.getObject(column, map);
+    }
+
+    public Object getObject(int column) throws SQLException {
+	return rs.getObject(column);
+    }
+
+    public Ref getRef(String label) throws SQLException {
+	return rs.getRef(label);
+    }
+
+    public Ref getRef(int column) throws SQLException {
+	return rs.getRef(column);
+    }
+
+    public int getRow() throws SQLException {
+	return rs.getRow();
+    }
+
+    public RowId getRowId(String label) throws SQLException {
+	return rs.getRowId(label);
+    }
+
+    public RowId getRowId(int column) throws SQLException {
+	return rs.getRowId(column);
+    }
+
+    public SQLXML getSQLXML(String label) throws SQLException {
+	return rs.getSQLXML(label);
+    }
+
+    public SQLXML getSQLXML(int column) throws SQLException {
+	return rs.getSQLXML(column);
+    }
+
+    public short getShort(String label) throws SQLException {
+	return rs.getShort(label);
+    }
+
+    public short getShort(int column) throws SQLException {
+	return rs.getShort(column);
+    }
+
+    public Statement getStatement() throws SQLException {
+	return rs.getStatement();
+    }
+
+    public String getString(String label) throws SQLException {
+	return rs.getString(label);
+    }
+
+    public String getString(int column) throws SQLException {
+	return rs.getString(column);
+    }
+
+    public Time getTime(String label, Calendar cal) throws SQLException {
+	return rs.getTime(label, cal);
+    }
+
+    public Time getTime(String label) throws SQLException {
+	return rs.getTime(label);
+    }
+
+    public Time getTime(int column, Calendar cal) throws SQLException {
+	return rs.getTime(column, cal);
+    }
+
+    public Time getTime(int column) throws SQLException {
+	return rs.getTime(column);
+    }
+
+    public Timestamp getTimestamp(String label, Calendar cal) throws SQLException {
+	return rs.getTimestamp(label, cal);
+    }
+
+    public Timestamp getTimestamp(String label) throws SQLException {
+	return rs.getTimestamp(label);
+    }
+
+    public Timestamp getTimestamp(int column, Calendar cal) throws SQLException {
+	return rs.getTimestamp(column, cal);
+    }
+
+    public Timestamp getTimestamp(int column) throws SQLException {
+	return rs.getTimestamp(column);
+    }
+
+    public int getType() throws SQLException {
+	return rs.getType();
+    }
+
+    public URL getURL(String label) throws SQLException {
+	return rs.getURL(label);
+    }
+
+    public URL getURL(int column) throws SQLException {
+	return rs.getURL(column);
+    }
+
+    @Deprecated
+    public InputStream getUnicodeStream(String label) throws SQLException {
+	return rs.getUnicodeStream(label);
+    }
+
+    @Deprecated
+    public InputStream getUnicodeStream(int column) throws SQLException {
+	return rs.getUnicodeStream(column);
+    }
+
+    public SQLWarning getWarnings() throws SQLException {
+	return rs.getWarnings();
+    }
+
+    public void insertRow() throws SQLException {
+	rs.insertRow();
+    }
+
+    public boolean isAfterLast() throws SQLException {
+	return rs.isAfterLast();
+    }
+
+    public boolean isBeforeFirst() throws SQLException {
+	return rs.isBeforeFirst();
+    }
+
+    public boolean isClosed() throws SQLException {
+	return rs.isClosed();
+    }
+
+    public boolean isFirst() throws SQLException {
+	return rs.isFirst();
+    }
+
+    public boolean isLast() throws SQLException {
+	return rs.isLast();
+    }
+
+    public boolean isWrapperFor(Class<?> type) throws SQLException {
+	return rs.isWrapperFor(type);
+    }
+
+    public boolean last() throws SQLException {
+	return rs.last();
+    }
+
+    public void moveToCurrentRow() throws SQLException {
+	rs.moveToCurrentRow();
+    }
+
+    public void moveToInsertRow() throws SQLException {
+	rs.moveToInsertRow();
+    }
+
+    public boolean previous() throws SQLException {
+	return rs.previous();
+    }
+
+    public void refreshRow() throws SQLException {
+	rs.refreshRow();
+    }
+
+    public boolean relative(int column) throws SQLException {
+	return rs.relative(column);
+    }
+
+    public boolean rowDeleted() throws SQLException {
+	return rs.rowDeleted();
+    }
+
+    public boolean rowInserted() throws SQLException {
+	return rs.rowInserted();
+    }
+
+    public boolean rowUpdated() throws SQLException {
+	return rs.rowUpdated();
+    }
+
+    public void setFetchDirection(int column) throws SQLException {
+	rs.setFetchDirection(column);
+    }
+
+    public void setFetchSize(int column) throws SQLException {
+	rs.setFetchSize(column);
+    }
+
+    public <T> T unwrap(Class<T> type) throws SQLException {
+	return rs.unwrap(type);
+    }
+
+    public void updateArray(String label, Array x) throws SQLException {
+	rs.updateArray(label, x);
+    }
+
+    public void updateArray(int column, Array x) throws SQLException {
+	rs.updateArray(column, x);
+    }
+
+    public void updateAsciiStream(String label, InputStream x, int n) throws SQLException {
+	rs.updateAsciiStream(label, x, n);
+    }
+
+    public void updateAsciiStream(String label, InputStream x, long length) throws SQLException {
+	rs.updateAsciiStream(label, x, length);
+    }
+
+    public void updateAsciiStream(String label, InputStream x) throws SQLException {
+	rs.updateAsciiStream(label, x);
+    }
+
+    public void updateAsciiStream(int column, InputStream x, int n) throws SQLException {
+	rs.updateAsciiStream(column, x, n);
+    }
+
+    public void updateAsciiStream(int column, InputStream x, long length) throws SQLException {
+	rs.updateAsciiStream(column, x, length);
+    }
+
+    public void updateAsciiStream(int column, InputStream x) throws SQLException {
+	rs.updateAsciiStream(column, x);
+    }
+
+    public void updateBigDecimal(String label, BigDecimal x) throws SQLException {
+	rs.updateBigDecimal(label, x);
+    }
+
+    public void updateBigDecimal(int column, BigDecimal x) throws SQLException {
+	rs.updateBigDecimal(column, x);
+    }
+
+    public void updateBinaryStream(String label, InputStream x, int n) throws SQLException {
+	rs.updateBinaryStream(label, x, n);
+    }
+
+    public void updateBinaryStream(String label, InputStream x, long length) throws SQLException {
+	rs.updateBinaryStream(label, x, length);
+    }
+
+    public void updateBinaryStream(String label, InputStream x) throws SQLException {
+	rs.updateBinaryStream(label, x);
+    }
+
+    public void updateBinaryStream(int column, InputStream x, int n) throws SQLException {
+	rs.updateBinaryStream(column, x, n);
+    }
+
+    public void updateBinaryStream(int column, InputStream x, long length) throws SQLException {
+	rs.updateBinaryStream(column, x, length);
+    }
+
+    public void updateBinaryStream(int column, InputStream x) throws SQLException {
+	rs.updateBinaryStream(column, x);
+    }
+
+    public void updateBlob(String label, InputStream x, long length) throws SQLException {
+	rs.updateBlob(label, x, length);
+    }
+
+    public void updateBlob(String label, InputStream x) throws SQLException {
+	rs.updateBlob(label, x);
+    }
+
+    public void updateBlob(String label, Blob x) throws SQLException {
+	rs.updateBlob(label, x);
+    }
+
+    public void updateBlob(int column, InputStream x, long length) throws SQLException {
+	rs.updateBlob(column, x, length);
+    }
+
+    public void updateBlob(int column, InputStream x) throws SQLException {
+	rs.updateBlob(column, x);
+    }
+
+    public void updateBlob(int column, Blob x) throws SQLException {
+	rs.updateBlob(column, x);
+    }
+
+    public void updateBoolean(String label, boolean x) throws SQLException {
+	rs.updateBoolean(label, x);
+    }
+
+    public void updateBoolean(int column, boolean x) throws SQLException {
+	rs.updateBoolean(column, x);
+    }
+
+    public void updateByte(String label, byte x) throws SQLException {
+	rs.updateByte(label, x);
+    }
+
+    public void updateByte(int column, byte x) throws SQLException {
+	rs.updateByte(column, x);
+    }
+
+    public void updateBytes(String label, byte[] x) throws SQLException {
+	rs.updateBytes(label, x);
+    }
+
+    public void updateBytes(int column, byte[] x) throws SQLException {
+	rs.updateBytes(column, x);
+    }
+
+    public void updateCharacterStream(String label, Reader x, int n) throws SQLException {
+	rs.updateCharacterStream(label, x, n);
+    }
+
+    public void updateCharacterStream(String label, Reader x, long length) throws SQLException {
+	rs.updateCharacterStream(label, x, length);
+    }
+
+    public void updateCharacterStream(String label, Reader x) throws SQLException {
+	rs.updateCharacterStream(label, x);
+    }
+
+    public void updateCharacterStream(int column, Reader x, int n) throws SQLException {
+	rs.updateCharacterStream(column, x, n);
+    }
+
+    public void updateCharacterStream(int column, Reader x, long length) throws SQLException {
+	rs.updateCharacterStream(column, x, length);
+    }
+
+    public void updateCharacterStream(int column, Reader x) throws SQLException {
+	rs.updateCharacterStream(column, x);
+    }
+
+    public void updateClob(String label, Reader x, long length) throws SQLException {
+	rs.updateClob(label, x, length);
+    }
+
+    public void updateClob(String label, Reader x) throws SQLException {
+	rs.updateClob(label, x);
+    }
+
+    public void updateClob(String label, Clob x) throws SQLException {
+	rs.updateClob(label, x);
+    }
+
+    public void updateClob(int column, Reader x, long length) throws SQLException {
+	rs.updateClob(column, x, length);
+    }
+
+    public void updateClob(int column, Reader x) throws SQLException {
+	rs.updateClob(column, x);
+    }
+
+    public void updateClob(int column, Clob x) throws SQLException {
+	rs.updateClob(column, x);
+    }
+
+    public void updateDate(String label, Date x) throws SQLException {
+	rs.updateDate(label, x);
+    }
+
+    public void updateDate(int column, Date x) throws SQLException {
+	rs.updateDate(column, x);
+    }
+
+    public void updateDouble(String label, double x) throws SQLException {
+	rs.updateDouble(label, x);
+    }
+
+    public void updateDouble(int column, double x) throws SQLException {
+	rs.updateDouble(column, x);
+    }
+
+    public void updateFloat(String label, float x) throws SQLException {
+	rs.updateFloat(label, x);
+    }
+
+    public void updateFloat(int column, float x) throws SQLException {
+	rs.updateFloat(column, x);
+    }
+
+    public void updateInt(String label, int n) throws SQLException {
+	rs.updateInt(label, n);
+    }
+
+    public void updateInt(int column, int n) throws SQLException {
+	rs.updateInt(column, n);
+    }
+
+    public void updateLong(String label, long length) throws SQLException {
+	rs.updateLong(label, length);
+    }
+
+    public void updateLong(int column, long length) throws SQLException {
+	rs.updateLong(column, length);
+    }
+
+    public void updateNCharacterStream(String label, Reader x, long length) throws SQLException {
+	rs.updateNCharacterStream(label, x, length);
+    }
+
+    public void updateNCharacterStream(String label, Reader x) throws SQLException {
+	rs.updateNCharacterStream(label, x);
+    }
+
+    public void updateNCharacterStream(int column, Reader x, long length) throws SQLException {
+	rs.updateNCharacterStream(column, x, length);
+    }
+
+    public void updateNCharacterStream(int column, Reader x) throws SQLException {
+	rs.updateNCharacterStream(column, x);
+    }
+
+    public void updateNClob(String label, Reader x, long length) throws SQLException {
+	rs.updateNClob(label, x, length);
+    }
+
+    public void updateNClob(String label, Reader x) throws SQLException {
+	rs.updateNClob(label, x);
+    }
+
+    public void updateNClob(String label, NClob x) throws SQLException {
+	rs.updateNClob(label, x);
+    }
+
+    public void updateNClob(int column, Reader x, long length) throws SQLException {
+	rs.updateNClob(column, x, length);
+    }
+
+    public void updateNClob(int column, Reader x) throws SQLException {
+	rs.updateNClob(column, x);
+    }
+
+    public void updateNClob(int column, NClob x) throws SQLException {
+	rs.updateNClob(column, x);
+    }
+
+    public void updateNString(String label, String x) throws SQLException {
+	rs.updateNString(label, x);
+    }
+
+    public void updateNString(int column, String x) throws SQLException {
+	rs.updateNString(column, x);
+    }
+
+    public void updateNull(String label) throws SQLException {
+	rs.updateNull(label);
+    }
+
+    public void updateNull(int column) throws SQLException {
+	rs.updateNull(column);
+    }
+
+    public void updateObject(String label, Object x, int n) throws SQLException {
+	rs.updateObject(label, x, n);
+    }
+
+    public void updateObject(String label, Object x, SQLType sqlType, int n) throws SQLException {
+	rs.updateObject(label, x, sqlType, n);
+    }
+
+    public void updateObject(String label, Object x, SQLType sqlType) throws SQLException {
+	rs.updateObject(label, x, sqlType);
+    }
+
+    public void updateObject(String label, Object x) throws SQLException {
+	rs.updateObject(label, x);
+    }
+
+    public void updateObject(int column, Object x, int n) throws SQLException {
+	rs.updateObject(column, x, n);
+    }
+
+    public void updateObject(int column, Object x, SQLType sqlType, int n) throws SQLException {
+	rs.updateObject(column, x, sqlType, n);
+    }
+
+    public void updateObject(int column, Object x, SQLType sqlType) throws SQLException {
+	rs.updateObject(column, x, sqlType);
+    }
+
+    public void updateObject(int column, Object x) throws SQLException {
+	rs.updateObject(column, x);
+    }
+
+    public void updateRef(String label, Ref x) throws SQLException {
+	rs.updateRef(label, x);
+    }
+
+    public void updateRef(int column, Ref x) throws SQLException {
+	rs.updateRef(column, x);
+    }
+
+    public void updateRow() throws SQLException {
+	rs.updateRow();
+    }
+
+    public void updateRowId(String label, RowId x) throws SQLException {
+	rs.updateRowId(label, x);
+    }
+
+    public void updateRowId(int column, RowId x) throws SQLException {
+	rs.updateRowId(column, x);
+    }
+
+    public void updateSQLXML(String label, SQLXML x) throws SQLException {
+	rs.updateSQLXML(label, x);
+    }
+
+    public void updateSQLXML(int column, SQLXML x) throws SQLException {
+	rs.updateSQLXML(column, x);
+    }
+
+    public void updateShort(String label, short x) throws SQLException {
+	rs.updateShort(label, x);
+    }
+
+    public void updateShort(int column, short x) throws SQLException {
+	rs.updateShort(column, x);
+    }
+
+    public void updateString(String label, String x) throws SQLException {
+	rs.updateString(label, x);
+    }
+
+    public void updateString(int column, String x) throws SQLException {
+	rs.updateString(column, x);
+    }
+
+    public void updateTime(String label, Time x) throws SQLException {
+	rs.updateTime(label, x);
+    }
+
+    public void updateTime(int column, Time x) throws SQLException {
+	rs.updateTime(column, x);
+    }
+
+    public void updateTimestamp(String label, Timestamp x) throws SQLException {
+	rs.updateTimestamp(label, x);
+    }
+
+    public void updateTimestamp(int column, Timestamp x) throws SQLException {
+	rs.updateTimestamp(column, x);
+    }
+
+    public boolean wasNull() throws SQLException {
+	return rs.wasNull();
+    }
+}
@@ -0,0 +1,70 @@
+package com.github.emi_silva.debo;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+
+/**
+ * Reads RFC 4180 records one at a time, so a file of any size is read in constant memory.
+ * Fields may be quoted, in which case they can hold delimiters, line breaks and doubled quotes.
+ */
+class CsvReader {
+
+    private final Reader in;
+    private final char delimiter;
+    private final StringBuilder field;
+    private int next;
+
+    CsvReader(Reader in, char delimiter) throws IOException {
+	this.in = in;
+	this.delimiter = delimiter;
+	field = new StringBuilder();
+	next = in.read();
+	// a byte order mark isn't part of the first field
+	if(next == '\uFEFF') {
+	    next = in.read();
+	}
+    }
+
+    /**
+     * Returns the fields of the next record, or null at the end of the input
+     */
+    String[] next() throws IOException {
+	if(next < 0) {
+	    return null;
+	}
+	ArrayList<String> fields = new ArrayList<String>();
+	while(true) {
+	    field.setLength(0);
+	    if(next == '"') {
+		next = in.read();
+		while(next >= 0) {
+		    if(next == '"') {
+			next = in.read();
+			if(next != '"') {
+			    break;
+			}
+		    }
+		    field.append((char) next);
+		    next = in.read();
+		}
+	    }
+	    while(next >= 0 && next != delimiter && next != '\n' && next != '\r') {
+		field.append((char) next);
+		next = in.read();
+	    }
+	    fields.add(field.toString());
+	    if(next == delimiter) {
+		next = in.read();
+		continue;
+	    }
+	    if(next == '\r') {
+		next = in.read();
+	    }
+	    if(next == '\n') {
+		next = in.read();
+	    }
+	    return fields.toArray(new String[fields.size()]);
+	}
+    }
+}
@@ -0,0 +1,83 @@
+package com.github.emi_silva.debo;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+
+/**
+ * Maps the columns of a CSV statement to transactions, finding the columns by the names in its
+ * header row. Only the amount column is mandatory.
+ */
+class CsvSource implements Model.TxSource {
+
+    private final CsvReader csv;
+    private final int date;
+    private final int amount;
+    private final int currency;
+    private final int debit;
+    private final int credit;
+    private final int comment;
+
+    CsvSource(CsvReader csv, Model.ImportSpec spec) throws IOException, DeboException {
+	this.csv = csv;
+	String[] header = csv.next();
+	if(header == null) {
+	    throw new DeboException(400, "The statement is empty.");
+	}
+	date = column(header, spec.dateColumn, "date");
+	amount = column(header, spec.amountColumn, "amount");
+	currency = column(header, spec.currencyColumn, "currency");
+	debit = column(header, spec.debitColumn, "debit");
+	credit = column(header, spec.creditColumn, "credit");
+	comment = column(header, spec.commentColumn, "comment");
+	if(amount < 0) {
+	    throw new DeboException(400, "The statement has no '"
+				    + (spec.amountColumn == null ? "amount" : spec.amountColumn)
+				    + "' column.");
+	}
+    }
+
+    public Model.Transaction next() throws IOException, DeboException {
+	String[] row;
+	do {
+	    row = csv.next();
+	    if(row == null) {
+		return null;
+	    }
+	} while(row.length == 1 && row[0].trim().isEmpty());
+	Model.Transaction t = new Model.Transaction();
+	t.date = field(row, date);
+	t.currency = field(row, currency);
+	t.debit = field(row, debit);
+	t.credit = field(row, credit);
+	t.comment = field(row, comment);
+	String a = field(row, amount);
+	if(a == null) {
+	    throw new DeboException(400, "The transaction has no amount.");
+	}
+	try {
+	    t.amount = new BigDecimal(a);
+	}
+	catch(NumberFormatException e) {
+	    throw new DeboException(400, "Unrecognizable amount '" + a + "'.");
+	}
+	return t;
+    }
+
+    private static int column(String[] header, String name, String fallback) {
+	String wanted = name == null ? fallback : name;
+	for(int i = 0; i < header.length; i++) {
+	    if(header[i].trim().equalsIgnoreCase(wanted)) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    private static String field(String[] row, int column) {
+	if(column < 0 || column >= row.length) {
+	    return null;
+	}
+	String value = row[column].trim();
+	return value.isEmpty() ? null : value;
+    }
+}
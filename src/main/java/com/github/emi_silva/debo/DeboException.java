@@ -19,6 +19,10 @@ class DeboException extends Exception {
 	ERRORS.put(500, "An unexpected condition was encountered.");
 	STATUSES.put(412, "Precondition Failed");
 	ERRORS.put(412, "Please create a new token and/or user.");
+	STATUSES.put(503, "Service Unavailable");
+	ERRORS.put(503, "The server is too busy right now. Please retry later.");
+	STATUSES.put(504, "Gateway Timeout");
+	ERRORS.put(504, "Another server took too long to answer.");
     }
     
     public int code;
@@ -34,7 +38,7 @@ class DeboException extends Exception {
 	this.error = ERRORS.get(code);
     }
 
-    public HashMap toMap() {
+    public HashMap<String, Object> toMap() {
 	HashMap<String, Object> map = new HashMap<String, Object>();
 	map.put("code", code);
 	map.put("status", STATUSES.get(code));
@@ -0,0 +1,113 @@
+package com.github.emi_silva.debo;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs request handlers off the server's I/O threads, either on a fixed pool of worker threads
+ * or on a virtual thread each where the JDK has them. No more than the workers plus the queue
+ * are accepted at once; beyond that a task is turned away right away, so an overloaded
+ * database makes clients retry later instead of making every request wait longer.
+ */
+class Dispatcher {
+
+    private static final AtomicInteger WORKERS = new AtomicInteger();
+
+    private final ExecutorService executor;
+    private final Semaphore slots;
+    private final int capacity;
+    private final boolean virtual;
+
+    /**
+     * @param workers the number of tasks run at once
+     * @param queue the number of tasks waiting for a worker
+     * @param virtual whether to run each task on a virtual thread, if the JDK has them
+     */
+    Dispatcher(int workers, int queue, boolean virtual) {
+	capacity = workers + queue;
+	slots = new Semaphore(capacity);
+	ExecutorService virtualExecutor = virtual ? newVirtualExecutor() : null;
+	this.virtual = virtualExecutor != null;
+	if(virtualExecutor != null) {
+	    executor = virtualExecutor;
+	}
+	else {
+	    // the slots bound the queue
+	    executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+					      new LinkedBlockingQueue<Runnable>(),
+					      Dispatcher::newWorker);
+	}
+    }
+
+    private static Thread newWorker(Runnable r) {
+	Thread t = new Thread(r, "debo-worker-" + WORKERS.incrementAndGet());
+	t.setDaemon(true);
+	return t;
+    }
+
+    /**
+     * Returns an executor starting a virtual thread per task, or null before Java 21
+     */
+    private static ExecutorService newVirtualExecutor() {
+	try {
+	    Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+	    return (ExecutorService) factory.invoke(null);
+	}
+	catch(ReflectiveOperationException e) {
+	    return null;
+	}
+    }
+
+    /**
+     * Runs a task unless there are already as many as the workers and the queue can take
+     * @return whether the task was accepted
+     */
+    boolean execute(Runnable task) {
+	if(!slots.tryAcquire()) {
+	    return false;
+	}
+	try {
+	    executor.execute(() -> {
+		    try {
+			task.run();
+		    }
+		    finally {
+			slots.release();
+		    }
+		});
+	}
+	catch(RejectedExecutionException e) {
+	    slots.release();
+	    return false;
+	}
+	return true;
+    }
+
+    /**
+     * Returns the number of tasks running or waiting for a worker
+     */
+    int pending() {
+	return capacity - slots.availablePermits();
+    }
+
+    /**
+     * Returns whether tasks run on virtual threads
+     */
+    boolean isVirtual() {
+	return virtual;
+    }
+
+    /**
+     * Stops accepting tasks and interrupts the running ones
+     */
+    void shutdown() {
+	executor.shutdownNow();
+    }
+}
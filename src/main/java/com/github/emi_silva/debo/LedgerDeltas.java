@@ -0,0 +1,98 @@
+package com.github.emi_silva.debo;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The changes a set of transaction writes makes to the running balances and to the month-end
+ * checkpoints, keyed by account and currency. Keys are sorted, so rows are always locked in
+ * the same order and concurrent writers can't deadlock.
+ */
+class LedgerDeltas {
+
+    final TreeMap<Long, BigDecimal> balances;
+    final TreeMap<Long, TreeMap<LocalDate, BigDecimal>> months;
+
+    LedgerDeltas() {
+	balances = new TreeMap<Long, BigDecimal>();
+	months = new TreeMap<Long, TreeMap<LocalDate, BigDecimal>>();
+    }
+
+    /**
+     * Adds a transaction's amount to its debit account and subtracts it from its credit account
+     */
+    void add(int currency, int debit, int credit, Timestamp date, BigDecimal amount) {
+	add(debit, currency, date, amount);
+	add(credit, currency, date, amount.negate());
+    }
+
+    /**
+     * Undoes a transaction, which means swapping its debit and credit accounts
+     */
+    void revert(int currency, int debit, int credit, Timestamp date, BigDecimal amount) {
+	add(currency, credit, debit, date, amount);
+    }
+
+    /**
+     * Adds an amount to an account's balance in a currency
+     */
+    void add(int account, int currency, Timestamp date, BigDecimal amount) {
+	balances.merge(key(account, currency), amount, BigDecimal::add);
+	addMonth(account, currency, month(date), amount);
+    }
+
+    /**
+     * Adds an amount to an account's checkpoints from a month on, but not to its running balance
+     */
+    void addMonth(int account, int currency, LocalDate month, BigDecimal amount) {
+	months.computeIfAbsent(key(account, currency), k -> new TreeMap<LocalDate, BigDecimal>())
+	    .merge(month, amount, BigDecimal::add);
+    }
+
+    /**
+     * Returns the running balance change of every pair that has a balance or a checkpoint to
+     * change, in key order. A pair whose months move but whose balance doesn't, like a
+     * transaction that only changed its date, is there with a zero change, so writing it still
+     * locks the pair's balance row.
+     */
+    TreeMap<Long, BigDecimal> balanceRows() {
+	TreeMap<Long, BigDecimal> rows = new TreeMap<Long, BigDecimal>();
+	for(Map.Entry<Long, BigDecimal> delta : balances.entrySet()) {
+	    if(delta.getValue().signum() != 0) {
+		rows.put(delta.getKey(), delta.getValue());
+	    }
+	}
+	for(Map.Entry<Long, TreeMap<LocalDate, BigDecimal>> pair : months.entrySet()) {
+	    for(BigDecimal delta : pair.getValue().values()) {
+		if(delta.signum() != 0) {
+		    rows.putIfAbsent(pair.getKey(), BigDecimal.ZERO);
+		    break;
+		}
+	    }
+	}
+	return rows;
+    }
+
+    /**
+     * Returns the first day of the month a date falls in, in UTC
+     */
+    static LocalDate month(Timestamp date) {
+	return date.toInstant().atOffset(ZoneOffset.UTC).toLocalDate().withDayOfMonth(1);
+    }
+
+    static long key(int account, int currency) {
+	return ((long) account << 32) | (currency & 0xffffffffL);
+    }
+
+    static int account(long key) {
+	return (int) (key >>> 32);
+    }
+
+    static int currency(long key) {
+	return (int) key;
+    }
+}
@@ -0,0 +1,407 @@
+package com.github.emi_silva.debo;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Makes up users with currencies of every type, accounts of every type and transactions
+ * between them, written as CSV for COPY. Everything follows from the seed: each user draws from
+ * generators seeded with the seed, the user's number and the table, so a table can be written
+ * on its own and the same spec always gives the same rows. Ids are consecutive from the first
+ * ones given, so the tables reference each other without asking the database.
+ */
+class LedgerGenerator {
+
+    private static final String[][] FIAT = {
+	{"USD", "United States Dollar", "1"}, {"EUR", "Euro", "1.1"},
+	{"GBP", "Pound Sterling", "1.3"}, {"JPY", "Japanese Yen", "0.007"},
+	{"CHF", "Swiss Franc", "1.1"}, {"CAD", "Canadian Dollar", "0.75"},
+	{"AUD", "Australian Dollar", "0.67"}, {"MXN", "Mexican Peso", "0.055"},
+	{"BRL", "Brazilian Real", "0.2"}, {"COP", "Colombian Peso", "0.00025"}};
+    private static final String[][] CRYPTO = {
+	{"BTC", "Bitcoin", "30000"}, {"ETH", "Ether", "2000"}, {"SOL", "Solana", "50"},
+	{"XMR", "Monero", "150"}, {"LTC", "Litecoin", "80"}, {"ADA", "Cardano", "0.4"},
+	{"DOT", "Polkadot", "6"}, {"ZEC", "Zcash", "30"}};
+    private static final String[][] STABLECOIN = {
+	{"DAI", "Dai", "1"}, {"USC", "USD Coin", "1"}, {"TUS", "TrueUSD", "1"},
+	{"PAX", "Pax Dollar", "1"}, {"GUS", "Gemini Dollar", "1"}};
+
+    // account names by type, in account_types order
+    private static final String[][] ACCOUNTS = {
+	{"checking", "savings", "cash", "wallet", "brokerage", "exchange", "cold storage",
+	 "emergency fund"},
+	{"credit card", "mortgage", "car loan", "student loan", "line of credit"},
+	{"salary", "freelance", "interest", "dividends", "rental income", "bonus"},
+	{"groceries", "rent", "restaurants", "transport", "utilities", "health", "travel",
+	 "entertainment", "clothing", "education", "gifts", "subscriptions"},
+	{"opening balances", "equity"}};
+    static final int ASSET = 0;
+    static final int LIABILITY = 1;
+    static final int INCOME = 2;
+    static final int EXPENSE = 3;
+    static final int EQUITY = 4;
+
+    // median amount in dollars of an expense, by account name; others are 40
+    private static final String[][] EXPENSE_MEDIANS = {
+	{"groceries", "60"}, {"rent", "1200"}, {"restaurants", "35"}, {"transport", "15"},
+	{"utilities", "90"}, {"travel", "300"}, {"education", "250"}, {"subscriptions", "12"}};
+
+    private static final String[] MERCHANTS = {
+	"supermarket", "bakery", "farmers market", "pharmacy", "gas station", "bookstore",
+	"coffee shop", "pizzeria", "sushi bar", "taxi", "subway", "airline", "hotel", "cinema",
+	"electricity", "water bill", "internet", "phone", "gym", "doctor", "dentist", "landlord",
+	"hardware store", "streaming", "concert", "museum", "florist", "tailor"};
+    private static final String[] NOTES = {
+	"with friends", "weekly", "monthly", "online", "refund", "birthday", "weekend",
+	"business trip", "shared", "late fee", "for the kids", "annual"};
+
+    private static final char[] SYMBOLS = ("0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ"
+					   + "abcdefghijklmnopqrstuvwxyz").toCharArray();
+    private static final String TOKEN_EXPIRES = "2100-01-01T00:00:00Z";
+
+    // tables, mixed into the seed of each user's generators
+    private static final int USERS = 1;
+    private static final int CURRENCIES = 2;
+    private static final int TRANSACTIONS = 3;
+
+    /**
+     * What to generate. Counts of currencies and accounts are per user, and capped by the
+     * names available for each type.
+     */
+    static class Spec {
+	long seed = 1;
+	int users = 10;
+	int transactions = 10000;
+	int fiat = 2;
+	int crypto = 2;
+	int stablecoin = 1;
+	int assets = 3;
+	int liabilities = 1;
+	int incomes = 2;
+	int expenses = 8;
+	int equities = 1;
+	LocalDate from = LocalDate.of(2018, 1, 1);
+	LocalDate to = LocalDate.of(2026, 1, 1);
+
+	/**
+	 * Reads a spec from arguments like users=100, falling back to the defaults
+	 */
+	static Spec parse(String[] args) {
+	    Spec spec = new Spec();
+	    for(String arg : args) {
+		int eq = arg.indexOf('=');
+		if(eq < 0) {
+		    throw new IllegalArgumentException("Expected key=value: " + arg);
+		}
+		String key = arg.substring(0, eq);
+		String value = arg.substring(eq + 1);
+		switch(key) {
+		case "seed": spec.seed = Long.valueOf(value); break;
+		case "users": spec.users = Integer.valueOf(value); break;
+		case "transactions": spec.transactions = Integer.valueOf(value); break;
+		case "fiat": spec.fiat = Integer.valueOf(value); break;
+		case "crypto": spec.crypto = Integer.valueOf(value); break;
+		case "stablecoin": spec.stablecoin = Integer.valueOf(value); break;
+		case "assets": spec.assets = Integer.valueOf(value); break;
+		case "liabilities": spec.liabilities = Integer.valueOf(value); break;
+		case "incomes": spec.incomes = Integer.valueOf(value); break;
+		case "expenses": spec.expenses = Integer.valueOf(value); break;
+		case "equities": spec.equities = Integer.valueOf(value); break;
+		case "from": spec.from = LocalDate.parse(value); break;
+		case "to": spec.to = LocalDate.parse(value); break;
+		default: throw new IllegalArgumentException("Unknown key: " + key);
+		}
+	    }
+	    spec.fiat = Math.min(Math.max(spec.fiat, 1), FIAT.length);
+	    spec.crypto = Math.min(Math.max(spec.crypto, 0), CRYPTO.length);
+	    spec.stablecoin = Math.min(Math.max(spec.stablecoin, 0), STABLECOIN.length);
+	    spec.assets = Math.min(Math.max(spec.assets, 1), ACCOUNTS[ASSET].length);
+	    spec.liabilities = Math.min(Math.max(spec.liabilities, 1), ACCOUNTS[LIABILITY].length);
+	    spec.incomes = Math.min(Math.max(spec.incomes, 1), ACCOUNTS[INCOME].length);
+	    spec.expenses = Math.min(Math.max(spec.expenses, 1), ACCOUNTS[EXPENSE].length);
+	    spec.equities = Math.min(Math.max(spec.equities, 1), ACCOUNTS[EQUITY].length);
+	    if(!spec.from.isBefore(spec.to)) {
+		throw new IllegalArgumentException("from must be before to.");
+	    }
+	    return spec;
+	}
+
+	int currencies() {
+	    return fiat + crypto + stablecoin;
+	}
+
+	int accounts() {
+	    return assets + liabilities + incomes + expenses + equities;
+	}
+
+	public String toString() {
+	    return users + " users with " + transactions + " transactions each, seed " + seed;
+	}
+    }
+
+    private final Spec spec;
+    private final int firstUser;
+    private final int firstCurrency;
+    private final int firstAccount;
+    private final int firstTransaction;
+    private final long fromSecond;
+    private final long span;
+
+    /**
+     * @param firstUser the id of the first user; the ids of the others follow
+     */
+    LedgerGenerator(Spec spec, int firstUser, int firstCurrency, int firstAccount,
+		    int firstTransaction) {
+	this.spec = spec;
+	this.firstUser = firstUser;
+	this.firstCurrency = firstCurrency;
+	this.firstAccount = firstAccount;
+	this.firstTransaction = firstTransaction;
+	fromSecond = spec.from.atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+	span = spec.to.atStartOfDay(ZoneOffset.UTC).toEpochSecond() - fromSecond;
+    }
+
+    /**
+     * Returns the number of transactions written, across all users
+     */
+    long transactions() {
+	return (long) spec.users * spec.transactions;
+    }
+
+    /**
+     * Returns the email of the nth user of a seed
+     */
+    static String email(long seed, int user) {
+	return "ledger-" + seed + "-" + user + "@debo.test";
+    }
+
+    /**
+     * Returns the session token of the nth user of a seed, which never expires
+     */
+    static String token(long seed, int user) {
+	Random random = random(seed, user, USERS);
+	char[] token = new char[64];
+	for(int i = 0; i < token.length; i++) {
+	    token[i] = SYMBOLS[random.nextInt(SYMBOLS.length)];
+	}
+	return new String(token);
+    }
+
+    /**
+     * Returns the code of the currency most of a user's transactions are in
+     */
+    String currency(int user) {
+	return currenciesOf(user)[0][0];
+    }
+
+    /**
+     * Returns the names of every user's accounts of a type
+     */
+    String[] accounts(int type) {
+	return Arrays.copyOf(ACCOUNTS[type], accountCounts()[type]);
+    }
+
+    /**
+     * Writes id, email, session_token, token_expires
+     */
+    void users(Writer out) throws IOException {
+	for(int u = 0; u < spec.users; u++) {
+	    out.append(String.valueOf(firstUser + u)).append(',').append(email(spec.seed, u))
+		.append(',').append(token(spec.seed, u)).append(',').append(TOKEN_EXPIRES)
+		.append('\n');
+	}
+    }
+
+    /**
+     * Writes id, user_id, code, name, type
+     */
+    void currencies(Writer out) throws IOException {
+	for(int u = 0; u < spec.users; u++) {
+	    String[][] currencies = currenciesOf(u);
+	    for(int c = 0; c < currencies.length; c++) {
+		out.append(String.valueOf(firstCurrency + u * currencies.length + c)).append(',')
+		    .append(String.valueOf(firstUser + u)).append(',').append(currencies[c][0])
+		    .append(',').append(currencies[c][1]).append(',')
+		    .append(String.valueOf(currencyType(c))).append('\n');
+	    }
+	}
+    }
+
+    /**
+     * Writes id, user_id, name, type
+     */
+    void accounts(Writer out) throws IOException {
+	int[] counts = accountCounts();
+	for(int u = 0; u < spec.users; u++) {
+	    int id = firstAccount + u * spec.accounts();
+	    for(int type = 0; type < counts.length; type++) {
+		for(int a = 0; a < counts[type]; a++) {
+		    out.append(String.valueOf(id++)).append(',')
+			.append(String.valueOf(firstUser + u)).append(',')
+			.append(ACCOUNTS[type][a]).append(',')
+			.append(String.valueOf(type + 1)).append('\n');
+		}
+	    }
+	}
+    }
+
+    /**
+     * Writes id, user_id, date, amount, currency, debit, credit, comment. A user's first
+     * transactions bring every asset account its opening balance from equity; the rest are
+     * mostly expenses, with some income, transfers between assets and debt payments, spread
+     * evenly over the dates of the spec.
+     */
+    void transactions(Writer out) throws IOException {
+	int[] counts = accountCounts();
+	int[] offsets = new int[counts.length];
+	for(int type = 1; type < counts.length; type++) {
+	    offsets[type] = offsets[type - 1] + counts[type - 1];
+	}
+	StringBuilder row = new StringBuilder(160);
+	int id = firstTransaction;
+	for(int u = 0; u < spec.users; u++) {
+	    Random random = random(spec.seed, u, TRANSACTIONS);
+	    String[][] currencies = currenciesOf(u);
+	    int userId = firstUser + u;
+	    int currencyBase = firstCurrency + u * currencies.length;
+	    int accountBase = firstAccount + u * spec.accounts();
+	    for(int i = 0; i < spec.transactions; i++) {
+		long second = fromSecond + (long) ((i + random.nextDouble()) * span
+						   / spec.transactions);
+		int currency = 0;
+		if(random.nextInt(4) == 0) {
+		    currency = random.nextInt(currencies.length);
+		}
+		int debit;
+		int credit;
+		double dollars;
+		String comment;
+		int kind = random.nextInt(100);
+		if(i < counts[ASSET]) {
+		    debit = offsets[ASSET] + i;
+		    credit = offsets[EQUITY] + random.nextInt(counts[EQUITY]);
+		    currency = 0;
+		    dollars = logNormal(random, 3000, 0.8);
+		    comment = "opening balance";
+		}
+		else if(kind < 70) {
+		    int expense = random.nextInt(counts[EXPENSE]);
+		    debit = offsets[EXPENSE] + expense;
+		    credit = random.nextInt(4) == 0 ? offsets[LIABILITY]
+			+ random.nextInt(counts[LIABILITY]) : offsets[ASSET]
+			+ random.nextInt(counts[ASSET]);
+		    dollars = logNormal(random, expenseMedian(ACCOUNTS[EXPENSE][expense]), 0.6);
+		    comment = MERCHANTS[random.nextInt(MERCHANTS.length)];
+		    if(random.nextInt(3) == 0) {
+			comment += " " + NOTES[random.nextInt(NOTES.length)];
+		    }
+		}
+		else if(kind < 80) {
+		    int income = random.nextInt(counts[INCOME]);
+		    debit = offsets[ASSET] + random.nextInt(counts[ASSET]);
+		    credit = offsets[INCOME] + income;
+		    dollars = logNormal(random, 2500, 0.5);
+		    comment = ACCOUNTS[INCOME][income] + " " + LocalDate.ofEpochDay(second / 86400)
+			.getMonth().toString().toLowerCase();
+		}
+		else if(kind < 92 && counts[ASSET] > 1) {
+		    int from = random.nextInt(counts[ASSET]);
+		    int to = (from + 1 + random.nextInt(counts[ASSET] - 1)) % counts[ASSET];
+		    debit = offsets[ASSET] + to;
+		    credit = offsets[ASSET] + from;
+		    dollars = logNormal(random, 500, 1.0);
+		    comment = "transfer to " + ACCOUNTS[ASSET][to];
+		}
+		else {
+		    int liability = random.nextInt(counts[LIABILITY]);
+		    debit = offsets[LIABILITY] + liability;
+		    credit = offsets[ASSET] + random.nextInt(counts[ASSET]);
+		    dollars = logNormal(random, 400, 0.7);
+		    comment = ACCOUNTS[LIABILITY][liability] + " payment";
+		}
+		row.setLength(0);
+		row.append(id++).append(',').append(userId).append(',')
+		    .append(Instant.ofEpochSecond(second)).append(',')
+		    .append(amount(dollars, currencies[currency], currencyType(currency)))
+		    .append(',').append(currencyBase + currency).append(',')
+		    .append(accountBase + debit).append(',').append(accountBase + credit)
+		    .append(',').append(comment).append('\n');
+		out.append(row);
+	    }
+	}
+    }
+
+    /**
+     * Picks the user's currencies of each type, starting from a different one for each user
+     */
+    private String[][] currenciesOf(int user) {
+	Random random = random(spec.seed, user, CURRENCIES);
+	String[][] currencies = new String[spec.currencies()][];
+	int c = 0;
+	int fiat = random.nextInt(FIAT.length);
+	for(int i = 0; i < spec.fiat; i++) {
+	    currencies[c++] = FIAT[(fiat + i) % FIAT.length];
+	}
+	int crypto = random.nextInt(CRYPTO.length);
+	for(int i = 0; i < spec.crypto; i++) {
+	    currencies[c++] = CRYPTO[(crypto + i) % CRYPTO.length];
+	}
+	int stablecoin = random.nextInt(STABLECOIN.length);
+	for(int i = 0; i < spec.stablecoin; i++) {
+	    currencies[c++] = STABLECOIN[(stablecoin + i) % STABLECOIN.length];
+	}
+	return currencies;
+    }
+
+    /**
+     * Returns the currency_types id of a user's nth currency
+     */
+    private int currencyType(int c) {
+	if(c < spec.fiat) {
+	    return 1;
+	}
+	return c < spec.fiat + spec.crypto ? 2 : 3;
+    }
+
+    private int[] accountCounts() {
+	return new int[] {spec.assets, spec.liabilities, spec.incomes, spec.expenses,
+			  spec.equities};
+    }
+
+    /**
+     * Converts dollars to a positive amount of a currency, to the cent or to the satoshi
+     */
+    private static String amount(double dollars, String[] currency, int type) {
+	int scale = type == 2 ? 8 : 2;
+	long units = Math.max(1, Math.round(dollars / Double.valueOf(currency[2])
+					    * Math.pow(10, scale)));
+	return BigDecimal.valueOf(units, scale).toPlainString();
+    }
+
+    private static double expenseMedian(String expense) {
+	for(String[] median : EXPENSE_MEDIANS) {
+	    if(median[0].equals(expense)) {
+		return Double.valueOf(median[1]);
+	    }
+	}
+	return 40;
+    }
+
+    private static double logNormal(Random random, double median, double sigma) {
+	return median * Math.exp(sigma * random.nextGaussian());
+    }
+
+    private static Random random(long seed, int user, int table) {
+	// one splitmix64 step, so neighbouring users don't get correlated generators
+	long z = seed * 0x9E3779B97F4A7C15L + user * 0xBF58476D1CE4E5B9L + table;
+	z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+	z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+	return new Random(z ^ (z >>> 31));
+    }
+}
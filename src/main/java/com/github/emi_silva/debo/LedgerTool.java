@@ -0,0 +1,45 @@
+package com.github.emi_silva.debo;
+
+/**
+ * Loads made-up users and ledgers for load and scale tests. Arguments are key=value pairs;
+ * see LedgerGenerator.Spec for the keys and their defaults. The same arguments always make the
+ * same ledgers, and the users can log in with LedgerGenerator.token().
+ * Usage: LedgerTool [seed=1] [users=10] [transactions=10000] ...
+ */
+public class LedgerTool {
+
+    public static void main(String[] args) {
+	LedgerGenerator.Spec spec;
+	try {
+	    spec = LedgerGenerator.Spec.parse(args);
+	}
+	catch(IllegalArgumentException e) {
+	    System.err.println(e.getMessage());
+	    System.err.println("Usage: LedgerTool [seed=1] [users=10] [transactions=10000] ...");
+	    System.exit(2);
+	    return;
+	}
+	Model model;
+	try {
+	    model = new Model();
+	}
+	catch(Exception e) {
+	    System.err.println(e.toString());
+	    System.exit(1);
+	    return;
+	}
+	int status = 0;
+	try {
+	    long start = System.nanoTime();
+	    long rows = model.loadLedger(spec);
+	    System.out.println("Loaded " + spec + ": " + rows + " transactions in "
+			       + (System.nanoTime() - start) / 1000000000 + " s.");
+	}
+	catch(DeboException e) {
+	    System.err.println(e.error);
+	    status = 1;
+	}
+	model.close();
+	System.exit(status);
+    }
+}
@@ -2,36 +2,86 @@ package com.github.emi_silva.debo;
 
 import java.util.Properties;
 import java.security.SecureRandom;
-import com.mashape.unirest.http.Unirest;
-import com.mashape.unirest.http.HttpResponse;
-import com.mashape.unirest.http.JsonNode;
-import com.mashape.unirest.http.exceptions.UnirestException;
-import org.json.JSONObject;
-import org.json.JSONException;
 import java.util.ArrayList;
 import java.time.Instant;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.OutputStream;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
 import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
 import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Map;
+import java.time.OffsetDateTime;
+import java.time.LocalDateTime;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
 
 public class Logic {
 
     private Model model;
     private Properties authProps;
+    private OAuthClient oauth;
+    private SignedTokens signedTokens;
+    private SingleFlight<String, HashMap<String, String>> logins;
     private SecureRandom random;
     private static final char[] symbols = ("0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ"
 					   + "abcdefghijklmnopqrstuvwxyz").toCharArray();
 
     public Logic() throws FileNotFoundException, IOException, NullPointerException,
-			  SQLException {
-	model = new Model();
+			  SQLException, DeboException {
+	this(new Model(true));
+	model.refreshRates();
+	model.refreshTypes();
+	if(signedTokens != null) {
+	    // logouts from before a restart still revoke the tokens issued until then
+	    long lifetime = Long.valueOf(authProps.getProperty("tokenLifetime"));
+	    signedTokens.revokeAll(model.getLogouts(lifetime));
+	}
+    }
+
+    Logic(Model model) throws FileNotFoundException, IOException, NullPointerException {
+	this.model = model;
 	authProps = model.readProps("/auth.properties");
+	oauth = new OAuthClient(authProps);
+	if(authProps.getProperty("tokenMode").equals("signed")) {
+	    signedTokens = new SignedTokens(authProps.getProperty("tokenKey"),
+					    Long.valueOf(authProps.getProperty("tokenLifetime")));
+	}
+	logins = new SingleFlight<String, HashMap<String, String>>();
 	byte[] seed = authProps.getProperty("seed").getBytes();
 	random = new SecureRandom(seed);
     }
 
+    /**
+     * Reads properties from a file under src/main/resources, falling back to its defaults file
+     */
+    public Properties readProps(String relPath) throws FileNotFoundException, IOException,
+						       NullPointerException {
+	return model.readProps(relPath);
+    }
+
+    /**
+     * Adds the gauges of the database, the caches and the logins in progress
+     */
+    void addMetrics(Metrics metrics) {
+	model.addMetrics(metrics);
+	metrics.gauge("debo_logins_running", "Logins waiting for their session", null,
+		      logins::size);
+	if(signedTokens != null) {
+	    metrics.gauge("debo_token_revocations", "Users whose signed tokens are revoked", null,
+			  signedTokens::revocations);
+	}
+    }
+
     /**
      * Builds the Google OAuth URI the client will be redirected to for authorization
      */
@@ -53,69 +103,27 @@ public class Logic {
 	if(code == null) {
 	    throw new DeboException(400, "Please provide a code.");
 	}
-	String accessTokenEndpoint = authProps.getProperty("accessTokenEndpoint");
-	String contentHeader = authProps.getProperty("contentHeader");
-	String clientId = authProps.getProperty("clientId");
-	String clientSecret = authProps.getProperty("clientSecret");
-	String redirectUri = authProps.getProperty("redirectUri");
-	String grantType = authProps.getProperty("grantType");
-	HttpResponse<JsonNode> response;
-	try {
-	    response = Unirest.post(accessTokenEndpoint)
-		.header("Content-Type", contentHeader)
-		.field("code", code)
-		.field("client_id", clientId)
-		.field("client_secret", clientSecret)
-		.field("redirect_uri", redirectUri)
-		.field("grantType", grantType)
-		.asJson();
-	}
-	catch(UnirestException e) {
-	    throw new DeboException(500, "A network error occurred.");
-	}
-	JSONObject body;
-	try {
-	    body = new JSONObject(response.getBody().toString());
-	}
-	catch(JSONException e) {
-	    throw new DeboException(500, "A network error occurred.");
-	}
-	if(!body.has("access_token")) {
-	    throw new DeboException(400, "Could not obtain an access token.");
-	}
-	String accessToken = body.getString("access_token");
-	return accessToken;
+	return OAuthClient.await(oauth.accessToken(code));
     }
 
     /**
      * Gets the user's email given the access token
      */
     public String getEmail(String accessToken) throws DeboException {
-	String APIEndpoint = authProps.getProperty("APIEndpoint");
-	String alt = authProps.getProperty("alt");
-	String URI = APIEndpoint + "?alt=" + alt;
-	String authHeader = authProps.getProperty("authKeyword") + " " + accessToken;
-	HttpResponse<JsonNode> response;
-	try {
-	response = Unirest.get(URI)
-	    .header("Authorization", authHeader)
-	    .asJson();
-	}
-	catch(UnirestException e) {
-	    throw new DeboException(500, "A network error ocurred.");
-	}
-	JSONObject body;
-	try {
-	    body = new JSONObject(response.getBody().toString());
-	}
-	catch(JSONException e) {
-	    throw new DeboException(500, "A network error occurred.");
-	}
-	if(!body.has("email")) {
-	    throw new DeboException(500, "Could not obtain the user's email.");
+	return OAuthClient.await(oauth.email(accessToken));
+    }
+
+    /**
+     * Exchanges the code provided by the authenticated user for their email, without
+     * blocking while Google answers
+     */
+    public CompletableFuture<String> login(String code) {
+	if(code == null) {
+	    CompletableFuture<String> failed = new CompletableFuture<String>();
+	    failed.completeExceptionally(new DeboException(400, "Please provide a code."));
+	    return failed;
 	}
-	String email = body.getString("email");
-	return email;
+	return oauth.login(code);
     }
 
     /**
@@ -123,6 +131,10 @@ public class Logic {
      * Inspired by https://stackoverflow.com/a/41156/2430274
      */
     public String newRandomString(int length) {
+	return newRandomString(random, length);
+    }
+
+    static String newRandomString(SecureRandom random, int length) {
 	char[] token = new char[length];
 	for(int i = 0; i < token.length; i++) {
 	    token[i] = symbols[random.nextInt(symbols.length)];
@@ -134,6 +146,10 @@ public class Logic {
      * Creates a new session token (and a user if they don't already exist)
      */
     private HashMap<String, String> newToken(String email) throws DeboException {
+	if(signedTokens != null) {
+	    String sessionToken = signedTokens.issue(model.getUserId(email), Instant.now());
+	    return model.newToken(email, sessionToken, SignedTokens.expires(sessionToken));
+	}
 	int length = Integer.valueOf(authProps.getProperty("tokenLength"));
 	String sessionToken = newRandomString(length);
 	long lifetime = Long.valueOf(authProps.getProperty("tokenLifetime"));
@@ -147,7 +163,11 @@ public class Logic {
      * If the user doesn't exist, create them and a new session token.
      */
     public HashMap<String, String> getSession(String email) throws DeboException {
-	HashMap<String, String> session;
+	// concurrent logins of a user share one session instead of replacing each other's token
+	return new HashMap<String, String>(logins.run(email, () -> session(email)));
+    }
+
+    private HashMap<String, String> session(String email) throws DeboException {
 	try {
 	    return model.getSession(email);
 	}
@@ -172,6 +192,10 @@ public class Logic {
 	    throw new DeboException(401, "Invalid authorization header format.");
 	}
 	String sessionToken = authElems[1];
+	// opaque tokens issued before switching to signed ones are still looked up
+	if(signedTokens != null && SignedTokens.isSigned(sessionToken)) {
+	    return signedTokens.verify(sessionToken, Instant.now());
+	}
 	int userId = model.authenticate(sessionToken);
 	return userId;
     }
@@ -180,6 +204,9 @@ public class Logic {
      * Logs a user out
      */
     public void logout(int userId) throws DeboException {
+	if(signedTokens != null) {
+	    signedTokens.revoke(userId, Instant.now());
+	}
 	model.logout(userId);
     }
 
@@ -191,6 +218,20 @@ public class Logic {
 	return model.getAccountTypes();
     }
 
+    /**
+     * Returns the currency and account types loaded at startup
+     */
+    TypeRegistry getTypes() {
+	return model.getTypes();
+    }
+
+    /**
+     * Reloads the currency and account types from the database
+     */
+    public void reloadTypes() throws DeboException {
+	model.reloadTypes();
+    }
+
     public Model.Currency postCurrencies(Model.Currency c, int userId) throws DeboException {
 	if(c.code == null || c.name == null || c.type == null) {
 	    throw new DeboException(400, "The following fields are required: code, name, type.");
@@ -225,6 +266,63 @@ public class Logic {
 	return newTx;
     }
 
+    /**
+     * Creates many transactions at once. Either all of them are created or none is.
+     */
+    public ArrayList<Model.Transaction> postTransactionsBatch(Model.Transaction[] ts, int userId)
+	throws DeboException {
+	if(ts == null || ts.length == 0) {
+	    throw new DeboException(400, "The batch must contain at least one transaction.");
+	}
+	return model.postTransactionsBatch(ts, userId);
+    }
+
+    /**
+     * Writes all of a user's transactions, accounts or currencies as CSV
+     */
+    public void exportCsv(String table, int userId, OutputStream out)
+	throws DeboException, IOException {
+	model.copyCsv(table, userId, out);
+    }
+
+    /**
+     * Imports the transactions of a CSV or OFX statement, skipping the ones already imported
+     */
+    public Model.ImportResult importTransactions(Model.ImportSpec spec, byte[] statement,
+						 int userId) throws DeboException {
+	if(statement == null || statement.length == 0) {
+	    throw new DeboException(400, "The statement is empty.");
+	}
+	String format = spec.format;
+	if(format == null) {
+	    String start = new String(statement, 0, Math.min(statement.length, 64),
+				      StandardCharsets.UTF_8).trim();
+	    format = start.startsWith("OFXHEADER") || start.startsWith("<?xml") ? "ofx" : "csv";
+	}
+	Reader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(statement),
+								 StandardCharsets.UTF_8));
+	try {
+	    Model.TxSource source;
+	    if(format.equals("csv")) {
+		String delimiter = spec.delimiter == null ? "," : spec.delimiter;
+		if(delimiter.length() != 1) {
+		    throw new DeboException(400, "The delimiter must be a single character.");
+		}
+		source = new CsvSource(new CsvReader(reader, delimiter.charAt(0)), spec);
+	    }
+	    else if(format.equals("ofx")) {
+		source = new OfxReader(reader);
+	    }
+	    else {
+		throw new DeboException(400, "Valid formats are: csv, ofx.");
+	    }
+	    return model.importTransactions(source, spec, userId);
+	}
+	catch(IOException e) {
+	    throw new DeboException(400, "The statement couldn't be read.");
+	}
+    }
+
     public ArrayList<Model.Currency> getCurrencies(Model.Currency c, int userId)
 	throws DeboException {
 	return model.getCurrencies(c, userId);
@@ -232,11 +330,24 @@ public class Logic {
     public ArrayList<Model.Account> getAccounts(Model.Account a, int userId) throws DeboException {
 	return model.getAccounts(a, userId);
     }
-    public ArrayList<Model.Transaction> getTransactions(Model.TxFilter t, int userId)
-	throws DeboException {
+    public Model.TxPage getTransactions(Model.TxFilter t, int userId) throws DeboException {
+	if(t.limit != null && t.limit <= 0) {
+	    throw new DeboException(400, "The limit must be positive.");
+	}
+	if(t.commentMatches != null && t.commentMatches.trim().isEmpty()) {
+	    throw new DeboException(400, "Full-text searches cannot be empty.");
+	}
 	return model.getTransactions(t, userId);
     }
 
+    /**
+     * Hands every transaction matching a filter to a handler, one at a time
+     */
+    public void exportTransactions(Model.TxFilter t, int userId, Model.TxHandler handler)
+	throws DeboException, IOException {
+	model.streamTransactions(t, userId, handler);
+    }
+
     public Model.Currency getCurrency(String code, int userId) throws DeboException {
 	if(code.length() != 3) {
 	    throw new DeboException(400, "Currency codes must be three letters long.");
@@ -332,15 +443,84 @@ public class Logic {
 	model.deleteTransaction(id, userId);
     }
 
+    public Model.Group postGroup(Model.Group g, int userId) throws DeboException {
+	if(g.name == null || g.name.length() == 0) {
+	    throw new DeboException(400, "Group names cannot be empty.");
+	}
+	return model.getGroup(model.postGroup(g, userId), userId);
+    }
+    public Model.Group getGroup(String idString, int userId) throws DeboException {
+	return model.getGroup(groupId(idString), userId);
+    }
+    public Model.Group postGroupMember(String idString, Model.Member m, int userId)
+	throws DeboException {
+	int id = groupId(idString);
+	if(m.email == null || m.email.length() == 0) {
+	    throw new DeboException(400, "Member emails cannot be empty.");
+	}
+	model.postGroupMember(id, m.email, userId);
+	return model.getGroup(id, userId);
+    }
+    public Model.Expense postExpense(String idString, Model.Expense e, int userId)
+	throws DeboException {
+	int id = groupId(idString);
+	if(e.amount == null) {
+	    throw new DeboException(400, "Expenses must have an amount.");
+	}
+	if(e.amount.signum() <= 0) {
+	    throw new DeboException(400, "Expense amounts must be positive.");
+	}
+	if(e.currency == null || e.currency.length() != 3) {
+	    throw new DeboException(400, "Currency codes must be three letters long.");
+	}
+	e.id = model.postExpense(id, e, userId);
+	return e;
+    }
+
+    /**
+     * Returns transfers that leave every member of a group even, by currency. They're few, fewer
+     * than the members, but not always the fewest possible.
+     */
+    public ArrayList<Model.Transfer> settle(String idString, int userId) throws DeboException {
+	ArrayList<Model.Transfer> transfers = new ArrayList<Model.Transfer>();
+	HashMap<String, HashMap<String, BigDecimal>> balances =
+	    model.getGroupBalances(groupId(idString), userId);
+	for(String currency : new TreeSet<String>(balances.keySet())) {
+	    transfers.addAll(Settlement.settle(balances.get(currency), currency));
+	}
+	return transfers;
+    }
+
+    private static int groupId(String idString) throws DeboException {
+	int id;
+	try {
+	    id = Integer.valueOf(idString);
+	}
+	catch(NumberFormatException e) {
+	    throw new DeboException(400, "Group IDs must be integers.");
+	}
+	if(id < 0) {
+	    throw new DeboException(400, "Group IDs must be positive.");
+	}
+	return id;
+    }
+
     /**
      * Returns an account's normal balance (debit or credit)
      */
     public String getNB(Model.Account account) throws DeboException {
-	if(account.type.equals("asset") || account.type.equals("expense")) {
+	return getNB(account.type);
+    }
+
+    /**
+     * Returns the normal balance (debit or credit) of an account type
+     */
+    public String getNB(String accountType) throws DeboException {
+	if(accountType.equals("asset") || accountType.equals("expense")) {
 	    return "debit";
 	}
-	else if(account.type.equals("liability") || account.type.equals("equity")
-		|| account.type.equals("income")) {
+	else if(accountType.equals("liability") || accountType.equals("equity")
+		|| accountType.equals("income")) {
 	    return "credit";
 	}
 	else {
@@ -349,46 +529,122 @@ public class Logic {
     }
 
     /**
-     * Returns an account's balance
+     * Returns an account's balance, now or as of a date if one is given. The date is read once,
+     * so the balance and the exchange rates are taken at the same instant.
      */
-    public HashMap<String, BigDecimal> getBalance(String accountName, int userId)
-	throws DeboException {
+    public HashMap<String, BigDecimal> getBalance(String accountName, int userId, String asOf,
+						  String in) throws DeboException {
+	Instant at = asOf == null ? null : Instant.ofEpochMilli(instant(asOf));
 	Model.Account account = model.getAccount(accountName, userId);
-	HashMap<String, BigDecimal> balance = new HashMap<String, BigDecimal>();
-	Model.TxFilter filter = new Model.TxFilter();
-	filter.account = accountName;
-	ArrayList<Model.Transaction> txs = model.getTransactions(filter, userId);
-	for(Model.Transaction tx : txs) {
-	    if(!balance.containsKey(tx.currency)) {
-		balance.put(tx.currency, new BigDecimal(0));
-	    }
-	    BigDecimal currentBalance = balance.get(tx.currency);
-	    if((tx.debit.equals(accountName) && getNB(account).equals("debit"))
-	       || (tx.credit.equals(accountName) && getNB(account).equals("credit"))) {
-		balance.put(tx.currency, currentBalance.add(tx.amount));
-	    }
-	    else {
-		balance.put(tx.currency, currentBalance.subtract(tx.amount));
-	    }
+	HashMap<String, BigDecimal> balance;
+	if(at == null) {
+	    balance = model.getBalance(account.id);
+	}
+	else {
+	    balance = model.getBalance(account.id, at);
+	}
+	if(getNB(account).equals("credit")) {
+	    balance.replaceAll((currency, amount) -> amount.negate());
+	}
+	if(in != null) {
+	    BigDecimal total = convert(balance, in, at, model.getRates());
+	    balance = new HashMap<String, BigDecimal>();
+	    balance.put(in, total);
 	}
 	return balance;
     }
 
     /**
-     * Returns all accounts' balances
+     * Returns all accounts' balances, now or as of a date if one is given
      */
-    public HashMap<String, HashMap<String, HashMap<String, BigDecimal>>> getBalances(int userId)
+    public HashMap<String, HashMap<String, HashMap<String, BigDecimal>>> getBalances(int userId,
+										     String asOf,
+										     String in)
 	throws DeboException {
 	HashMap<String, HashMap<String, HashMap<String, BigDecimal>>> types = new HashMap<String, HashMap<String, HashMap<String, BigDecimal>>>();
-	ArrayList<Model.Account> accounts = model.getAccounts(new Model.Account(), userId);
-	for(Model.Account account : accounts) {
-	    if(!types.containsKey(account.type)) {
-		types.put(account.type, new HashMap<String, HashMap<String, BigDecimal>>());
+	Instant at = asOf == null ? null : Instant.ofEpochMilli(instant(asOf));
+	ArrayList<Model.Balance> balances;
+	if(at == null) {
+	    balances = model.getBalances(userId);
+	}
+	else {
+	    balances = model.getBalances(userId, at);
+	}
+	for(Model.Balance b : balances) {
+	    if(!types.containsKey(b.accountType)) {
+		types.put(b.accountType, new HashMap<String, HashMap<String, BigDecimal>>());
+	    }
+	    HashMap<String, HashMap<String, BigDecimal>> type = types.get(b.accountType);
+	    if(!type.containsKey(b.account)) {
+		type.put(b.account, new HashMap<String, BigDecimal>());
+	    }
+	    if(b.currency != null) {
+		BigDecimal amount = b.amount;
+		if(getNB(b.accountType).equals("credit")) {
+		    amount = amount.negate();
+		}
+		type.get(b.account).put(b.currency, amount);
+	    }
+	}
+	if(in != null) {
+	    // one snapshot of the rates for the whole answer
+	    RateIndex rates = model.getRates();
+	    for(HashMap<String, HashMap<String, BigDecimal>> type : types.values()) {
+		for(HashMap<String, BigDecimal> balance : type.values()) {
+		    BigDecimal total = convert(balance, in, at, rates);
+		    balance.clear();
+		    balance.put(in, total);
+		}
 	    }
-	    HashMap<String, HashMap<String, BigDecimal>> type = types.get(account.type);
-	    HashMap<String, BigDecimal> balance = getBalance(account.name, userId);
-	    type.put(account.name, balance);
 	}
 	return types;
     }
+
+    // Decimal places kept when converting between currencies
+    private static final int CONVERTED_SCALE = 8;
+
+    /**
+     * Adds up amounts in several currencies in a single one, at the rates of a date or at the
+     * latest ones
+     */
+    static BigDecimal convert(HashMap<String, BigDecimal> amounts, String in, Instant asOf,
+			      RateIndex rates) throws DeboException {
+	long at = asOf == null ? Long.MAX_VALUE : asOf.toEpochMilli();
+	BigDecimal total = BigDecimal.ZERO;
+	for(Map.Entry<String, BigDecimal> amount : amounts.entrySet()) {
+	    double rate = rates.rate(amount.getKey(), in, at);
+	    if(Double.isNaN(rate)) {
+		throw new DeboException(400, "There's no exchange rate from " + amount.getKey()
+					+ " to " + in + (asOf == null ? "." : " as of " + asOf + "."));
+	    }
+	    total = total.add(amount.getValue().multiply(BigDecimal.valueOf(rate)));
+	}
+	return total.setScale(Math.min(total.scale(), CONVERTED_SCALE), RoundingMode.HALF_EVEN);
+    }
+
+    /**
+     * Reads an ISO 8601 date, with or without a time or offset, as milliseconds since the
+     * epoch. Dates and times without an offset are taken as UTC.
+     */
+    static long instant(String date) throws DeboException {
+	String iso = date.trim().replace(' ', 'T');
+	try {
+	    return OffsetDateTime.parse(iso).toInstant().toEpochMilli();
+	}
+	catch(DateTimeParseException e) {
+	    // try without an offset
+	}
+	try {
+	    return LocalDateTime.parse(iso).toInstant(ZoneOffset.UTC).toEpochMilli();
+	}
+	catch(DateTimeParseException e) {
+	    // try without a time
+	}
+	try {
+	    return LocalDate.parse(iso).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+	}
+	catch(DateTimeParseException e) {
+	    throw new DeboException(400, "Unrecognizable date format. Use ISO 8601.");
+	}
+    }
 }
@@ -0,0 +1,282 @@
+package com.github.emi_silva.debo;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.DoubleSupplier;
+import java.util.function.Function;
+
+/**
+ * Request latencies per route and status code, plus gauges read when scraped, written in the
+ * Prometheus text format. Recording a request only increments counters; histograms are made
+ * the first time a route answers with a status code and reused from then on.
+ */
+class Metrics {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final int MIN_STATUS = 100;
+    private static final int MAX_STATUS = 599;
+
+    private final Function<Object, String> labeler;
+    private final ConcurrentHashMap<Object, Route> routes;
+    private final LinkedHashMap<String, Family> families;
+
+    /**
+     * @param labeler names the route a key passed to record() stands for
+     */
+    Metrics(Function<Object, String> labeler) {
+	this.labeler = labeler;
+	routes = new ConcurrentHashMap<Object, Route>();
+	families = new LinkedHashMap<String, Family>();
+    }
+
+    /**
+     * Records how long a route took to answer with a status code
+     */
+    void record(Object routeKey, int status, long nanos) {
+	Route route = routes.get(routeKey);
+	if(route == null) {
+	    Route created = new Route(labeler.apply(routeKey));
+	    route = routes.putIfAbsent(routeKey, created);
+	    if(route == null) {
+		route = created;
+	    }
+	}
+	route.histogram(status).record(nanos);
+    }
+
+    /**
+     * Adds a value that can go up and down, read when scraped
+     */
+    synchronized void gauge(String name, String help, String labels, DoubleSupplier value) {
+	series(name, help, "gauge", labels, value);
+    }
+
+    /**
+     * Adds a value that only goes up, read when scraped
+     */
+    synchronized void counter(String name, String help, String labels, DoubleSupplier value) {
+	series(name, help, "counter", labels, value);
+    }
+
+    private void series(String name, String help, String type, String labels,
+			DoubleSupplier value) {
+	Family family = families.get(name);
+	if(family == null) {
+	    family = new Family(help, type);
+	    families.put(name, family);
+	}
+	family.series.add(new Series(labels, value));
+    }
+
+    /**
+     * Adds the memory, thread, garbage collection and uptime gauges of this JVM
+     */
+    void addJvm() {
+	MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+	gauge("jvm_memory_bytes_used", "Memory used by the JVM", "area=\"heap\"",
+	      () -> memory.getHeapMemoryUsage().getUsed());
+	gauge("jvm_memory_bytes_used", "Memory used by the JVM", "area=\"nonheap\"",
+	      () -> memory.getNonHeapMemoryUsage().getUsed());
+	gauge("jvm_memory_bytes_max", "Memory the JVM may use", "area=\"heap\"",
+	      () -> memory.getHeapMemoryUsage().getMax());
+	gauge("jvm_threads_current", "Live threads", null,
+	      () -> ManagementFactory.getThreadMXBean().getThreadCount());
+	for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+	    String labels = "gc=\"" + escape(gc.getName()) + "\"";
+	    counter("jvm_gc_collections_total", "Garbage collections", labels,
+		    gc::getCollectionCount);
+	    counter("jvm_gc_collection_seconds_total", "Time spent collecting garbage", labels,
+		    () -> gc.getCollectionTime() / 1e3);
+	}
+	gauge("process_uptime_seconds", "Time since the JVM started", null,
+	      () -> ManagementFactory.getRuntimeMXBean().getUptime() / 1e3);
+    }
+
+    /**
+     * Writes every metric in the Prometheus text format
+     */
+    byte[] scrape() {
+	StringBuilder out = new StringBuilder(8192);
+	out.append("# HELP debo_request_seconds Time to answer a request, by route and status\n")
+	    .append("# TYPE debo_request_seconds summary\n");
+	for(Route route : routes.values()) {
+	    for(int status = MIN_STATUS; status <= MAX_STATUS; status++) {
+		Histogram h = route.byStatus.get(status - MIN_STATUS);
+		if(h == null) {
+		    continue;
+		}
+		String labels = "route=\"" + escape(route.label) + "\",code=\"" + status + "\"";
+		long[] counts = h.snapshot();
+		for(double q : QUANTILES) {
+		    out.append("debo_request_seconds{").append(labels).append(",quantile=\"")
+			.append(q).append("\"} ").append(seconds(Histogram.quantile(counts, q)))
+			.append('\n');
+		}
+		out.append("debo_request_seconds_sum{").append(labels).append("} ")
+		    .append(seconds(h.sum.get())).append('\n');
+		out.append("debo_request_seconds_count{").append(labels).append("} ")
+		    .append(Histogram.total(counts)).append('\n');
+	    }
+	}
+	synchronized(this) {
+	    for(Map.Entry<String, Family> f : families.entrySet()) {
+		out.append("# HELP ").append(f.getKey()).append(' ').append(f.getValue().help)
+		    .append('\n');
+		out.append("# TYPE ").append(f.getKey()).append(' ').append(f.getValue().type)
+		    .append('\n');
+		for(Series s : f.getValue().series) {
+		    out.append(f.getKey());
+		    if(s.labels != null) {
+			out.append('{').append(s.labels).append('}');
+		    }
+		    out.append(' ').append(number(s.value.getAsDouble())).append('\n');
+		}
+	    }
+	}
+	return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String seconds(long nanos) {
+	return number(nanos / 1e9);
+    }
+
+    private static String number(double value) {
+	if(value == Math.rint(value) && Math.abs(value) < 1e15) {
+	    return Long.toString((long) value);
+	}
+	return Double.toString(value);
+    }
+
+    static String escape(String label) {
+	return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static class Route {
+	final String label;
+	final AtomicReferenceArray<Histogram> byStatus;
+	Route(String label) {
+	    this.label = label;
+	    byStatus = new AtomicReferenceArray<Histogram>(MAX_STATUS - MIN_STATUS + 1);
+	}
+	Histogram histogram(int status) {
+	    int i = Math.min(Math.max(status, MIN_STATUS), MAX_STATUS) - MIN_STATUS;
+	    Histogram h = byStatus.get(i);
+	    if(h == null) {
+		byStatus.compareAndSet(i, null, new Histogram());
+		h = byStatus.get(i);
+	    }
+	    return h;
+	}
+    }
+
+    private static class Family {
+	final String help;
+	final String type;
+	final ArrayList<Series> series;
+	Family(String help, String type) {
+	    this.help = help;
+	    this.type = type;
+	    series = new ArrayList<Series>();
+	}
+    }
+
+    private static class Series {
+	final String labels;
+	final DoubleSupplier value;
+	Series(String labels, DoubleSupplier value) {
+	    this.labels = labels;
+	    this.value = value;
+	}
+    }
+
+    /**
+     * Counts durations in buckets whose width grows with their value, like an HDR histogram:
+     * every power of two is split into SUB buckets, so a quantile is off by at most 1/SUB of
+     * its value, from a nanosecond up to a couple of minutes.
+     */
+    static class Histogram {
+
+	static final int SUB_BITS = 4;
+	static final int SUB = 1 << SUB_BITS;
+	static final int BUCKETS = (38 - SUB_BITS) * SUB;
+
+	final AtomicLongArray counts;
+	final AtomicLong sum;
+
+	Histogram() {
+	    counts = new AtomicLongArray(BUCKETS);
+	    sum = new AtomicLong();
+	}
+
+	void record(long nanos) {
+	    long value = Math.max(nanos, 0);
+	    counts.incrementAndGet(bucket(value));
+	    sum.addAndGet(value);
+	}
+
+	long[] snapshot() {
+	    long[] copy = new long[BUCKETS];
+	    for(int i = 0; i < BUCKETS; i++) {
+		copy[i] = counts.get(i);
+	    }
+	    return copy;
+	}
+
+	static int bucket(long value) {
+	    if(value < SUB) {
+		return (int) value;
+	    }
+	    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+	    int bucket = (shift + 1) * SUB + (int) ((value >> shift) - SUB);
+	    return Math.min(bucket, BUCKETS - 1);
+	}
+
+	/**
+	 * Returns the largest value counted in a bucket
+	 */
+	static long highest(int bucket) {
+	    if(bucket < SUB) {
+		return bucket;
+	    }
+	    int shift = bucket / SUB - 1;
+	    long mantissa = bucket % SUB + SUB;
+	    return ((mantissa + 1) << shift) - 1;
+	}
+
+	static long total(long[] counts) {
+	    long total = 0;
+	    for(long c : counts) {
+		total += c;
+	    }
+	    return total;
+	}
+
+	/**
+	 * Returns the value below which a fraction q of the counted values lie
+	 */
+	static long quantile(long[] counts, double q) {
+	    long total = total(counts);
+	    if(total == 0) {
+		return 0;
+	    }
+	    long rank = Math.max(1, (long) Math.ceil(q * total));
+	    long seen = 0;
+	    for(int i = 0; i < counts.length; i++) {
+		seen += counts[i];
+		if(seen >= rank) {
+		    return highest(i);
+		}
+	    }
+	    return highest(counts.length - 1);
+	}
+    }
+}
@@ -0,0 +1,23 @@
+package com.github.emi_silva.debo;
+
+/**
+ * Applies the pending schema migrations without starting the server.
+ * Usage: MigrateTool
+ */
+public class MigrateTool {
+
+    public static void main(String[] args) {
+	Model model;
+	try {
+	    model = new Model(true);
+	}
+	catch(Exception e) {
+	    System.err.println(e.toString());
+	    System.exit(1);
+	    return;
+	}
+	System.out.println("The database schema is up to date.");
+	model.close();
+	System.exit(0);
+    }
+}
@@ -0,0 +1,179 @@
+package com.github.emi_silva.debo;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.sql.DataSource;
+
+/**
+ * Applies the SQL files of the migrations directory that the database hasn't seen yet, in the
+ * order of the version their names start with (as in 2018100401-initial.sql). Each file runs in
+ * its own transaction along with the row recording its version in debo.schema_migrations.
+ * A database installed by hand before migrations were recorded is taken to have the initial
+ * schema only; every later file can be applied again safely.
+ */
+class Migrator {
+
+    private static final Pattern FILE_NAME = Pattern.compile("(\\d+)-([\\w-]+)\\.sql");
+
+    // Held for the whole run, so servers starting together don't apply a file twice
+    private static final long LOCK = 2018100401L;
+
+    private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS "
+	+ "debo.schema_migrations ("
+	+ "version BIGINT PRIMARY KEY, "
+	+ "name VARCHAR NOT NULL, "
+	+ "applied TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT CURRENT_TIMESTAMP)";
+
+    private final DataSource pool;
+    private final File directory;
+
+    Migrator(DataSource pool, File directory) {
+	this.pool = pool;
+	this.directory = directory;
+    }
+
+    /**
+     * Applies the pending migrations
+     * @return the names of the files applied
+     */
+    ArrayList<String> migrate() throws IOException, SQLException {
+	ArrayList<String> applied = new ArrayList<String>();
+	TreeMap<Long, File> files = files(directory);
+	try(Connection conn = pool.getConnection()) {
+	    try(Statement st = conn.createStatement()) {
+		st.execute("SELECT pg_advisory_lock(" + LOCK + ")");
+	    }
+	    try {
+		HashSet<Long> done = appliedVersions(conn, files);
+		conn.setAutoCommit(false);
+		for(File file : files.values()) {
+		    long version = version(file.getName());
+		    if(done.contains(version)) {
+			continue;
+		    }
+		    String sql = new String(Files.readAllBytes(file.toPath()),
+					    StandardCharsets.UTF_8);
+		    try(Statement st = conn.createStatement()) {
+			st.execute(sql);
+			st.execute(CREATE_TABLE);
+		    }
+		    record(conn, file);
+		    conn.commit();
+		    applied.add(file.getName());
+		}
+		conn.setAutoCommit(true);
+	    }
+	    catch(SQLException e) {
+		if(!conn.getAutoCommit()) {
+		    conn.rollback();
+		    conn.setAutoCommit(true);
+		}
+		throw e;
+	    }
+	    finally {
+		try(Statement st = conn.createStatement()) {
+		    st.execute("SELECT pg_advisory_unlock(" + LOCK + ")");
+		}
+	    }
+	}
+	return applied;
+    }
+
+    /**
+     * Returns the versions already applied. A schema installed by hand is recorded as the
+     * first version.
+     */
+    private HashSet<Long> appliedVersions(Connection conn, TreeMap<Long, File> files)
+	throws SQLException {
+	HashSet<Long> versions = new HashSet<Long>();
+	try(Statement st = conn.createStatement();
+	    ResultSet rs = st.executeQuery("SELECT to_regclass('debo.schema_migrations'), "
+					   + "to_regclass('debo.users')")) {
+	    rs.next();
+	    if(rs.getString(1) == null) {
+		if(rs.getString(2) != null && !files.isEmpty()) {
+		    st.execute(CREATE_TABLE);
+		    record(conn, files.firstEntry().getValue());
+		    versions.add(files.firstKey());
+		}
+		return versions;
+	    }
+	}
+	try(Statement st = conn.createStatement();
+	    ResultSet rs = st.executeQuery("SELECT version FROM debo.schema_migrations")) {
+	    while(rs.next()) {
+		versions.add(rs.getLong(1));
+	    }
+	}
+	return versions;
+    }
+
+    private static void record(Connection conn, File file) throws SQLException {
+	String query = "INSERT INTO debo.schema_migrations (version, name) VALUES (?, ?)";
+	try(PreparedStatement st = conn.prepareStatement(query)) {
+	    st.setLong(1, version(file.getName()));
+	    st.setString(2, file.getName());
+	    st.executeUpdate();
+	}
+    }
+
+    /**
+     * Resolves the migrations directory of the properties. An absolute path is taken as is;
+     * a relative one is looked up on the classpath, where the build copies database/, so it
+     * doesn't depend on the directory the server was started from.
+     */
+    static File directory(String path) throws IOException {
+	File directory = new File(path);
+	if(directory.isAbsolute()) {
+	    return directory;
+	}
+	URL location = Migrator.class.getResource("/" + path);
+	if(location == null) {
+	    throw new IOException("No migrations directory " + path + " on the classpath");
+	}
+	return new File(location.getPath());
+    }
+
+    /**
+     * Returns the migration files of a directory by version. Other files are ignored.
+     */
+    static TreeMap<Long, File> files(File directory) throws IOException {
+	File[] all = directory.listFiles();
+	if(all == null) {
+	    throw new IOException("No migrations directory at " + directory.getAbsolutePath());
+	}
+	TreeMap<Long, File> files = new TreeMap<Long, File>();
+	for(File file : all) {
+	    if(!FILE_NAME.matcher(file.getName()).matches()) {
+		continue;
+	    }
+	    File other = files.put(version(file.getName()), file);
+	    if(other != null) {
+		throw new IOException("Migrations " + other.getName() + " and " + file.getName()
+				      + " share a version.");
+	    }
+	}
+	return files;
+    }
+
+    /**
+     * Returns the version of a migration file name, or -1 if it isn't one
+     */
+    static long version(String fileName) {
+	Matcher m = FILE_NAME.matcher(fileName);
+	return m.matches() ? Long.valueOf(m.group(1)) : -1;
+    }
+}
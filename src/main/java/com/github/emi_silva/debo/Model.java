@@ -5,33 +5,236 @@ import java.net.URL;
 import java.io.FileReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import java.io.OutputStream;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.sql.PreparedStatement;
+import java.sql.Statement;
 import java.sql.ResultSet;
 import java.lang.Exception;
 import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.time.Instant;
 import java.sql.Timestamp;
 import java.util.HashMap;
-
-// TODO (critical): Put closing statements in finally blocks to tackle DoS attacks
+import java.util.Map;
+import java.util.TreeMap;
+import java.time.LocalDate;
+import java.util.Base64;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.PGCopyOutputStream;
+import org.postgresql.util.PSQLException;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
 
 public class Model {
 
-    Connection conn;
+    HikariDataSource pool;
+    QueryLog queryLog;
     Properties props;
+    TokenCache tokenCache;
+    NameCache currencyIds;
+    NameCache accountIds;
+    volatile TypeRegistry types;
+    volatile RateIndex rates;
+    QueryShapes shapes;
+    private ScheduledExecutorService ratesRefresh;
+    private ScheduledExecutorService typesRefresh;
 
     /**
-     * Initializes the database connection
+     * Initializes the database connection pool
      */
     public Model() throws FileNotFoundException, IOException, NullPointerException,
 			  SQLException {
+	this(false);
+    }
+
+    /**
+     * Initializes the database connection pool, first applying the pending migrations if asked
+     * to. Only the server and MigrateTool migrate; tools and tests expect an up to date schema.
+     */
+    Model(boolean migrate) throws FileNotFoundException, IOException, NullPointerException,
+				  SQLException {
 	props = readProps("/db.properties");
-	String url = props.getProperty("url");
-	conn = DriverManager.getConnection(url, props);
+	pool = newPool(props);
+	long slowQueryMillis = Long.valueOf(props.getProperty("slowQueryMillis"));
+	queryLog = new QueryLog(pool, slowQueryMillis, System.err);
+	tokenCache = new TokenCache(Integer.valueOf(props.getProperty("tokenCacheSize")));
+	int idCacheSize = Integer.valueOf(props.getProperty("idCacheSize"));
+	currencyIds = new NameCache(idCacheSize);
+	accountIds = new NameCache(idCacheSize);
+	String migrations = props.getProperty("migrations");
+	if(migrate && migrations != null && !migrations.isEmpty()) {
+	    new Migrator(pool, Migrator.directory(migrations)).migrate();
+	}
+	types = new TypeRegistry(queryCurrencyTypes(), queryAccountTypes());
+	rates = queryRates();
+	shapes = new QueryShapes();
+    }
+
+    /**
+     * Returns the queries behind listing transactions, authenticating and computing balances
+     * whose plans don't read every table through an index condition, or don't use the index
+     * they were given, when the planner is told to avoid sequential scans
+     */
+    ArrayList<String> unindexedQueries() throws SQLException {
+	String[] none = {};
+	// each query with the indexes its plan must use and its parameters
+	Object[][] queries = {
+	    {AUTHENTICATE, new String[] {"users_session_token"}, "a session token"},
+	    {shapes.selectTransactions(1), new String[] {"transactions_user_date"},
+	     1, "2018-10-01", 101},
+	    {shapes.selectTransactions(1 << 5), none, 1, "bank", 101},
+	    {shapes.selectTransactions(1 << 6), none, 1, "bank", 101},
+	    {shapes.selectTransactions(1 << 7), new String[] {"transactions_user_date"},
+	     1, "bank", "bank", 101},
+	    {CURRENCIES, new String[] {"currencies_user"}, 1},
+	    {ACCOUNTS, new String[] {"accounts_user"}, 1},
+	    {BALANCE, new String[] {"balances_pkey"}, 1},
+	    {BALANCES, new String[] {"accounts_user"}, 1},
+	    {BALANCE_AS_OF, new String[] {"balance_checkpoints_pkey", "transactions_debit_date",
+					  "transactions_credit_date"},
+	     "2018-10-15", 1, 1, 1},
+	    {BALANCES_AS_OF, new String[] {"accounts_user", "transactions_user_date"},
+	     "2018-10-15", 1, 1, 1}
+	};
+	ArrayList<String> unindexed = new ArrayList<String>();
+	try(Connection conn = queryLog.connect("unindexedQueries")) {
+	    conn.setAutoCommit(false);
+	    try(Statement st = conn.createStatement()) {
+		st.execute("SET LOCAL enable_seqscan = off");
+	    }
+	    for(Object[] query : queries) {
+		ArrayList<String> plan = new ArrayList<String>();
+		try(PreparedStatement st = conn.prepareStatement("EXPLAIN " + query[0])) {
+		    for(int i = 2; i < query.length; i++) {
+			st.setObject(i - 1, query[i]);
+		    }
+		    try(ResultSet rs = st.executeQuery()) {
+			while(rs.next()) {
+			    plan.add(rs.getString(1));
+			}
+		    }
+		}
+		if(!indexed(plan, (String[]) query[1])) {
+		    unindexed.add((String) query[0]);
+		}
+	    }
+	    conn.rollback();
+	}
+	return unindexed;
+    }
+
+    /**
+     * Tells whether a plan uses the given indexes and reads nothing but through an index
+     * condition. A full scan of an index, which the planner falls back to when sequential
+     * scans are off, has no condition.
+     */
+    static boolean indexed(ArrayList<String> plan, String[] indexes) {
+	String text = String.join("\n", plan);
+	if(text.contains("Seq Scan")) {
+	    return false;
+	}
+	for(String index : indexes) {
+	    if(!text.contains(" " + index + " ")) {
+		return false;
+	    }
+	}
+	boolean unconditioned = false;
+	for(String line : plan) {
+	    boolean node = line.trim().startsWith("->") || !line.startsWith(" ");
+	    if(node) {
+		if(unconditioned) {
+		    return false;
+		}
+		unconditioned = line.contains("Index Scan") || line.contains("Index Only Scan");
+	    }
+	    else if(line.contains("Index Cond:")) {
+		unconditioned = false;
+	    }
+	}
+	return !unconditioned;
+    }
+
+    /**
+     * Builds a connection pool out of the database properties.
+     * Every method borrows a connection for the duration of a single call, so the pool can be
+     * shared by all of the server's worker threads.
+     */
+    static HikariDataSource newPool(Properties props) {
+	HikariConfig config = new HikariConfig();
+	config.setPoolName("debo");
+	config.setJdbcUrl(props.getProperty("url"));
+	config.setUsername(props.getProperty("user"));
+	config.setPassword(props.getProperty("password"));
+	config.setDataSourceProperties(props);
+	config.setMinimumIdle(Integer.valueOf(props.getProperty("poolMinIdle")));
+	config.setMaximumPoolSize(Integer.valueOf(props.getProperty("poolMaxSize")));
+	config.setConnectionTimeout(Long.valueOf(props.getProperty("poolAcquireTimeout")));
+	config.setValidationTimeout(Long.valueOf(props.getProperty("poolValidationTimeout")));
+	config.setLeakDetectionThreshold(Long.valueOf(props.getProperty("poolLeakThreshold")));
+	config.setMaxLifetime(Long.valueOf(props.getProperty("poolMaxLifetime")));
+	return new HikariDataSource(config);
+    }
+
+    /**
+     * Adds the gauges of the connection pool and the caches, and the totals of each method
+     */
+    void addMetrics(Metrics metrics) {
+	queryLog.addMetrics(metrics);
+	metrics.gauge("debo_db_connections", "Pooled database connections", "state=\"active\"",
+		      () -> pool.getHikariPoolMXBean().getActiveConnections());
+	metrics.gauge("debo_db_connections", "Pooled database connections", "state=\"idle\"",
+		      () -> pool.getHikariPoolMXBean().getIdleConnections());
+	metrics.gauge("debo_db_connections", "Pooled database connections", "state=\"total\"",
+		      () -> pool.getHikariPoolMXBean().getTotalConnections());
+	metrics.gauge("debo_db_connections_pending", "Threads waiting for a connection", null,
+		      () -> pool.getHikariPoolMXBean().getThreadsAwaitingConnection());
+	addCache(metrics, "tokens", tokenCache::hits, tokenCache::misses, tokenCache::size);
+	addCache(metrics, "currency_ids", currencyIds::hits, currencyIds::misses,
+		 currencyIds::size);
+	addCache(metrics, "account_ids", accountIds::hits, accountIds::misses, accountIds::size);
+	metrics.counter("debo_query_shapes_total", "Transaction queries by whether their SQL was "
+			+ "built or reused", "result=\"built\"", shapes::builds);
+	metrics.counter("debo_query_shapes_total", "Transaction queries by whether their SQL was "
+			+ "built or reused", "result=\"reused\"", shapes::reuses);
+    }
+
+    private static void addCache(Metrics metrics, String cache, LongSupplier hits,
+				 LongSupplier misses, IntSupplier size) {
+	String label = "cache=\"" + cache + "\"";
+	metrics.counter("debo_cache_lookups_total", "Cache lookups by result",
+			label + ",result=\"hit\"", hits::getAsLong);
+	metrics.counter("debo_cache_lookups_total", "Cache lookups by result",
+			label + ",result=\"miss\"", misses::getAsLong);
+	metrics.gauge("debo_cache_entries", "Entries held by a cache", label, size::getAsInt);
+    }
+
+    /**
+     * Closes every pooled connection
+     */
+    public void close() {
+	if(ratesRefresh != null) {
+	    ratesRefresh.shutdownNow();
+	}
+	if(typesRefresh != null) {
+	    typesRefresh.shutdownNow();
+	}
+	pool.close();
     }
 
     /**
@@ -62,24 +265,24 @@ public class Model {
 	HashMap<String, String> session = new HashMap<String, String>();
 	String query = "INSERT INTO users (email, session_token, token_expires) VALUES (?, ?, ?) "
 	    + "ON CONFLICT (email) DO UPDATE SET session_token = ?, token_expires = ? "
-	    + "RETURNING session_token, token_expires";
-	try {
-	    PreparedStatement st = conn.prepareStatement(query);
+	    + "RETURNING session_token, token_expires, id";
+	try(Connection conn = queryLog.connect("newToken");
+	    PreparedStatement st = conn.prepareStatement(query)) {
 	    st.setString(1, email);
 	    st.setString(2, sessionToken);
 	    st.setTimestamp(3, Timestamp.from(tokenExpires));
 	    st.setString(4, sessionToken);
 	    st.setTimestamp(5, Timestamp.from(tokenExpires));
-	    st.execute();
-	    ResultSet rs = st.getResultSet();
-	    if(rs.next()) {
-		session.put("session_token", rs.getString(1));
-		session.put("token_expires", rs.getTimestamp(2).toInstant().toString());
-	    }
-	    else {
-		throw new DeboException(500, "A database error occurred.");
+	    try(ResultSet rs = st.executeQuery()) {
+		if(rs.next()) {
+		    session.put("session_token", rs.getString(1));
+		    session.put("token_expires", rs.getTimestamp(2).toInstant().toString());
+		    tokenCache.invalidateUser(rs.getInt(3));
+		}
+		else {
+		    throw new DeboException(500, "A database error occurred.");
+		}
 	    }
-	    st.close();
 	}
 	catch(SQLException e) {
 	    throw new DeboException(500, "A database error occurred.");
@@ -94,20 +297,19 @@ public class Model {
 	HashMap<String, String> session = new HashMap<String, String>();
 	Instant tokenExpires;
 	String query = "SELECT session_token, token_expires FROM users WHERE email = ?";
-	try {
-	    PreparedStatement st = conn.prepareStatement(query);
+	try(Connection conn = queryLog.connect("getSession");
+	    PreparedStatement st = conn.prepareStatement(query)) {
 	    st.setString(1, email);
-	    ResultSet rs = st.executeQuery();
-	    if(rs.next()) {
-		session.put("session_token", rs.getString(1));
-		tokenExpires = rs.getTimestamp(2).toInstant();
-		session.put("token_expires", tokenExpires.toString());
-	    }
-	    else {
-		throw new DeboException(412, "Please create a user.");
+	    try(ResultSet rs = st.executeQuery()) {
+		if(rs.next()) {
+		    session.put("session_token", rs.getString(1));
+		    tokenExpires = rs.getTimestamp(2).toInstant();
+		    session.put("token_expires", tokenExpires.toString());
+		}
+		else {
+		    throw new DeboException(412, "Please create a user.");
+		}
 	    }
-	    rs.close();
-	    st.close();
 	}
 	catch(SQLException e) {
 	    throw new DeboException(500, "A database error occurred.");
@@ -120,34 +322,84 @@ public class Model {
 	}
     }
 
+    private static final String AUTHENTICATE = "SELECT id, token_expires FROM users "
+	+ "WHERE session_token = ?";
+
     /**
      * Checks whether a session token exists and hasn't expired
      */
     public int authenticate(String sessionToken) throws DeboException {
-	String query = "SELECT id, token_expires FROM users WHERE session_token = ?";
-	try {
-	    PreparedStatement st = conn.prepareStatement(query);
+	Integer cachedId = tokenCache.get(sessionToken);
+	if(cachedId != null) {
+	    return cachedId;
+	}
+	long generation = tokenCache.generation();
+	try(Connection conn = queryLog.connect("authenticate");
+	    PreparedStatement st = conn.prepareStatement(AUTHENTICATE)) {
 	    st.setString(1, sessionToken);
-	    ResultSet rs = st.executeQuery();
-	    if(rs.next()) {
-		int userId = rs.getInt(1);
-		Instant tokenExpires = rs.getTimestamp(2).toInstant();
-		rs.close();
-		st.close();
-		if(Instant.now().isAfter(tokenExpires)) {
-		    throw new DeboException(401, "The session expired.");
+	    try(ResultSet rs = st.executeQuery()) {
+		if(rs.next()) {
+		    int userId = rs.getInt(1);
+		    Instant tokenExpires = rs.getTimestamp(2).toInstant();
+		    if(Instant.now().isAfter(tokenExpires)) {
+			throw new DeboException(401, "The session expired.");
+		    }
+		    tokenCache.put(sessionToken, userId, tokenExpires, generation);
+		    return userId;
+		}
+		else {
+		    throw new DeboException(401, "Invalid session token.");
 		}
-		return userId;
 	    }
-	    else {
-		rs.close();
-		st.close();
-		throw new DeboException(401, "Invalid session token.");
+	}
+	catch(SQLException e) {
+	    throw new DeboException(500, "A database error occurred.");
+	}
+    }
+
+    /**
+     * Returns a user's id given their email. If the user doesn't exist, insert it with an
+     * expired token.
+     */
+    public int getUserId(String email) throws DeboException {
+	String query = "INSERT INTO users (email, session_token, token_expires) "
+	    + "VALUES (?, '', CURRENT_TIMESTAMP) "
+	    + "ON CONFLICT (email) DO UPDATE SET email = EXCLUDED.email "
+	    + "RETURNING id";
+	try(Connection conn = queryLog.connect("getUserId");
+	    PreparedStatement st = conn.prepareStatement(query)) {
+	    st.setString(1, email);
+	    try(ResultSet rs = st.executeQuery()) {
+		rs.next();
+		return rs.getInt(1);
+	    }
+	}
+	catch(SQLException e) {
+	    throw new DeboException(500, "A database error occurred.");
+	}
+    }
+
+    /**
+     * Returns when the tokens of the users who logged out in the last given seconds expired
+     */
+    public HashMap<Integer, Instant> getLogouts(long seconds) throws DeboException {
+	HashMap<Integer, Instant> logouts = new HashMap<Integer, Instant>();
+	String query = "SELECT id, token_expires FROM users "
+	    + "WHERE token_expires <= CURRENT_TIMESTAMP "
+	    + "AND token_expires > CURRENT_TIMESTAMP - make_interval(secs => ?)";
+	try(Connection conn = queryLog.connect("getLogouts");
+	    PreparedStatement st = conn.prepareStatement(query)) {
+	    st.setLong(1, seconds);
+	    try(ResultSet rs = st.executeQuery()) {
+		while(rs.next()) {
+		    logouts.put(rs.getInt(1), rs.getTimestamp(2).toInstant());
+		}
 	    }
 	}
 	catch(SQLException e) {
 	    throw new DeboException(500, "A database error occurred.");
 	}
+	return logouts;
     }
 
     /**
@@ -155,11 +407,26 @@ public class Model {
      */
     public void logout(int userId) throws DeboException {
 	String query = "UPDATE users SET token_expires = ? WHERE id = ?";
-	try {
-	    PreparedStatement st = conn.prepareStatement(query);
+	try(Connection conn = queryLog.connect("logout");
+	    PreparedStatement st = conn.prepareStatement(query)) {
 	    st.setTimestamp(1, Timestamp.from(Instant.now()));
 	    st.setInt(2, userId);
-	    int rowsUpdated = st.executeUpdate();
+	    st.executeUpdate();
+	}
+	catch(SQLException e) {
+	    throw new DeboException(500, "A database error occurred.");
+	}
+	finally {
+	    tokenCache.invalidateUser(userId);
+	}
+    }
+
+    /**
+     * Reads the currency and account types again, e.g. after changing their seed data
+     */
+    public void reloadTypes() throws DeboException {
+	try {
+	    types = new TypeRegistry(queryCurrencyTypes(), queryAccountTypes());
 	}
 	catch(SQLException e) {
 	    throw new DeboException(500, "A database error occurred.");
@@ -169,47 +436,273 @@ public class Model {
     /**
      * Returns a list of currency types
      */
-    public ArrayList<CurrencyType> getCurrencyTypes() throws DeboException {
-	ArrayList<CurrencyType> cts = new ArrayList<CurrencyType>();
-	String query = "SELECT id, name FROM currency_types";
+    public ArrayList<CurrencyType> getCurrencyTypes() {
+	return new ArrayList<CurrencyType>(types.currencyTypes);
+    }
+
+    /**
+     * Returns a list of account types
+     */
+    public ArrayList<AccountType> getAccountTypes() {
+	return new ArrayList<AccountType>(types.accountTypes);
+    }
+
+    /**
+     * Returns the currency and account types loaded at startup
+     */
+    TypeRegistry getTypes() {
+	return types;
+    }
+
+    /**
+     * Returns the exchange rates last read from the database
+     */
+    RateIndex getRates() {
+	return rates;
+    }
+
+    /**
+     * Reads the exchange rates again
+     */
+    public void reloadRates() throws DeboException {
+	try {
+	    rates = queryRates();
+	}
+	catch(SQLException e) {
+	    throw new DeboException(500, "A database error occurred.");
+	}
+    }
+
+    /**
+     * Reads the exchange rates again every ratesRefresh milliseconds, so rates loaded by
+     * RateTool show up without a restart
+     */
+    public void refreshRates() {
+	long period = Long.valueOf(props.getProperty("ratesRefresh"));
+	ratesRefresh = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "rates-refresh");
+		t.setDaemon(true);
+		return t;
+	    });
+	ratesRefresh.scheduleWithFixedDelay(() -> {
+		try {
+		    reloadRates();
+		}
+		catch(DeboException e) {
+		    // keep the rates we have and try again later
+		}
+	    }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads the currency and account types again every typesRefresh milliseconds, if it's
+     * more than 0. Otherwise they're only read again through reloadTypes().
+     */
+    public void refreshTypes() {
+	long period = Long.valueOf(props.getProperty("typesRefresh"));
+	if(period <= 0) {
+	    return;
+	}
+	typesRefresh = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "types-refresh");
+		t.setDaemon(true);
+		return t;
+	    });
+	typesRefresh.scheduleWithFixedDelay(() -> {
+		try {
+		    reloadTypes();
+		}
+		catch(DeboException e) {
+		    // keep the types we have and try again later
+		}
+	    }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads all the exchange rates into memory, through a cursor
+     */
+    private RateIndex queryRates() throws SQLException {
+	RateIndex.Builder builder = new RateIndex.Builder();
+	String query = "SELECT base, quote, time, rate FROM rates ORDER BY base, quote, time";
+	try(Connection conn = queryLog.connect("queryRates")) {
+	    conn.setAutoCommit(false);
+	    try(PreparedStatement st = conn.prepareStatement(query)) {
+		st.setFetchSize(Integer.valueOf(props.getProperty("exportFetchSize")));
+		try(ResultSet rs = st.executeQuery()) {
+		    while(rs.next()) {
+			builder.add(rs.getString(1), rs.getString(2), rs.getTimestamp(3).getTime(),
+				    rs.getDouble(4));
+		    }
+		}
+	    }
+	    conn.commit();
+	}
+	return builder.build();
+    }
+
+    /**
+     * Loads exchange rates in bulk from CSV with a header and the columns base, quote, time,
+     * rate, replacing the rates already present for the same pair and time
+     * @return the number of rates loaded
+     */
+    public int loadRates(Reader csv) throws DeboException, IOException {
+	int rows;
+	String staging = "CREATE TEMP TABLE rates_staging (base VARCHAR, quote VARCHAR, "
+	    + "time TIMESTAMPTZ, rate NUMERIC) ON COMMIT DROP";
+	String merge = "INSERT INTO rates (base, quote, time, rate) "
+	    + "SELECT DISTINCT ON (upper(base), upper(quote), time) "
+	    + "upper(base), upper(quote), time, rate FROM rates_staging "
+	    + "ORDER BY upper(base), upper(quote), time "
+	    + "ON CONFLICT (base, quote, time) DO UPDATE SET rate = EXCLUDED.rate";
+	try(Connection conn = queryLog.connect("loadRates")) {
+	    conn.setAutoCommit(false);
+	    try(Statement st = conn.createStatement()) {
+		st.execute(staging);
+		conn.unwrap(PGConnection.class).getCopyAPI()
+		    .copyIn("COPY rates_staging FROM STDIN (FORMAT csv, HEADER)", csv);
+		rows = st.executeUpdate(merge);
+	    }
+	    conn.commit();
+	}
+	catch(SQLException e) {
+	    throw new DeboException(400, "The rates couldn't be loaded: " + e.getMessage());
+	}
+	return rows;
+    }
+
+    // the balances and checkpoints of transactions from an id on, which touch no older account
+    private static final String NEW_MOVEMENTS = "FROM (SELECT debit AS account, currency, "
+	+ "amount, date FROM transactions WHERE id >= ? "
+	+ "UNION ALL "
+	+ "SELECT credit AS account, currency, -amount, date FROM transactions WHERE id >= ?) "
+	+ "movements ";
+    private static final String NEW_BALANCES = "INSERT INTO balances (account, currency, amount) "
+	+ "SELECT account, currency, sum(amount) " + NEW_MOVEMENTS
+	+ "GROUP BY account, currency";
+    private static final String NEW_CHECKPOINTS = "INSERT INTO balance_checkpoints "
+	+ "(account, currency, month, amount) SELECT account, currency, month, "
+	+ "sum(sum(amount)) OVER (PARTITION BY account, currency ORDER BY month) "
+	+ NEW_MOVEMENTS + "CROSS JOIN LATERAL "
+	+ "(SELECT date_trunc('month', date AT TIME ZONE 'UTC')::DATE AS month) m "
+	+ "GROUP BY account, currency, month";
+    private static final String[] LEDGER_TABLES = {"users", "currencies", "accounts",
+						   "transactions"};
+
+    /**
+     * Copies made-up users, currencies, accounts and transactions into the database in a single
+     * transaction, along with their balances, and returns the number of transactions
+     */
+    public long loadLedger(LedgerGenerator.Spec spec) throws DeboException {
+	long transactions;
+	try(Connection conn = queryLog.connect("loadLedger")) {
+	    conn.setAutoCommit(false);
+	    try(Statement st = conn.createStatement()) {
+		// the new ids follow the largest ones, so keep other writers out
+		st.execute("LOCK TABLE " + String.join(", ", LEDGER_TABLES)
+			   + " IN SHARE ROW EXCLUSIVE MODE");
+		int[] first = new int[LEDGER_TABLES.length];
+		for(int i = 0; i < LEDGER_TABLES.length; i++) {
+		    try(ResultSet rs = st.executeQuery("SELECT coalesce(max(id), 0) + 1 FROM "
+						       + LEDGER_TABLES[i])) {
+			rs.next();
+			first[i] = rs.getInt(1);
+		    }
+		}
+		LedgerGenerator generator = new LedgerGenerator(spec, first[0], first[1],
+								first[2], first[3]);
+		transactions = generator.transactions();
+		if(first[3] + transactions > Integer.MAX_VALUE) {
+		    throw new DeboException(400, "That many transactions won't fit in their ids.");
+		}
+		PGConnection pg = conn.unwrap(PGConnection.class);
+		copy(pg, "users (id, email, session_token, token_expires)", generator::users);
+		copy(pg, "currencies (id, user_id, code, name, type)", generator::currencies);
+		copy(pg, "accounts (id, user_id, name, type)", generator::accounts);
+		copy(pg, "transactions (id, user_id, date, amount, currency, debit, credit, "
+		     + "comment)", generator::transactions);
+		for(String sql : new String[] {NEW_BALANCES, NEW_CHECKPOINTS}) {
+		    try(PreparedStatement ps = conn.prepareStatement(sql)) {
+			ps.setInt(1, first[3]);
+			ps.setInt(2, first[3]);
+			ps.executeUpdate();
+		    }
+		}
+		for(String table : LEDGER_TABLES) {
+		    st.execute("SELECT setval(pg_get_serial_sequence('" + table + "', 'id'), "
+			       + "(SELECT max(id) FROM " + table + "))");
+		}
+	    }
+	    conn.commit();
+	    conn.setAutoCommit(true);
+	    try(Statement st = conn.createStatement()) {
+		st.execute("ANALYZE " + String.join(", ", LEDGER_TABLES)
+			   + ", balances, balance_checkpoints");
+	    }
+	}
+	catch(SQLException | IOException e) {
+	    throw new DeboException(400, "The ledger couldn't be loaded: " + e.getMessage());
+	}
+	return transactions;
+    }
+
+    private interface CopySource {
+	void write(Writer out) throws IOException;
+    }
+
+    /**
+     * Copies the CSV rows a source writes into a table
+     */
+    private static void copy(PGConnection pg, String table, CopySource source)
+	throws SQLException, IOException {
+	PGCopyOutputStream copy = new PGCopyOutputStream(pg, "COPY " + table
+							 + " FROM STDIN (FORMAT csv)", COPY_CHUNK);
 	try {
+	    Writer out = new BufferedWriter(new OutputStreamWriter(copy, StandardCharsets.UTF_8),
+					    COPY_CHUNK);
+	    source.write(out);
+	    out.close();
+	}
+	finally {
+	    if(copy.isActive()) {
+		copy.cancelCopy();
+	    }
+	}
+    }
+
+    /**
+     * Reads the currency types from the database
+     */
+    private ArrayList<CurrencyType> queryCurrencyTypes() throws SQLException {
+	ArrayList<CurrencyType> cts = new ArrayList<CurrencyType>();
+	String query = "SELECT id, name FROM currency_types ORDER BY id";
+	try(Connection conn = queryLog.connect("queryCurrencyTypes");
 	    PreparedStatement st = conn.prepareStatement(query);
-	    ResultSet rs = st.executeQuery();
+	    ResultSet rs = st.executeQuery()) {
 	    while(rs.next()) {
 		CurrencyType ct = new CurrencyType();
 		ct.id = rs.getInt(1);
 		ct.name = rs.getString(2);
 		cts.add(ct);
 	    }
-	    rs.close();
-	    st.close();
-	}
-	catch (SQLException e) {
-	    throw new DeboException(500, "A database error occurred.");
 	}
 	return cts;
     }
 
     /**
-     * Returns a list of account types
+     * Reads the account types from the database
      */
-    public ArrayList<AccountType> getAccountTypes() throws DeboException {
+    private ArrayList<AccountType> queryAccountTypes() throws SQLException {
 	ArrayList<AccountType> ats = new ArrayList<AccountType>();
-	String query = "SELECT id, name FROM account_types";
-	try {
+	String query = "SELECT id, name FROM account_types ORDER BY id";
+	try(Connection conn = queryLog.connect("queryAccountTypes");
 	    PreparedStatement st = conn.prepareStatement(query);
-	    ResultSet rs = st.executeQuery();
+	    ResultSet rs = st.executeQuery()) {
 	    while(rs.next()) {
 		AccountType at = new AccountType();
 		at.id = rs.getInt(1);
 		at.name = rs.getString(2);
 		ats.add(at);
 	    }
-	    rs.close();
-	    st.close();
-	}
-	catch(SQLException e) {
-	    throw new DeboException(500, "A database error occurred.");
 	}
 	return ats;
     }
@@ -218,13 +711,14 @@ public class Model {
      * Finds a currency type id given its name
      */
     public int findCurrencyTypeId(String type) throws DeboException {
-	ArrayList<CurrencyType> currencyTypes = getCurrencyTypes();
+	TypeRegistry registry = types;
+	Integer id = registry.currencyTypeId(type);
+	if(id != null) {
+	    return id;
+	}
 	ArrayList<String> names = new ArrayList<String>();
-	for(CurrencyType ct : currencyTypes) {
+	for(CurrencyType ct : registry.currencyTypes) {
 	    names.add(ct.name);
-	    if(ct.name.equals(type)) {
-		return ct.id;
-	    }
 	}
 	throw new DeboException(400, "Valid types are: " + String.join(", ", names) + ".");
     }
@@ -233,26 +727,42 @@ public class Model {
      * Finds a currency id given its code
      */
     public int findCurrencyId(String code, int userId) throws DeboException {
-	ArrayList<Currency> currencies = getCurrencies(new Currency(), userId);
-	for(Currency c : currencies) {
-	    if(c.code.equals(code)) {
-		return c.id;
-	    }
+	Integer id = currencyIds.get(userId, code);
+	if(id != null) {
+	    return id;
 	}
-	throw new DeboException(400, "Currency '" + code + "' doesn't exist.");
+	id = loadCurrencyIds(userId).get(code);
+	if(id == null) {
+	    throw new DeboException(400, "Currency '" + code + "' doesn't exist.");
+	}
+	return id;
+    }
+
+    /**
+     * Reads all of a user's currency ids by code and caches them
+     */
+    private HashMap<String, Integer> loadCurrencyIds(int userId) throws DeboException {
+	long generation = currencyIds.generation();
+	HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	for(Currency c : getCurrencies(new Currency(), userId)) {
+	    ids.put(c.code, c.id);
+	}
+	currencyIds.load(userId, ids, generation);
+	return ids;
     }
 
     /**
      * Finds an account type id given its name
      */
     public int findAccountTypeId(String type) throws DeboException {
-	ArrayList<AccountType> ats = getAccountTypes();
+	TypeRegistry registry = types;
+	Integer id = registry.accountTypeId(type);
+	if(id != null) {
+	    return id;
+	}
 	ArrayList<String> names = new ArrayList<String>();
-	for(AccountType at : ats) {
+	for(AccountType at : registry.accountTypes) {
 	    names.add(at.name);
-	    if(at.name.equals(type)) {
-		return at.id;
-	    }
 	}
 	throw new DeboException(400, "Valid types are: " + String.join(", ", names) + ".");
     }
@@ -261,13 +771,28 @@ public class Model {
      * Finds an account id given its name
      */
     public int findAccountId(String name, int userId) throws DeboException {
-	ArrayList<Account> accounts = getAccounts(new Account(), userId);
-	for(Account a : accounts) {
-	    if(a.name.equals(name)) {
-		return a.id;
-	    }
+	Integer id = accountIds.get(userId, name);
+	if(id != null) {
+	    return id;
+	}
+	id = loadAccountIds(userId).get(name);
+	if(id == null) {
+	    throw new DeboException(400, "Account '" + name + "' doesn't exist.");
 	}
-	throw new DeboException(400, "Account '" + name + "' doesn't exist.");
+	return id;
+    }
+
+    /**
+     * Reads all of a user's account ids by name and caches them
+     */
+    private HashMap<String, Integer> loadAccountIds(int userId) throws DeboException {
+	long generation = accountIds.generation();
+	HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	for(Account a : getAccounts(new Account(), userId)) {
+	    ids.put(a.name, a.id);
+	}
+	accountIds.load(userId, ids, generation);
+	return ids;
     }
 
     /**
@@ -276,20 +801,19 @@ public class Model {
     public String postCurrencies(Currency c, int userId) throws DeboException {
 	String code;
 	String query = "INSERT INTO currencies (user_id, code, name, type) "
-	    + "VALUES (?, ?, ?, ?) RETURNING code";
-	try {
-	    PreparedStatement st = conn.prepareStatement(query);
+	    + "VALUES (?, ?, ?, ?) RETURNING code, id";
+	int type = findCurrencyTypeId(c.type);
+	try(Connection conn = queryLog.connect("postCurrencies");
+	    PreparedStatement st = conn.prepareStatement(query)) {
 	    st.setInt(1, userId);
 	    st.setString(2, c.code);
 	    st.setString(3, c.name);
-	    int type = findCurrencyTypeId(c.type);
 	    st.setInt(4, type);
-	    st.execute();
-	    ResultSet rs = st.getResultSet();
-	    rs.next();
-	    code = rs.getString(1);
-	    rs.close();
-	    st.close();
+	    try(ResultSet rs = st.executeQuery()) {
+		rs.next();
+		code = rs.getString(1);
+		currencyIds.put(userId, code, rs.getInt(2));
+	    }
 	}
 	catch(SQLException e) {
 	    String currUniqueCnst = props.getProperty("currUniqueCnst");
@@ -308,19 +832,18 @@ public class Model {
     public String postAccounts(Account a, int userId) throws DeboException {
 	String name;
 	String query = "INSERT INTO accounts (user_id, name, type) "
-	    + "VALUES (?, ?, ?) RETURNING name";
-	try {
-	    PreparedStatement st = conn.prepareStatement(query);
+	    + "VALUES (?, ?, ?) RETURNING name, id";
+	int typeId = findAccountTypeId(a.type);
+	try(Connection conn = queryLog.connect("postAccounts");
+	    PreparedStatement st = conn.prepareStatement(query)) {
 	    st.setInt(1, userId);
 	    st.setString(2, a.name);
-	    int typeId = findAccountTypeId(a.type);
 	    st.setInt(3, typeId);
-	    st.execute();
-	    ResultSet rs = st.getResultSet();
-	    rs.next();
-	    name = rs.getString(1);
-	    rs.close();
-	    st.close();
+	    try(ResultSet rs = st.executeQuery()) {
+		rs.next();
+		name = rs.getString(1);
+		accountIds.put(userId, name, rs.getInt(2));
+	    }
 	}
 	catch(SQLException e) {
 	    String accUniqueCnst = props.getProperty("accUniqueCnst");
@@ -338,46 +861,42 @@ public class Model {
      */
     public int postTransactions(Transaction t, int userId) throws DeboException {
 	int id;
-	int optionalFields = 0;
-	String query = "INSERT INTO transactions (user_id, ";
+	int mask = 0;
 	if(t.date != null) {
-	    query += "date, ";
-	    optionalFields ++;
+	    mask |= QueryShapes.TX_DATE;
 	}
-	query += "amount, currency, debit, credit";
 	if(t.comment != null) {
-	    query += ", comment";
-	    optionalFields ++;
-	}
-	query += ") VALUES (?, ?, ?, ?, ?";
-	for(int i = 0; i < optionalFields; i ++) {
-	    query += ", ?";
-	}
-	query += ") RETURNING id";
-	try {
-	    PreparedStatement st = conn.prepareStatement(query);
-	    int offset = 0;
-	    st.setInt(1, userId);
-	    if(t.date != null) {
-		st.setString(2, t.date);
-		offset = 1;
-	    }
-	    st.setBigDecimal(2 + offset, t.amount);
-	    int currencyId = findCurrencyId(t.currency, userId);
-	    st.setInt(3 + offset, currencyId);
-	    int debitId = findAccountId(t.debit, userId);
-	    st.setInt(4 + offset, debitId);
-	    int creditId = findAccountId(t.credit, userId);
-	    st.setInt(5 + offset, creditId);
-	    if(t.comment != null) {
-		st.setString(6 + offset, t.comment);
-	    }
-	    st.execute();
-	    ResultSet rs = st.getResultSet();
-	    rs.next();
-	    id = rs.getInt(1);
-	    rs.close();
-	    st.close();
+	    mask |= QueryShapes.TX_COMMENT;
+	}
+	String query = shapes.insertTransaction(mask);
+	int currencyId = findCurrencyId(t.currency, userId);
+	int debitId = findAccountId(t.debit, userId);
+	int creditId = findAccountId(t.credit, userId);
+	LedgerDeltas deltas = new LedgerDeltas();
+	try(Connection conn = queryLog.connect("postTransactions")) {
+	    conn.setAutoCommit(false);
+	    try(PreparedStatement st = conn.prepareStatement(query)) {
+		int offset = 0;
+		st.setInt(1, userId);
+		if(t.date != null) {
+		    st.setString(2, t.date);
+		    offset = 1;
+		}
+		st.setBigDecimal(2 + offset, t.amount);
+		st.setInt(3 + offset, currencyId);
+		st.setInt(4 + offset, debitId);
+		st.setInt(5 + offset, creditId);
+		if(t.comment != null) {
+		    st.setString(6 + offset, t.comment);
+		}
+		try(ResultSet rs = st.executeQuery()) {
+		    rs.next();
+		    id = rs.getInt(1);
+		    deltas.add(currencyId, debitId, creditId, rs.getTimestamp(2), t.amount);
+		}
+	    }
+	    applyDeltas(conn, deltas);
+	    conn.commit();
 	}
 	catch(SQLException e) {
 	    String txDifferentCnst = props.getProperty("txDifferentCnst");
@@ -398,205 +917,560 @@ public class Model {
     }
 
     /**
-     * Returns a (filtered) list of currencies
+     * Creates many transactions in a single database transaction, resolving each name only
+     * once. Every transaction is checked before anything is written, and all the problems
+     * found are reported together with the index of their transaction.
      */
-    public ArrayList<Currency> getCurrencies(Currency filter, int userId) throws DeboException {
-	ArrayList<Currency> currencies = new ArrayList<Currency>();
-	String query = "SELECT currencies.id, code, currencies.name, "
-	    + "currency_types.name "
-	    + "FROM currencies "
-	    + "JOIN currency_types ON currencies.type = currency_types.id "
-	    + "WHERE user_id = ?";
-	if(filter.type != null) {
-	    query += " AND currency_types.name = ?";
-	}
-	try {
-	    PreparedStatement st = conn.prepareStatement(query);
-	    st.setInt(1, userId);
-	    if(filter.type != null) {
-		st.setString(2, filter.type);
+    public ArrayList<Transaction> postTransactionsBatch(Transaction[] ts, int userId)
+	throws DeboException {
+	int maxSize = Integer.valueOf(props.getProperty("txBatchMaxSize"));
+	if(ts.length > maxSize) {
+	    throw new DeboException(400, "At most " + maxSize + " transactions can be posted at once.");
+	}
+	BatchNames names = new BatchNames(userId);
+	BatchException invalid = new BatchException();
+	for(int i = 0; i < ts.length; i++) {
+	    String error = names.check(ts[i]);
+	    if(error != null) {
+		invalid.add(i, error);
 	    }
-	    ResultSet rs = st.executeQuery();
-	    while(rs.next()) {
-		Currency c = new Currency();
-		c.id = rs.getInt(1);
-		c.code = rs.getString(2);
-		c.name = rs.getString(3);
-		c.type = rs.getString(4);
-		currencies.add(c);
+	}
+	if(!invalid.isEmpty()) {
+	    throw invalid;
+	}
+	ArrayList<Transaction> created = new ArrayList<Transaction>(ts.length);
+	String query = "INSERT INTO transactions "
+	    + "(user_id, date, amount, currency, debit, credit, comment) "
+	    + "VALUES (?, COALESCE(CAST(? AS TIMESTAMPTZ), CURRENT_TIMESTAMP), ?, ?, ?, ?, "
+	    + "COALESCE(?, ''))";
+	LedgerDeltas deltas = new LedgerDeltas();
+	try(Connection conn = queryLog.connect("postTransactionsBatch")) {
+	    conn.setAutoCommit(false);
+	    try(PreparedStatement st = conn.prepareStatement(query, new String[] {"id", "date"})) {
+		for(Transaction t : ts) {
+		    int currencyId = names.currency(t.currency);
+		    int debitId = names.account(t.debit);
+		    int creditId = names.account(t.credit);
+		    st.setInt(1, userId);
+		    st.setString(2, t.date);
+		    st.setBigDecimal(3, t.amount);
+		    st.setInt(4, currencyId);
+		    st.setInt(5, debitId);
+		    st.setInt(6, creditId);
+		    st.setString(7, t.comment);
+		    st.addBatch();
+		}
+		st.executeBatch();
+		try(ResultSet rs = st.getGeneratedKeys()) {
+		    for(Transaction t : ts) {
+			rs.next();
+			Transaction c = new Transaction();
+			c.id = rs.getInt(1);
+			c.date = rs.getString(2);
+			c.amount = t.amount;
+			c.currency = t.currency;
+			c.debit = t.debit;
+			c.credit = t.credit;
+			c.comment = t.comment == null ? "" : t.comment;
+			created.add(c);
+			deltas.add(names.currency(t.currency), names.account(t.debit),
+				   names.account(t.credit), rs.getTimestamp(2), t.amount);
+		    }
+		}
 	    }
-	    rs.close();
-	    st.close();
+	    applyDeltas(conn, deltas);
+	    conn.commit();
 	}
-	catch (SQLException e) {
+	catch(SQLException e) {
+	    String date = invalidTimestamp(e, props.getProperty("txTimestampMsg"));
+	    if(date != null) {
+		for(int i = 0; i < ts.length; i++) {
+		    if(date.equals(ts[i].date)) {
+			invalid.add(i, "Unrecognizable date format. Use ISO 8601.");
+		    }
+		}
+		if(!invalid.isEmpty()) {
+		    throw invalid;
+		}
+	    }
 	    throw new DeboException(500, "A database error occurred.");
 	}
-	return currencies;
+	return created;
     }
 
     /**
-     * Returns a (filtered) list of accounts
+     * Resolves the currency codes and account names of a batch, reading each of the user's
+     * lists from the database at most once
      */
-    public ArrayList<Account> getAccounts(Account filter, int userId) throws DeboException {
-	ArrayList<Account> accounts = new ArrayList<Account>();
-	String query = "SELECT accounts.id, account_types.name, accounts.name "
-	    + "FROM accounts "
-	    + "JOIN account_types ON accounts.type = account_types.id "
-	    + "WHERE accounts.user_id = ?";
-	if(filter.type != null) {
-	    query += " AND account_types.name = ?";
+    private class BatchNames {
+
+	private final int userId;
+	private final HashMap<String, Integer> currencies;
+	private final HashMap<String, Integer> accounts;
+	private HashMap<String, Integer> loadedCurrencies;
+	private HashMap<String, Integer> loadedAccounts;
+
+	BatchNames(int userId) {
+	    this.userId = userId;
+	    currencies = new HashMap<String, Integer>();
+	    accounts = new HashMap<String, Integer>();
 	}
-	try {
-	    PreparedStatement st = conn.prepareStatement(query);
-	    st.setInt(1, userId);
-	    if(filter.type != null) {
-		st.setString(2, filter.type);
+
+	/**
+	 * Returns a currency id, or null if there's no such currency
+	 */
+	Integer currency(String code) throws DeboException {
+	    if(currencies.containsKey(code)) {
+		return currencies.get(code);
 	    }
-	    ResultSet rs = st.executeQuery();
-	    while(rs.next()) {
-		Account a = new Account();
-		a.id = rs.getInt(1);
-		a.type = rs.getString(2);
-		a.name = rs.getString(3);
-		accounts.add(a);
+	    Integer id = currencyIds.get(userId, code);
+	    if(id == null) {
+		if(loadedCurrencies == null) {
+		    loadedCurrencies = loadCurrencyIds(userId);
+		}
+		id = loadedCurrencies.get(code);
 	    }
-	    rs.close();
-	    st.close();
-	}
-	catch (SQLException e) {
-	    throw new DeboException(500, "A database error occurred.");
+	    currencies.put(code, id);
+	    return id;
+	}
+
+	/**
+	 * Returns an account id, or null if there's no such account
+	 */
+	Integer account(String name) throws DeboException {
+	    if(accounts.containsKey(name)) {
+		return accounts.get(name);
+	    }
+	    Integer id = accountIds.get(userId, name);
+	    if(id == null) {
+		if(loadedAccounts == null) {
+		    loadedAccounts = loadAccountIds(userId);
+		}
+		id = loadedAccounts.get(name);
+	    }
+	    accounts.put(name, id);
+	    return id;
+	}
+
+	/**
+	 * Returns what's wrong with a new transaction, or null if it can be inserted
+	 */
+	String check(Transaction t) throws DeboException {
+	    if(t == null || t.amount == null || t.currency == null || t.debit == null
+	       || t.credit == null) {
+		return "The following fields are required: amount, currency, debit, credit.";
+	    }
+	    if(t.amount.signum() <= 0) {
+		return "The amount must be positive.";
+	    }
+	    if(t.debit.equals(t.credit)) {
+		return "The debit and credit accounts must be different.";
+	    }
+	    if(currency(t.currency) == null) {
+		return "Currency '" + t.currency + "' doesn't exist.";
+	    }
+	    if(account(t.debit) == null) {
+		return "Account '" + t.debit + "' doesn't exist.";
+	    }
+	    if(account(t.credit) == null) {
+		return "Account '" + t.credit + "' doesn't exist.";
+	    }
+	    return null;
 	}
-	return accounts;
     }
 
+    // Rows of an import are written to the COPY stream in chunks of this many bytes
+    private static final int COPY_CHUNK = 1 << 16;
+    // An import stops checking rows after finding this many invalid ones
+    private static final int IMPORT_ERRORS = 100;
+    private static final Pattern COPY_LINE = Pattern.compile("line (\\d+)");
+
     /**
-     * Returns a (filtered) list of transactions
+     * Imports a statement. Its rows are checked and copied into a staging table as they're
+     * read, and then the ones not imported before are merged into the transactions and the
+     * running balances by a single statement. Either all the new rows are imported or none is.
+     * Every row needs a date, since that is part of what tells a row was imported before.
      */
-    public ArrayList<Transaction> getTransactions(TxFilter f, int userId) throws DeboException {
-	ArrayList<Transaction> transactions = new ArrayList<Transaction>();
-	ArrayList<Object> values = new ArrayList<Object>();
-	String query = "SELECT t.id, t.date, t.amount, c.code, a_debit.name, a_credit.name, "
-	    + "t.comment "
-	    + "FROM transactions t "
-	    + "JOIN accounts a_debit ON t.debit = a_debit.id "
-	    + "JOIN accounts a_credit ON t.credit = a_credit.id "
-	    + "JOIN currencies c ON t.currency = c.id "
-	    + "WHERE t.user_id = ?";
-	values.add(userId);
-	if(f.minDate != null || f.maxDate != null || f.minAmount != null || f.maxAmount != null
-	   || f.currency != null || f.debit != null || f.credit != null || f.account != null
-	   || f.commentHas != null) {
-	    boolean firstCondition = true;
-	    query += " AND ";
-	    if(f.minDate != null) {
-		firstCondition = false;
-		query += "date >= ?";
-		values.add(f.minDate);
-	    }
-	    if(f.maxDate != null) {
-		if(!firstCondition) {
-		    query += " AND ";
-		}
-		else {
-		    firstCondition = false;
-		}
-		query += "date <= ?";
-		values.add(f.maxDate);
+    public ImportResult importTransactions(TxSource source, ImportSpec spec, int userId)
+	throws DeboException, IOException {
+	BatchNames names = new BatchNames(userId);
+	BatchException invalid = new BatchException();
+	ImportResult result = new ImportResult();
+	LedgerDeltas months = new LedgerDeltas();
+	// staged dates round to whole seconds like stored ones, so a re-imported row matches
+	String staging = "CREATE TEMP TABLE import_staging (seq INT, "
+	    + "date TIMESTAMP (0) WITH TIME ZONE, amount NUMERIC, currency INT, debit INT, "
+	    + "credit INT, comment TEXT) ON COMMIT DROP";
+	String merge = "WITH staged AS ("
+	    + "SELECT seq, date, amount, currency, debit, credit, comment FROM import_staging), "
+	    + "fresh AS (SELECT * FROM staged s WHERE NOT EXISTS ("
+	    + "SELECT 1 FROM transactions t WHERE t.user_id = ? "
+	    + "AND debo.tx_hash(t.date, t.amount, t.currency, t.debit, t.credit, t.comment) "
+	    + "= debo.tx_hash(s.date, s.amount, s.currency, s.debit, s.credit, s.comment) "
+	    + "AND t.date = s.date AND t.amount = s.amount AND t.currency = s.currency "
+	    + "AND t.debit = s.debit AND t.credit = s.credit AND t.comment = s.comment)), "
+	    + "inserted AS (INSERT INTO transactions "
+	    + "(user_id, date, amount, currency, debit, credit, comment) "
+	    + "SELECT ?, date, amount, currency, debit, credit, comment FROM fresh ORDER BY seq "
+	    + "RETURNING currency, debit, credit, amount, "
+	    + "date_trunc('month', date AT TIME ZONE 'UTC')::DATE AS month), "
+	    + "deltas AS (SELECT debit AS account, currency, amount, month FROM inserted "
+	    + "UNION ALL SELECT credit, currency, -amount, month FROM inserted), "
+	    + "applied AS (INSERT INTO balances (account, currency, amount) "
+	    + "SELECT account, currency, sum(amount) FROM deltas GROUP BY account, currency "
+	    + "ORDER BY account, currency "
+	    + "ON CONFLICT (account, currency) "
+	    + "DO UPDATE SET amount = balances.amount + EXCLUDED.amount) "
+	    + "SELECT account, currency, month, sum(amount), (SELECT count(*) FROM inserted) "
+	    + "FROM deltas GROUP BY account, currency, month";
+	try(Connection conn = queryLog.connect("importTransactions")) {
+	    conn.setAutoCommit(false);
+	    try(Statement st = conn.createStatement()) {
+		st.execute(staging);
 	    }
-	    if(f.minAmount != null) {
-		if(!firstCondition) {
-		    query += " AND ";
+	    CopyIn copy = conn.unwrap(PGConnection.class).getCopyAPI()
+		.copyIn("COPY import_staging FROM STDIN (FORMAT csv)");
+	    try {
+		StringBuilder rows = new StringBuilder(COPY_CHUNK + 1024);
+		for(int i = 0; invalid.errors.size() < IMPORT_ERRORS; i++) {
+		    Transaction t;
+		    try {
+			t = source.next();
+		    }
+		    catch(DeboException e) {
+			invalid.add(i, e.error);
+			continue;
+		    }
+		    if(t == null) {
+			break;
+		    }
+		    result.read++;
+		    String error = fill(t, spec);
+		    if(error == null) {
+			error = names.check(t);
+		    }
+		    if(error != null) {
+			invalid.add(i, error);
+		    }
+		    if(!invalid.isEmpty()) {
+			continue;
+		    }
+		    rows.append(i).append(',');
+		    if(t.date != null) {
+			csvQuote(rows, t.date);
+		    }
+		    rows.append(',').append(t.amount.toPlainString())
+			.append(',').append(names.currency(t.currency))
+			.append(',').append(names.account(t.debit))
+			.append(',').append(names.account(t.credit))
+			.append(',');
+		    csvQuote(rows, t.comment == null ? "" : t.comment);
+		    rows.append('\n');
+		    if(rows.length() >= COPY_CHUNK) {
+			byte[] chunk = rows.toString().getBytes(StandardCharsets.UTF_8);
+			copy.writeToCopy(chunk, 0, chunk.length);
+			rows.setLength(0);
+		    }
 		}
-		else {
-		    firstCondition = false;
+		if(!invalid.isEmpty()) {
+		    copy.cancelCopy();
+		    throw invalid;
 		}
-		query += "amount >= ?";
-		values.add(f.minAmount);
+		byte[] chunk = rows.toString().getBytes(StandardCharsets.UTF_8);
+		copy.writeToCopy(chunk, 0, chunk.length);
+		copy.endCopy();
 	    }
-	    if(f.maxAmount != null) {
-		if(!firstCondition) {
-		    query += " AND ";
-		}
-		else {
-		    firstCondition = false;
+	    finally {
+		if(copy.isActive()) {
+		    copy.cancelCopy();
 		}
-		query += "amount <= ?";
-		values.add(f.maxAmount);
 	    }
-	    if(f.currency != null) {
-		if(!firstCondition) {
-		    query += " AND ";
+	    try(PreparedStatement st = conn.prepareStatement(merge)) {
+		st.setInt(1, userId);
+		st.setInt(2, userId);
+		try(ResultSet rs = st.executeQuery()) {
+		    // the running balances are already up to date; the checkpoints follow
+		    while(rs.next()) {
+			months.addMonth(rs.getInt(1), rs.getInt(2), rs.getDate(3).toLocalDate(),
+					rs.getBigDecimal(4));
+			result.imported = rs.getInt(5);
+		    }
 		}
-		else {
-		    firstCondition = false;
-		}
-		query += "c.code = ?";
-		values.add(f.currency);
 	    }
-	    if(f.debit != null) {
-		if(!firstCondition) {
-		    query += " AND ";
-		}
-		else {
-		    firstCondition = false;
+	    applyDeltas(conn, months);
+	    conn.commit();
+	}
+	catch(SQLException e) {
+	    String timestampMsg = props.getProperty("txTimestampMsg");
+	    if(e instanceof PSQLException && e.getMessage().contains(timestampMsg)
+	       && ((PSQLException) e).getServerErrorMessage() != null) {
+		String where = ((PSQLException) e).getServerErrorMessage().getWhere();
+		Matcher line = COPY_LINE.matcher(where == null ? "" : where);
+		if(line.find()) {
+		    invalid.add(Integer.valueOf(line.group(1)) - 1,
+				"Unrecognizable date format. Use ISO 8601.");
+		    throw invalid;
 		}
-		query += "a_debit.name = ?";
-		values.add(f.debit);
 	    }
-	    if(f.credit != null) {
-		if(!firstCondition) {
-		    query += " AND ";
-		}
-		else {
-		    firstCondition = false;
+	    throw new DeboException(500, "A database error occurred.");
+	}
+	result.duplicates = result.read - result.imported;
+	return result;
+    }
+
+    /**
+     * Gives an imported transaction the statement's currency if it has none, and turns a signed
+     * amount into a positive one between the statement's account and its counter account.
+     * Returns what's wrong with the transaction, or null.
+     */
+    static String fill(Transaction t, ImportSpec spec) {
+	if(t.currency == null) {
+	    t.currency = spec.currency;
+	}
+	// an undated row would get a new date on every import and never be found a duplicate
+	if(t.date == null) {
+	    return "Imported transactions need a date.";
+	}
+	if(t.debit != null || t.credit != null || t.amount == null) {
+	    return null;
+	}
+	if(spec.account == null || spec.counterAccount == null) {
+	    return "Transactions without debit and credit accounts need the account and "
+		+ "counterAccount parameters.";
+	}
+	if(t.amount.signum() < 0) {
+	    t.amount = t.amount.negate();
+	    t.debit = spec.counterAccount;
+	    t.credit = spec.account;
+	}
+	else {
+	    t.debit = spec.account;
+	    t.credit = spec.counterAccount;
+	}
+	return null;
+    }
+
+    private static void csvQuote(StringBuilder out, String value) {
+	out.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+
+    /**
+     * Returns the value Postgres couldn't read as a timestamp, if that's what made a statement
+     * (or any statement of a batch) fail
+     */
+    static String invalidTimestamp(SQLException e, String timestampMsg) {
+	for(SQLException cause = e; cause != null; cause = cause.getNextException()) {
+	    String msg = cause.getMessage();
+	    int start = msg == null ? -1 : msg.indexOf(timestampMsg + ": \"");
+	    if(start >= 0) {
+		start += timestampMsg.length() + 3;
+		int end = msg.indexOf('"', start);
+		if(end > start) {
+		    return msg.substring(start, end);
 		}
-		query += "a_credit.name = ?";
-		values.add(f.credit);
 	    }
-	    if(f.account != null) {
-		if(!firstCondition) {
-		    query += " AND ";
-		}
-		else {
-		    firstCondition = false;
+	}
+	return null;
+    }
+
+    private static final String CURRENCIES = "SELECT currencies.id, code, currencies.name, "
+	+ "currency_types.name "
+	+ "FROM currencies "
+	+ "JOIN currency_types ON currencies.type = currency_types.id "
+	+ "WHERE user_id = ?";
+
+    /**
+     * Returns a (filtered) list of currencies
+     */
+    public ArrayList<Currency> getCurrencies(Currency filter, int userId) throws DeboException {
+	ArrayList<Currency> currencies = new ArrayList<Currency>();
+	String query = CURRENCIES;
+	if(filter.type != null) {
+	    query += " AND currency_types.name = ?";
+	}
+	try(Connection conn = queryLog.connect("getCurrencies");
+	    PreparedStatement st = conn.prepareStatement(query)) {
+	    st.setInt(1, userId);
+	    if(filter.type != null) {
+		st.setString(2, filter.type);
+	    }
+	    try(ResultSet rs = st.executeQuery()) {
+		while(rs.next()) {
+		    Currency c = new Currency();
+		    c.id = rs.getInt(1);
+		    c.code = rs.getString(2);
+		    c.name = rs.getString(3);
+		    c.type = rs.getString(4);
+		    currencies.add(c);
 		}
-		query += "(a_debit.name = ? OR a_credit.name = ?)";
-		values.add(f.account);
-		values.add(f.account);
 	    }
-	    if(f.commentHas != null) {
-		String pattern = f.commentHas.replace(" ", ".*");
-		if(!firstCondition) {
-		    query += " AND ";
+	}
+	catch (SQLException e) {
+	    throw new DeboException(500, "A database error occurred.");
+	}
+	return currencies;
+    }
+
+    private static final String ACCOUNTS = "SELECT accounts.id, account_types.name, "
+	+ "accounts.name "
+	+ "FROM accounts "
+	+ "JOIN account_types ON accounts.type = account_types.id "
+	+ "WHERE accounts.user_id = ?";
+
+    /**
+     * Returns a (filtered) list of accounts
+     */
+    public ArrayList<Account> getAccounts(Account filter, int userId) throws DeboException {
+	ArrayList<Account> accounts = new ArrayList<Account>();
+	String query = ACCOUNTS;
+	if(filter.type != null) {
+	    query += " AND account_types.name = ?";
+	}
+	try(Connection conn = queryLog.connect("getAccounts");
+	    PreparedStatement st = conn.prepareStatement(query)) {
+	    st.setInt(1, userId);
+	    if(filter.type != null) {
+		st.setString(2, filter.type);
+	    }
+	    try(ResultSet rs = st.executeQuery()) {
+		while(rs.next()) {
+		    Account a = new Account();
+		    a.id = rs.getInt(1);
+		    a.type = rs.getString(2);
+		    a.name = rs.getString(3);
+		    accounts.add(a);
 		}
-		query += "comment ~* ?";
-		values.add(pattern);
 	    }
 	}
-	try {
-	    PreparedStatement st = conn.prepareStatement(query);
+	catch (SQLException e) {
+	    throw new DeboException(500, "A database error occurred.");
+	}
+	return accounts;
+    }
+
+    /**
+     * Returns a (filtered) list of transactions
+     */
+    public TxPage getTransactions(TxFilter f, int userId) throws DeboException {
+	int defaultLimit = Integer.valueOf(props.getProperty("txDefaultLimit"));
+	int maxLimit = Integer.valueOf(props.getProperty("txMaxLimit"));
+	int limit = f.limit == null ? defaultLimit : Math.min(f.limit, maxLimit);
+	TxPage page = new TxPage();
+	String query = shapes.selectTransactions(f.mask());
+	ArrayList<Object> values = f.values(userId);
+	// one row more than requested tells whether there's a next page
+	values.add(limit + 1);
+	try(Connection conn = queryLog.connect("getTransactions", f);
+	    PreparedStatement st = conn.prepareStatement(query)) {
 	    for(int i=0; i < values.size(); i++) {
 		st.setObject(i+1, values.get(i));
 	    }
-	    ResultSet rs = st.executeQuery();
-	    while(rs.next()) {
-		Transaction t = new Transaction();
-		t.id = rs.getInt(1);
-		t.date = rs.getString(2);
-		t.amount = rs.getBigDecimal(3);
-		t.currency = rs.getString(4);
-		t.debit = rs.getString(5);
-		t.credit = rs.getString(6);
-		t.comment = rs.getString(7);
-		transactions.add(t);
-	    }
-	    rs.close();
-	    st.close();
+	    try(ResultSet rs = st.executeQuery()) {
+		Timestamp lastDate = null;
+		float lastRank = 0;
+		while(rs.next()) {
+		    if(page.transactions.size() == limit) {
+			Transaction last = page.transactions.get(limit - 1);
+			page.next = f.commentMatches == null
+			    ? TxFilter.cursor(lastDate, last.id)
+			    : TxFilter.cursor(lastDate, last.id, lastRank);
+			break;
+		    }
+		    lastDate = rs.getTimestamp(2);
+		    if(f.commentMatches != null) {
+			lastRank = rs.getFloat(8);
+		    }
+		    page.transactions.add(readTransaction(rs));
+		}
+	    }
 	}
 	catch (SQLException e) {
 	    throw new DeboException(500, "A database error occurred.");
 	}
-	return transactions;
+	return page;
+    }
+
+    /**
+     * Hands every transaction matching a filter to a handler as soon as it's read, so the
+     * memory used doesn't depend on the number of rows. The limit of the filter is ignored.
+     */
+    public void streamTransactions(TxFilter f, int userId, TxHandler handler)
+	throws DeboException, IOException {
+	String query = shapes.exportTransactions(f.mask());
+	ArrayList<Object> values = f.values(userId);
+	try(Connection conn = queryLog.connect("streamTransactions", f)) {
+	    // the driver only fetches rows through a cursor within a transaction
+	    conn.setAutoCommit(false);
+	    try(PreparedStatement st = conn.prepareStatement(query)) {
+		st.setFetchSize(Integer.valueOf(props.getProperty("exportFetchSize")));
+		for(int i=0; i < values.size(); i++) {
+		    st.setObject(i+1, values.get(i));
+		}
+		try(ResultSet rs = st.executeQuery()) {
+		    while(rs.next()) {
+			handler.handle(readTransaction(rs));
+		    }
+		}
+	    }
+	    conn.commit();
+	}
+	catch(SQLException e) {
+	    throw new DeboException(500, "A database error occurred.");
+	}
+    }
+
+    /**
+     * Copies all of a user's transactions, accounts or currencies to a stream as CSV with a
+     * header, without reading the rows into Java. Transactions have the columns an import
+     * expects, so an export can be imported back.
+     */
+    public void copyCsv(String table, int userId, OutputStream out)
+	throws DeboException, IOException {
+	String select;
+	switch(table) {
+	case "transactions":
+	    select = "SELECT * FROM (" + QueryShapes.TX_SELECT + "WHERE t.user_id = " + userId
+		+ " ORDER BY t.date, t.id) "
+		+ "x (id, date, amount, currency, debit, credit, comment)";
+	    break;
+	case "accounts":
+	    select = "SELECT accounts.id, account_types.name AS type, accounts.name "
+		+ "FROM accounts "
+		+ "JOIN account_types ON accounts.type = account_types.id "
+		+ "WHERE accounts.user_id = " + userId + " ORDER BY accounts.id";
+	    break;
+	case "currencies":
+	    select = "SELECT currencies.id, code, currencies.name, currency_types.name AS type "
+		+ "FROM currencies "
+		+ "JOIN currency_types ON currencies.type = currency_types.id "
+		+ "WHERE user_id = " + userId + " ORDER BY currencies.id";
+	    break;
+	default:
+	    throw new DeboException(404);
+	}
+	// COPY can't take parameters; the user id is an authenticated int
+	String copy = "COPY (" + select + ") TO STDOUT (FORMAT csv, HEADER)";
+	try(Connection conn = queryLog.connect("copyCsv")) {
+	    conn.unwrap(PGConnection.class).getCopyAPI().copyOut(copy, out);
+	}
+	catch(SQLException e) {
+	    throw new DeboException(500, "A database error occurred.");
+	}
+    }
+
+    /**
+     * Reads a row selected by QueryShapes.TX_SELECT
+     */
+    private static Transaction readTransaction(ResultSet rs) throws SQLException {
+	Transaction t = new Transaction();
+	t.id = rs.getInt(1);
+	t.date = rs.getString(2);
+	t.amount = rs.getBigDecimal(3);
+	t.currency = rs.getString(4);
+	t.debit = rs.getString(5);
+	t.credit = rs.getString(6);
+	t.comment = rs.getString(7);
+	return t;
     }
     
     /**
@@ -609,22 +1483,21 @@ public class Model {
 	    + "FROM currencies "
 	    + "JOIN currency_types ON currencies.type = currency_types.id "
 	    + "WHERE user_id = ? AND code = ?";
-	try {
-	    PreparedStatement st = conn.prepareStatement(query);
+	try(Connection conn = queryLog.connect("getCurrency");
+	    PreparedStatement st = conn.prepareStatement(query)) {
 	    st.setInt(1, userId);
 	    st.setString(2, code);
-	    ResultSet rs = st.executeQuery();
-	    if(rs.next()) {
-		c.id = rs.getInt(1);
-		c.code = rs.getString(2);
-		c.name = rs.getString(3);
-		c.type = rs.getString(4);
-	    }
-	    else {
-		throw new DeboException(404, "The requested currency doesn't exist.");
+	    try(ResultSet rs = st.executeQuery()) {
+		if(rs.next()) {
+		    c.id = rs.getInt(1);
+		    c.code = rs.getString(2);
+		    c.name = rs.getString(3);
+		    c.type = rs.getString(4);
+		}
+		else {
+		    throw new DeboException(404, "The requested currency doesn't exist.");
+		}
 	    }
-	    rs.close();
-	    st.close();
 	}
 	catch (SQLException e) {
 	    throw new DeboException(500, "A database error occurred.");
@@ -641,21 +1514,20 @@ public class Model {
 	    + "FROM accounts "
 	    + "JOIN account_types ON accounts.type = account_types.id "
 	    + "WHERE accounts.user_id = ? AND accounts.name = ?";
-	try {
-	    PreparedStatement st = conn.prepareStatement(query);
+	try(Connection conn = queryLog.connect("getAccount");
+	    PreparedStatement st = conn.prepareStatement(query)) {
 	    st.setInt(1, userId);
 	    st.setString(2, name);
-	    ResultSet rs = st.executeQuery();
-	    if(rs.next()) {
-		a.id = rs.getInt(1);
-		a.type = rs.getString(2);
-		a.name = rs.getString(3);
-	    }
-	    else {
-		throw new DeboException(404, "The requested account doesn't exist.");
+	    try(ResultSet rs = st.executeQuery()) {
+		if(rs.next()) {
+		    a.id = rs.getInt(1);
+		    a.type = rs.getString(2);
+		    a.name = rs.getString(3);
+		}
+		else {
+		    throw new DeboException(404, "The requested account doesn't exist.");
+		}
 	    }
-	    rs.close();
-	    st.close();
 	}
 	catch (SQLException e) {
 	    throw new DeboException(500, "A database error occurred.");
@@ -668,32 +1540,19 @@ public class Model {
      */
     public Transaction getTransaction(int id, int userId) throws DeboException {
 	Transaction t = new Transaction();
-	String query = "SELECT t.id, t.date, t.amount, c.code, a_debit.name, "
-	    + "a_credit.name, t.comment "
-	    + "FROM transactions t "
-	    + "JOIN accounts a_debit ON t.debit = a_debit.id "
-	    + "JOIN accounts a_credit ON t.credit = a_credit.id "
-	    + "JOIN currencies c ON t.currency = c.id "
-	    + "WHERE t.user_id = ? AND t.id = ?";
-	try {
-	    PreparedStatement st = conn.prepareStatement(query);
+	String query = QueryShapes.TX_SELECT + "WHERE t.user_id = ? AND t.id = ?";
+	try(Connection conn = queryLog.connect("getTransaction");
+	    PreparedStatement st = conn.prepareStatement(query)) {
 	    st.setInt(1, userId);
 	    st.setInt(2, id);
-	    ResultSet rs = st.executeQuery();
-	    if(rs.next()) {
-		t.id = rs.getInt(1);
-		t.date = rs.getString(2);
-		t.amount = rs.getBigDecimal(3);
-		t.currency = rs.getString(4);
-		t.debit = rs.getString(5);
-		t.credit = rs.getString(6);
-		t.comment = rs.getString(7);
-	    }
-	    else {
-		throw new DeboException(404, "The requested transaction doesn't exist.");
+	    try(ResultSet rs = st.executeQuery()) {
+		if(rs.next()) {
+		    t = readTransaction(rs);
+		}
+		else {
+		    throw new DeboException(404, "The requested transaction doesn't exist.");
+		}
 	    }
-	    rs.close();
-	    st.close();
 	}
 	catch(SQLException e) {
 	    throw new DeboException(500, "A database error occurred.");
@@ -706,51 +1565,38 @@ public class Model {
      */
     public String patchCurrency(String oldCode, Currency c, int userId) throws DeboException {
 	String newCode = null;
+	int mask = 0;
 	ArrayList<Object> values = new ArrayList<Object>();
-	String query = "UPDATE currencies SET ";
-	boolean firstStatement = true;
 	if(c.code != null) {
-	    firstStatement = false;
-	    query += "code = ?";
+	    mask |= QueryShapes.CURRENCY_CODE;
 	    values.add(c.code);
 	}
 	if(c.name != null) {
-	    if(!firstStatement) {
-		query += ", ";
-	    }
-	    else {
-		firstStatement = false;
-	    }
-	    query += "name = ?";
+	    mask |= QueryShapes.CURRENCY_NAME;
 	    values.add(c.name);
 	}
 	if(c.type != null) {
-	    if(!firstStatement) {
-		query += ", ";
-	    }
-	    int typeId = findCurrencyTypeId(c.type);
-	    query += "type = ?";
-	    values.add(typeId);
+	    mask |= QueryShapes.CURRENCY_TYPE;
+	    values.add(findCurrencyTypeId(c.type));
 	}
-	query += " WHERE user_id = ? AND code = ? RETURNING code";
+	String query = shapes.patchCurrency(mask);
 	values.add(userId);
 	values.add(oldCode);
-	try {
-	    PreparedStatement st = conn.prepareStatement(query);
+	try(Connection conn = queryLog.connect("patchCurrency");
+	    PreparedStatement st = conn.prepareStatement(query)) {
 	    for(int i=0; i < values.size(); i++) {
 		st.setObject(i+1, values.get(i));
 	    }
-	    st.execute();
-	    ResultSet rs = st.getResultSet();
-	    if(rs.next()) {
-		newCode = rs.getString(1);
+	    try(ResultSet rs = st.executeQuery()) {
+		if(rs.next()) {
+		    newCode = rs.getString(1);
+		}
 	    }
-	    rs.close();
-	    st.close();
 	}
 	catch(SQLException e) {
 	    throw new DeboException(500, "A database error occurred.");
 	}
+	currencyIds.invalidateUser(userId);
 	if(newCode == null) {
 	    throw new DeboException(404, "The requested currency doesn't exist.");
 	}
@@ -762,41 +1608,34 @@ public class Model {
      */
     public String patchAccount(String oldName, Account a, int userId) throws DeboException {
 	String newName = null;
+	int mask = 0;
 	ArrayList<Object> values = new ArrayList<Object>();
-	String query = "UPDATE accounts SET ";
-	boolean firstStatement = true;
 	if(a.type != null) {
-	    firstStatement = false;
-	    int typeId = findAccountTypeId(a.type);
-	    query += "type = ?";
-	    values.add(typeId);
+	    mask |= QueryShapes.ACCOUNT_TYPE;
+	    values.add(findAccountTypeId(a.type));
 	}
 	if(a.name != null) {
-	    if(!firstStatement) {
-		query += ", ";
-	    }
-	    query += "name = ?";
+	    mask |= QueryShapes.ACCOUNT_NAME;
 	    values.add(a.name);
 	}
-	query += " WHERE user_id = ? AND name = ? RETURNING name";
+	String query = shapes.patchAccount(mask);
 	values.add(userId);
 	values.add(oldName);
-	try {
-	    PreparedStatement st = conn.prepareStatement(query);
+	try(Connection conn = queryLog.connect("patchAccount");
+	    PreparedStatement st = conn.prepareStatement(query)) {
 	    for(int i=0; i < values.size(); i++) {
 		st.setObject(i+1, values.get(i));
 	    }
-	    st.execute();
-	    ResultSet rs = st.getResultSet();
-	    if(rs.next()) {
-		newName = rs.getString(1);
+	    try(ResultSet rs = st.executeQuery()) {
+		if(rs.next()) {
+		    newName = rs.getString(1);
+		}
 	    }
-	    rs.close();
-	    st.close();
 	}
 	catch(SQLException e) {
 	    throw new DeboException(500, "A database error occurred.");
 	}
+	accountIds.invalidateUser(userId);
 	if(newName == null) {
 	    throw new DeboException(404, "The requested account doesn't exist.");
 	}
@@ -808,74 +1647,64 @@ public class Model {
      */
     public void patchTransaction(int id, Transaction t, int userId) throws DeboException {
 	int rowsUpdated = 0;
+	int mask = 0;
 	ArrayList<Object> values = new ArrayList<Object>();
-	String query = "UPDATE transactions SET ";
-	boolean firstStatement = true;
 	if(t.date != null) {
-	    firstStatement = false;
-	    query += "date = ?";
+	    mask |= QueryShapes.TX_SET_DATE;
 	    values.add(t.date);
 	}
 	if(t.amount != null) {
-	    if(!firstStatement) {
-		query += ", ";
-	    }
-	    else {
-		firstStatement = false;
-	    }
-	    query += "amount = ?";
+	    mask |= QueryShapes.TX_SET_AMOUNT;
 	    values.add(t.amount);
 	}
 	if(t.currency != null) {
-	    if(!firstStatement) {
-		query += ", ";
-	    }
-	    else {
-		firstStatement = false;
-	    }
-	    int currencyId = findCurrencyId(t.currency, userId);
-	    query += "currency = ?";
-	    values.add(currencyId);
+	    mask |= QueryShapes.TX_SET_CURRENCY;
+	    values.add(findCurrencyId(t.currency, userId));
 	}
 	if(t.debit != null) {
-	    if(!firstStatement) {
-		query += ", ";
-	    }
-	    else {
-		firstStatement = false;
-	    }
-	    int debitId = findAccountId(t.debit, userId);
-	    query += "debit = ?";
-	    values.add(debitId);
+	    mask |= QueryShapes.TX_SET_DEBIT;
+	    values.add(findAccountId(t.debit, userId));
 	}
 	if(t.credit != null) {
-	    if(!firstStatement) {
-		query += ", ";
-	    }
-	    else {
-		firstStatement = false;
-	    }
-	    int creditId = findAccountId(t.credit, userId);
-	    query += "credit = ?";
-	    values.add(creditId);
+	    mask |= QueryShapes.TX_SET_CREDIT;
+	    values.add(findAccountId(t.credit, userId));
 	}
 	if(t.comment != null) {
-	    if(!firstStatement) {
-		query += ", ";
-	    }
-	    query += "comment = ?";
+	    mask |= QueryShapes.TX_SET_COMMENT;
 	    values.add(t.comment);
 	}
-	query += " WHERE user_id = ? AND id = ?";
+	String query = shapes.patchTransaction(mask);
 	values.add(userId);
 	values.add(id);
-	try {
-	    PreparedStatement st = conn.prepareStatement(query);
-	    for(int i=0; i < values.size(); i++) {
-		st.setObject(i+1, values.get(i));
+	String oldQuery = "SELECT currency, debit, credit, amount, date FROM transactions "
+	    + "WHERE user_id = ? AND id = ? FOR UPDATE";
+	LedgerDeltas deltas = new LedgerDeltas();
+	try(Connection conn = queryLog.connect("patchTransaction")) {
+	    conn.setAutoCommit(false);
+	    try(PreparedStatement oldSt = conn.prepareStatement(oldQuery)) {
+		oldSt.setInt(1, userId);
+		oldSt.setInt(2, id);
+		try(ResultSet rs = oldSt.executeQuery()) {
+		    if(rs.next()) {
+			deltas.revert(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getTimestamp(5),
+				      rs.getBigDecimal(4));
+		    }
+		}
+	    }
+	    try(PreparedStatement st = conn.prepareStatement(query)) {
+		for(int i=0; i < values.size(); i++) {
+		    st.setObject(i+1, values.get(i));
+		}
+		try(ResultSet rs = st.executeQuery()) {
+		    if(rs.next()) {
+			rowsUpdated = 1;
+			deltas.add(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getTimestamp(5),
+				   rs.getBigDecimal(4));
+		    }
+		}
 	    }
-	    rowsUpdated = st.executeUpdate();
-	    st.close();
+	    applyDeltas(conn, deltas);
+	    conn.commit();
 	}
 	catch(SQLException e) {
 	    String txDifferentCnst = props.getProperty("txDifferentCnst");
@@ -903,12 +1732,11 @@ public class Model {
     public void deleteCurrency(String code, int userId) throws DeboException {
 	int rowsDeleted = 0;
 	String query = "DELETE FROM currencies WHERE user_id = ? AND code = ?";
-	try {
-	    PreparedStatement st = conn.prepareStatement(query);
+	try(Connection conn = queryLog.connect("deleteCurrency");
+	    PreparedStatement st = conn.prepareStatement(query)) {
 	    st.setInt(1, userId);
 	    st.setString(2, code);
 	    rowsDeleted = st.executeUpdate();
-	    st.close();
 	}
 	catch(SQLException e) {
 	    String foreignCnst = props.getProperty("foreignCnst");
@@ -918,6 +1746,7 @@ public class Model {
 	    }
 	    throw new DeboException(500, "A database error occurred.");
 	}
+	currencyIds.invalidateUser(userId);
 	if(rowsDeleted == 0) {
 	    throw new DeboException(400, "The requested currency doesn't exist.");
 	}
@@ -929,12 +1758,11 @@ public class Model {
     public void deleteAccount(String name, int userId) throws DeboException {
 	int rowsDeleted = 0;
 	String query = "DELETE FROM accounts WHERE user_id = ? AND name = ?";
-	try {
-	    PreparedStatement st = conn.prepareStatement(query);
+	try(Connection conn = queryLog.connect("deleteAccount");
+	    PreparedStatement st = conn.prepareStatement(query)) {
 	    st.setInt(1, userId);
 	    st.setString(2, name);
 	    rowsDeleted = st.executeUpdate();
-	    st.close();
 	}
 	catch(SQLException e) {
 	    String foreignCnst = props.getProperty("foreignCnst");
@@ -944,6 +1772,7 @@ public class Model {
 	    }
 	    throw new DeboException(500, "A database error occurred.");
 	}
+	accountIds.invalidateUser(userId);
 	if(rowsDeleted == 0) {
 	    throw new DeboException(400, "The requested account doesn't exist.");
 	}
@@ -954,13 +1783,24 @@ public class Model {
      */
     public void deleteTransaction(int id, int userId) throws DeboException {
 	int rowsDeleted = 0;
-	String query = "DELETE FROM transactions WHERE user_id = ? AND id = ?";
-	try {
-	    PreparedStatement st = conn.prepareStatement(query);
-	    st.setInt(1, userId);
-	    st.setInt(2, id);
-	    rowsDeleted = st.executeUpdate();
-	    st.close();
+	String query = "DELETE FROM transactions WHERE user_id = ? AND id = ? "
+	    + "RETURNING currency, debit, credit, amount, date";
+	LedgerDeltas deltas = new LedgerDeltas();
+	try(Connection conn = queryLog.connect("deleteTransaction")) {
+	    conn.setAutoCommit(false);
+	    try(PreparedStatement st = conn.prepareStatement(query)) {
+		st.setInt(1, userId);
+		st.setInt(2, id);
+		try(ResultSet rs = st.executeQuery()) {
+		    if(rs.next()) {
+			rowsDeleted = 1;
+			deltas.revert(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getTimestamp(5),
+				      rs.getBigDecimal(4));
+		    }
+		}
+	    }
+	    applyDeltas(conn, deltas);
+	    conn.commit();
 	}
 	catch(SQLException e) {
 	    throw new DeboException(500, "A database error occurred.");
@@ -970,6 +1810,575 @@ public class Model {
 	}
     }
 
+    /**
+     * Creates a group whose only member is the user creating it
+     */
+    public int postGroup(Group g, int userId) throws DeboException {
+	int id;
+	String query = "INSERT INTO groups (name) VALUES (?) RETURNING id";
+	String memberQuery = "INSERT INTO group_members (group_id, user_id) VALUES (?, ?)";
+	try(Connection conn = queryLog.connect("postGroup")) {
+	    conn.setAutoCommit(false);
+	    try(PreparedStatement st = conn.prepareStatement(query)) {
+		st.setString(1, g.name);
+		try(ResultSet rs = st.executeQuery()) {
+		    rs.next();
+		    id = rs.getInt(1);
+		}
+	    }
+	    try(PreparedStatement st = conn.prepareStatement(memberQuery)) {
+		st.setInt(1, id);
+		st.setInt(2, userId);
+		st.executeUpdate();
+	    }
+	    conn.commit();
+	}
+	catch(SQLException e) {
+	    throw new DeboException(500, "A database error occurred.");
+	}
+	return id;
+    }
+
+    /**
+     * Adds a user to a group the requesting user is a member of
+     */
+    public void postGroupMember(int groupId, String email, int userId) throws DeboException {
+	String query = "INSERT INTO group_members (group_id, user_id) "
+	    + "SELECT ?, id FROM users WHERE email = ? "
+	    + "ON CONFLICT DO NOTHING RETURNING user_id";
+	try(Connection conn = queryLog.connect("postGroupMember")) {
+	    groupMembers(conn, groupId, userId);
+	    try(PreparedStatement st = conn.prepareStatement(query)) {
+		st.setInt(1, groupId);
+		st.setString(2, email);
+		try(ResultSet rs = st.executeQuery()) {
+		    if(!rs.next() && !isUser(conn, email)) {
+			throw new DeboException(400, "User '" + email + "' doesn't exist.");
+		    }
+		}
+	    }
+	}
+	catch(SQLException e) {
+	    throw new DeboException(500, "A database error occurred.");
+	}
+    }
+
+    private boolean isUser(Connection conn, String email) throws SQLException {
+	try(PreparedStatement st = conn.prepareStatement("SELECT 1 FROM users WHERE email = ?")) {
+	    st.setString(1, email);
+	    try(ResultSet rs = st.executeQuery()) {
+		return rs.next();
+	    }
+	}
+    }
+
+    /**
+     * Returns a group the requesting user is a member of
+     */
+    public Group getGroup(int groupId, int userId) throws DeboException {
+	Group g = new Group();
+	String query = "SELECT name FROM groups WHERE id = ?";
+	try(Connection conn = queryLog.connect("getGroup")) {
+	    g.id = groupId;
+	    g.members = new ArrayList<String>(groupMembers(conn, groupId, userId).keySet());
+	    try(PreparedStatement st = conn.prepareStatement(query)) {
+		st.setInt(1, groupId);
+		try(ResultSet rs = st.executeQuery()) {
+		    rs.next();
+		    g.name = rs.getString(1);
+		}
+	    }
+	}
+	catch(SQLException e) {
+	    throw new DeboException(500, "A database error occurred.");
+	}
+	return g;
+    }
+
+    /**
+     * Returns the ids of a group's members by email, sorted by email
+     * @throws DeboException if the requesting user isn't a member, as if the group didn't exist
+     */
+    private TreeMap<String, Integer> groupMembers(Connection conn, int groupId, int userId)
+	throws SQLException, DeboException {
+	return groupMembers(conn, groupId, userId, "");
+    }
+
+    /**
+     * Returns the ids of a group's members by email, locking their memberships in the mode given
+     * (e.g. " FOR SHARE") until the transaction ends
+     */
+    private TreeMap<String, Integer> groupMembers(Connection conn, int groupId, int userId,
+						  String lock)
+	throws SQLException, DeboException {
+	TreeMap<String, Integer> members = new TreeMap<String, Integer>();
+	String query = "SELECT users.email, users.id FROM group_members "
+	    + "JOIN users ON group_members.user_id = users.id "
+	    + "WHERE group_members.group_id = ?"
+	    + (lock.isEmpty() ? "" : lock + " OF group_members");
+	try(PreparedStatement st = conn.prepareStatement(query)) {
+	    st.setInt(1, groupId);
+	    try(ResultSet rs = st.executeQuery()) {
+		while(rs.next()) {
+		    members.put(rs.getString(1), rs.getInt(2));
+		}
+	    }
+	}
+	if(!members.containsValue(userId)) {
+	    throw new DeboException(404, "The requested group doesn't exist.");
+	}
+	return members;
+    }
+
+    /**
+     * Records an expense of a group and updates what each member is owed. Without splits, the
+     * amount is split evenly among all the members.
+     */
+    public int postExpense(int groupId, Expense e, int userId) throws DeboException {
+	int id;
+	String query = "INSERT INTO expenses (group_id, payer, date, amount, currency, comment) "
+	    + "VALUES (?, ?, COALESCE(CAST(? AS TIMESTAMPTZ), CURRENT_TIMESTAMP), ?, ?, "
+	    + "COALESCE(?, '')) RETURNING id";
+	String splitQuery = "INSERT INTO expense_splits (expense, user_id, amount) VALUES (?, ?, ?)";
+	String balanceQuery = "INSERT INTO group_balances (group_id, user_id, currency, amount) "
+	    + "VALUES (?, ?, ?, ?) "
+	    + "ON CONFLICT (group_id, user_id, currency) "
+	    + "DO UPDATE SET amount = group_balances.amount + EXCLUDED.amount";
+	try(Connection conn = queryLog.connect("postExpense")) {
+	    // the members are read in the same transaction as the writes, so the split is made
+	    // among the memberships the expense is recorded against
+	    conn.setAutoCommit(false);
+	    TreeMap<String, Integer> members = groupMembers(conn, groupId, userId, " FOR SHARE");
+	    Integer payer = e.payer == null ? Integer.valueOf(userId) : members.get(e.payer);
+	    if(payer == null) {
+		throw new DeboException(400, "The payer must be a member of the group.");
+	    }
+	    TreeMap<Integer, BigDecimal> shares = new TreeMap<Integer, BigDecimal>();
+	    if(e.splits == null || e.splits.isEmpty()) {
+		for(BigDecimal share : evenSplit(e.amount, members.size())) {
+		    shares.put(members.pollFirstEntry().getValue(), share);
+		}
+	    }
+	    else {
+		BigDecimal total = BigDecimal.ZERO;
+		for(Map.Entry<String, BigDecimal> split : e.splits.entrySet()) {
+		    Integer member = members.get(split.getKey());
+		    if(member == null) {
+			throw new DeboException(400, "'" + split.getKey()
+						+ "' isn't a member of the group.");
+		    }
+		    if(split.getValue() == null || split.getValue().signum() <= 0) {
+			throw new DeboException(400, "Every split must be positive.");
+		    }
+		    shares.put(member, split.getValue());
+		    total = total.add(split.getValue());
+		}
+		if(total.compareTo(e.amount) != 0) {
+		    throw new DeboException(400, "The splits must add up to the amount.");
+		}
+	    }
+	    // the payer is owed the whole amount and every member owes their share
+	    TreeMap<Integer, BigDecimal> nets = new TreeMap<Integer, BigDecimal>();
+	    nets.put(payer, e.amount);
+	    for(Map.Entry<Integer, BigDecimal> share : shares.entrySet()) {
+		nets.merge(share.getKey(), share.getValue().negate(), BigDecimal::add);
+	    }
+	    try(PreparedStatement st = conn.prepareStatement(query)) {
+		st.setInt(1, groupId);
+		st.setInt(2, payer);
+		st.setString(3, e.date);
+		st.setBigDecimal(4, e.amount);
+		st.setString(5, e.currency);
+		st.setString(6, e.comment);
+		try(ResultSet rs = st.executeQuery()) {
+		    rs.next();
+		    id = rs.getInt(1);
+		}
+	    }
+	    try(PreparedStatement st = conn.prepareStatement(splitQuery)) {
+		for(Map.Entry<Integer, BigDecimal> share : shares.entrySet()) {
+		    st.setInt(1, id);
+		    st.setInt(2, share.getKey());
+		    st.setBigDecimal(3, share.getValue());
+		    st.addBatch();
+		}
+		st.executeBatch();
+	    }
+	    // sorted by user id, so concurrent expenses lock the rows in the same order
+	    try(PreparedStatement st = conn.prepareStatement(balanceQuery)) {
+		for(Map.Entry<Integer, BigDecimal> net : nets.entrySet()) {
+		    st.setInt(1, groupId);
+		    st.setInt(2, net.getKey());
+		    st.setString(3, e.currency);
+		    st.setBigDecimal(4, net.getValue());
+		    st.addBatch();
+		}
+		st.executeBatch();
+	    }
+	    conn.commit();
+	}
+	catch(SQLException ex) {
+	    if(ex.getMessage().contains(props.getProperty("txTimestampMsg"))) {
+		throw new DeboException(400, "Unrecognizable date format. Use ISO 8601.");
+	    }
+	    throw new DeboException(500, "A database error occurred.");
+	}
+	return id;
+    }
+
+    /**
+     * Splits an amount in even shares, handing out the smallest units left over to the first
+     * shares so they add up to the amount exactly
+     */
+    static BigDecimal[] evenSplit(BigDecimal amount, int parts) {
+	int scale = Math.max(amount.scale(), 2);
+	BigDecimal unit = BigDecimal.ONE.movePointLeft(scale);
+	BigDecimal share = amount.divide(BigDecimal.valueOf(parts), scale, RoundingMode.DOWN);
+	BigDecimal left = amount.subtract(share.multiply(BigDecimal.valueOf(parts)));
+	BigDecimal[] shares = new BigDecimal[parts];
+	for(int i = 0; i < parts; i++) {
+	    shares[i] = share;
+	    if(left.signum() > 0) {
+		shares[i] = share.add(unit);
+		left = left.subtract(unit);
+	    }
+	}
+	return shares;
+    }
+
+    /**
+     * Returns what every member of a group is owed (positive) or owes (negative), by currency
+     * code and email
+     */
+    public HashMap<String, HashMap<String, BigDecimal>> getGroupBalances(int groupId, int userId)
+	throws DeboException {
+	HashMap<String, HashMap<String, BigDecimal>> balances =
+	    new HashMap<String, HashMap<String, BigDecimal>>();
+	String query = "SELECT group_balances.currency, users.email, group_balances.amount "
+	    + "FROM group_balances "
+	    + "JOIN users ON group_balances.user_id = users.id "
+	    + "WHERE group_balances.group_id = ?";
+	try(Connection conn = queryLog.connect("getGroupBalances")) {
+	    groupMembers(conn, groupId, userId);
+	    try(PreparedStatement st = conn.prepareStatement(query)) {
+		st.setInt(1, groupId);
+		try(ResultSet rs = st.executeQuery()) {
+		    while(rs.next()) {
+			balances.computeIfAbsent(rs.getString(1),
+						 k -> new HashMap<String, BigDecimal>())
+			    .put(rs.getString(2), rs.getBigDecimal(3));
+		    }
+		}
+	    }
+	}
+	catch(SQLException e) {
+	    throw new DeboException(500, "A database error occurred.");
+	}
+	return balances;
+    }
+
+    /**
+     * Adds the changes of some transaction writes to the running balances and to the month-end
+     * checkpoints. It must be called within the same database transaction that changed the
+     * rows; any uncommitted work is rolled back when the connection goes back to the pool.
+     */
+    private void applyDeltas(Connection conn, LedgerDeltas deltas) throws SQLException {
+	String balanceQuery = "INSERT INTO balances (account, currency, amount) VALUES (?, ?, ?) "
+	    + "ON CONFLICT (account, currency) "
+	    + "DO UPDATE SET amount = balances.amount + EXCLUDED.amount";
+	// a checkpoint is a cumulative balance, so a change moves the checkpoints of its month and
+	// of every later one. A new checkpoint starts from the latest one before it.
+	String checkpointQuery = "WITH later AS (UPDATE balance_checkpoints SET amount = amount + ? "
+	    + "WHERE account = ? AND currency = ? AND month > ?) "
+	    + "INSERT INTO balance_checkpoints (account, currency, month, amount) "
+	    + "SELECT ?, ?, ?, COALESCE((SELECT amount FROM balance_checkpoints "
+	    + "WHERE account = ? AND currency = ? AND month < ? "
+	    + "ORDER BY month DESC LIMIT 1), 0) + ? "
+	    + "ON CONFLICT (account, currency, month) "
+	    + "DO UPDATE SET amount = balance_checkpoints.amount + ?";
+	// the balances are written first: their row locks serialize every writer of an
+	// (account, currency) pair before its checkpoints are read. Pairs whose checkpoints move
+	// but whose balance doesn't are written with a zero change, only to take that lock
+	try(PreparedStatement st = conn.prepareStatement(balanceQuery)) {
+	    for(Map.Entry<Long, BigDecimal> delta : deltas.balanceRows().entrySet()) {
+		st.setInt(1, LedgerDeltas.account(delta.getKey()));
+		st.setInt(2, LedgerDeltas.currency(delta.getKey()));
+		st.setBigDecimal(3, delta.getValue());
+		st.addBatch();
+	    }
+	    st.executeBatch();
+	}
+	try(PreparedStatement st = conn.prepareStatement(checkpointQuery)) {
+	    for(Map.Entry<Long, TreeMap<LocalDate, BigDecimal>> pair : deltas.months.entrySet()) {
+		int account = LedgerDeltas.account(pair.getKey());
+		int currency = LedgerDeltas.currency(pair.getKey());
+		// months in ascending order, so each one starts from the previous ones
+		for(Map.Entry<LocalDate, BigDecimal> delta : pair.getValue().entrySet()) {
+		    if(delta.getValue().signum() == 0) {
+			continue;
+		    }
+		    java.sql.Date month = java.sql.Date.valueOf(delta.getKey());
+		    st.setBigDecimal(1, delta.getValue());
+		    st.setInt(2, account);
+		    st.setInt(3, currency);
+		    st.setDate(4, month);
+		    st.setInt(5, account);
+		    st.setInt(6, currency);
+		    st.setDate(7, month);
+		    st.setInt(8, account);
+		    st.setInt(9, currency);
+		    st.setDate(10, month);
+		    st.setBigDecimal(11, delta.getValue());
+		    st.setBigDecimal(12, delta.getValue());
+		    st.addBatch();
+		}
+	    }
+	    st.executeBatch();
+	}
+    }
+
+    // The instant to compute a balance at, the start of its month in UTC, and the first day of
+    // that month. Checkpoints are compared to the day, since comparing their dates to the
+    // instant would read them in the session's time zone
+    private static final String AS_OF = "WITH bound AS (SELECT as_of, "
+	+ "date_trunc('month', as_of AT TIME ZONE 'UTC') AT TIME ZONE 'UTC' AS month, "
+	+ "date_trunc('month', as_of AT TIME ZONE 'UTC')::DATE AS first_day "
+	+ "FROM (SELECT CAST(? AS TIMESTAMPTZ) AS as_of) x) ";
+
+    static final String BALANCE_AS_OF = AS_OF + ", totals AS ("
+	+ "SELECT currency, amount FROM ("
+	+ "SELECT DISTINCT ON (currency) currency, amount FROM balance_checkpoints, bound "
+	+ "WHERE account = ? AND balance_checkpoints.month < bound.first_day "
+	+ "ORDER BY currency, balance_checkpoints.month DESC) checkpoints "
+	+ "UNION ALL SELECT currency, amount FROM transactions, bound "
+	+ "WHERE debit = ? AND date >= bound.month AND date <= bound.as_of "
+	+ "UNION ALL SELECT currency, -amount FROM transactions, bound "
+	+ "WHERE credit = ? AND date >= bound.month AND date <= bound.as_of) "
+	+ "SELECT c.code, sum(t.amount) FROM totals t "
+	+ "JOIN currencies c ON t.currency = c.id "
+	+ "GROUP BY c.code";
+
+    /**
+     * Returns an account's balance per currency code at a given instant, as debits minus credits.
+     * It's the latest month-end checkpoint before the date plus the movements since.
+     */
+    public HashMap<String, BigDecimal> getBalance(int accountId, Instant asOf)
+	throws DeboException {
+	HashMap<String, BigDecimal> balance = new HashMap<String, BigDecimal>();
+	try(Connection conn = queryLog.connect("getBalanceAsOf");
+	    PreparedStatement st = conn.prepareStatement(BALANCE_AS_OF)) {
+	    st.setTimestamp(1, Timestamp.from(asOf));
+	    st.setInt(2, accountId);
+	    st.setInt(3, accountId);
+	    st.setInt(4, accountId);
+	    try(ResultSet rs = st.executeQuery()) {
+		while(rs.next()) {
+		    balance.put(rs.getString(1), rs.getBigDecimal(2));
+		}
+	    }
+	}
+	catch(SQLException e) {
+	    throw new DeboException(500, "A database error occurred.");
+	}
+	return balance;
+    }
+
+    private static final String BALANCES_AS_OF = AS_OF + ", checkpoints AS ("
+	+ "SELECT DISTINCT ON (b.account, b.currency) b.account, b.currency, b.amount "
+	+ "FROM balance_checkpoints b "
+	+ "JOIN accounts a ON b.account = a.id, bound "
+	+ "WHERE a.user_id = ? AND b.month < bound.first_day "
+	+ "ORDER BY b.account, b.currency, b.month DESC), "
+	+ "recent AS (SELECT debit, credit, currency, amount FROM transactions, bound "
+	+ "WHERE user_id = ? AND date >= bound.month AND date <= bound.as_of), "
+	+ "totals AS (SELECT account, currency, sum(amount) AS amount FROM ("
+	+ "SELECT account, currency, amount FROM checkpoints "
+	+ "UNION ALL SELECT debit, currency, amount FROM recent "
+	+ "UNION ALL SELECT credit, currency, -amount FROM recent) movements "
+	+ "GROUP BY account, currency) "
+	+ "SELECT account_types.name, accounts.name, currencies.code, totals.amount "
+	+ "FROM accounts "
+	+ "JOIN account_types ON accounts.type = account_types.id "
+	+ "LEFT JOIN totals ON totals.account = accounts.id "
+	+ "LEFT JOIN currencies ON totals.currency = currencies.id "
+	+ "WHERE accounts.user_id = ?";
+
+    /**
+     * Returns the balances of all of a user's accounts at a given instant, as debits minus credits
+     */
+    public ArrayList<Balance> getBalances(int userId, Instant asOf) throws DeboException {
+	ArrayList<Balance> balances = new ArrayList<Balance>();
+	try(Connection conn = queryLog.connect("getBalancesAsOf");
+	    PreparedStatement st = conn.prepareStatement(BALANCES_AS_OF)) {
+	    st.setTimestamp(1, Timestamp.from(asOf));
+	    st.setInt(2, userId);
+	    st.setInt(3, userId);
+	    st.setInt(4, userId);
+	    try(ResultSet rs = st.executeQuery()) {
+		while(rs.next()) {
+		    Balance b = new Balance();
+		    b.accountType = rs.getString(1);
+		    b.account = rs.getString(2);
+		    b.currency = rs.getString(3);
+		    b.amount = rs.getBigDecimal(4);
+		    balances.add(b);
+		}
+	    }
+	}
+	catch(SQLException e) {
+	    throw new DeboException(500, "A database error occurred.");
+	}
+	return balances;
+    }
+
+    private static final String BALANCE = "SELECT c.code, b.amount FROM balances b "
+	+ "JOIN currencies c ON b.currency = c.id "
+	+ "WHERE b.account = ?";
+
+    /**
+     * Returns an account's running balance per currency code, as debits minus credits
+     */
+    public HashMap<String, BigDecimal> getBalance(int accountId) throws DeboException {
+	HashMap<String, BigDecimal> balance = new HashMap<String, BigDecimal>();
+	try(Connection conn = queryLog.connect("getBalance");
+	    PreparedStatement st = conn.prepareStatement(BALANCE)) {
+	    st.setInt(1, accountId);
+	    try(ResultSet rs = st.executeQuery()) {
+		while(rs.next()) {
+		    balance.put(rs.getString(1), rs.getBigDecimal(2));
+		}
+	    }
+	}
+	catch(SQLException e) {
+	    throw new DeboException(500, "A database error occurred.");
+	}
+	return balance;
+    }
+
+    private static final String BALANCES = "SELECT account_types.name, accounts.name, "
+	+ "currencies.code, balances.amount "
+	+ "FROM accounts "
+	+ "JOIN account_types ON accounts.type = account_types.id "
+	+ "LEFT JOIN balances ON balances.account = accounts.id "
+	+ "LEFT JOIN currencies ON balances.currency = currencies.id "
+	+ "WHERE accounts.user_id = ?";
+
+    /**
+     * Returns the running balance of every account of a user, as debits minus credits.
+     * Accounts without transactions come with a null currency and amount.
+     */
+    public ArrayList<Balance> getBalances(int userId) throws DeboException {
+	ArrayList<Balance> balances = new ArrayList<Balance>();
+	try(Connection conn = queryLog.connect("getBalances");
+	    PreparedStatement st = conn.prepareStatement(BALANCES)) {
+	    st.setInt(1, userId);
+	    try(ResultSet rs = st.executeQuery()) {
+		while(rs.next()) {
+		    Balance b = new Balance();
+		    b.accountType = rs.getString(1);
+		    b.account = rs.getString(2);
+		    b.currency = rs.getString(3);
+		    b.amount = rs.getBigDecimal(4);
+		    balances.add(b);
+		}
+	    }
+	}
+	catch(SQLException e) {
+	    throw new DeboException(500, "A database error occurred.");
+	}
+	return balances;
+    }
+
+    /**
+     * Balances recomputed from scratch out of every transaction, as debits minus credits
+     */
+    private static final String EXPECTED_BALANCES = "SELECT account, currency, "
+	+ "sum(amount) AS amount "
+	+ "FROM (SELECT debit AS account, currency, amount FROM transactions "
+	+ "UNION ALL "
+	+ "SELECT credit AS account, currency, -amount FROM transactions) movements "
+	+ "GROUP BY account, currency";
+    private static final String EXPECTED_CHECKPOINTS = "SELECT account, currency, month, "
+	+ "sum(sum(amount)) OVER (PARTITION BY account, currency ORDER BY month) AS amount "
+	+ "FROM (SELECT debit AS account, currency, amount, date FROM transactions "
+	+ "UNION ALL "
+	+ "SELECT credit AS account, currency, -amount, date FROM transactions) movements "
+	+ "CROSS JOIN LATERAL "
+	+ "(SELECT date_trunc('month', date AT TIME ZONE 'UTC')::DATE AS month) m "
+	+ "GROUP BY account, currency, month";
+
+    /**
+     * Compares the running balances against the transactions they derive from
+     * @return a description of every (account, currency) pair which is off
+     */
+    public ArrayList<String> verifyBalances() throws DeboException {
+	ArrayList<String> mismatches = new ArrayList<String>();
+	String query = "WITH expected AS (" + EXPECTED_BALANCES + ") "
+	    + "SELECT coalesce(e.account, b.account), coalesce(e.currency, b.currency), "
+	    + "e.amount, b.amount "
+	    + "FROM expected e "
+	    + "FULL JOIN balances b ON e.account = b.account AND e.currency = b.currency "
+	    + "WHERE coalesce(e.amount, 0) != coalesce(b.amount, 0)";
+	try(Connection conn = queryLog.connect("verifyBalances");
+	    PreparedStatement st = conn.prepareStatement(query);
+	    ResultSet rs = st.executeQuery()) {
+	    while(rs.next()) {
+		mismatches.add("account " + rs.getInt(1) + ", currency " + rs.getInt(2)
+			       + ": expected " + rs.getBigDecimal(3) + ", found "
+			       + rs.getBigDecimal(4));
+	    }
+	}
+	catch(SQLException e) {
+	    throw new DeboException(500, "A database error occurred.");
+	}
+	String checkpointQuery = "WITH expected AS (" + EXPECTED_CHECKPOINTS + ") "
+	    + "SELECT coalesce(e.account, b.account), coalesce(e.currency, b.currency), "
+	    + "coalesce(e.month, b.month), e.amount, b.amount "
+	    + "FROM expected e "
+	    + "FULL JOIN balance_checkpoints b "
+	    + "ON e.account = b.account AND e.currency = b.currency AND e.month = b.month "
+	    + "WHERE e.amount IS DISTINCT FROM b.amount";
+	try(Connection conn = queryLog.connect("verifyBalances");
+	    PreparedStatement st = conn.prepareStatement(checkpointQuery);
+	    ResultSet rs = st.executeQuery()) {
+	    while(rs.next()) {
+		mismatches.add("account " + rs.getInt(1) + ", currency " + rs.getInt(2)
+			       + ", month " + rs.getDate(3) + ": expected " + rs.getBigDecimal(4)
+			       + ", found " + rs.getBigDecimal(5));
+	    }
+	}
+	catch(SQLException e) {
+	    throw new DeboException(500, "A database error occurred.");
+	}
+	return mismatches;
+    }
+
+    /**
+     * Recomputes every running balance and month-end checkpoint out of the transactions table
+     * @return the number of (account, currency) pairs written
+     */
+    public int rebuildBalances() throws DeboException {
+	int rowsInserted;
+	try(Connection conn = queryLog.connect("rebuildBalances")) {
+	    conn.setAutoCommit(false);
+	    try(Statement st = conn.createStatement()) {
+		// keep writers out until the new balances are committed
+		st.execute("LOCK TABLE transactions IN SHARE MODE");
+		st.execute("DELETE FROM balances");
+		rowsInserted = st.executeUpdate("INSERT INTO balances (account, currency, amount) "
+						+ EXPECTED_BALANCES);
+		st.execute("DELETE FROM balance_checkpoints");
+		st.execute("INSERT INTO balance_checkpoints (account, currency, month, amount) "
+			   + EXPECTED_CHECKPOINTS);
+	    }
+	    conn.commit();
+	}
+	catch(SQLException e) {
+	    throw new DeboException(500, "A database error occurred.");
+	}
+	return rowsInserted;
+    }
+
     public static class CurrencyType {
 	public int id;
 	public String name;
@@ -1019,13 +2428,215 @@ public class Model {
 	public String credit;
 	public String account;
 	public String commentHas;
+	public String commentMatches;
+	public Integer limit;
+	public String after;
 	TxFilter() {}
+	/**
+	 * Builds the opaque cursor pointing right after a transaction
+	 */
+	static String cursor(Timestamp date, int id) {
+	    return encode(date.getTime() + ":" + id);
+	}
+	/**
+	 * Builds the opaque cursor pointing right after a transaction of a ranked search. The
+	 * rank is kept bit for bit, so it compares equal to the one the database computes.
+	 */
+	static String cursor(Timestamp date, int id, float rank) {
+	    return encode(date.getTime() + ":" + id + ":" + Float.floatToIntBits(rank));
+	}
+	private static String encode(String position) {
+	    return Base64.getUrlEncoder().withoutPadding()
+		.encodeToString(position.getBytes(StandardCharsets.UTF_8));
+	}
+	/**
+	 * Decodes the date and id the after cursor points to, followed by the rank in a ranked
+	 * search
+	 */
+	Object[] position() throws DeboException {
+	    try {
+		String position = new String(Base64.getUrlDecoder().decode(after),
+					     StandardCharsets.UTF_8);
+		String[] parts = position.split(":");
+		if(parts.length != (commentMatches == null ? 2 : 3)) {
+		    throw new DeboException(400, "Invalid cursor.");
+		}
+		Timestamp date = new Timestamp(Long.valueOf(parts[0]));
+		if(commentMatches == null) {
+		    return new Object[] {date, Integer.valueOf(parts[1])};
+		}
+		Float rank = Float.intBitsToFloat(Integer.valueOf(parts[2]));
+		return new Object[] {date, Integer.valueOf(parts[1]), rank};
+	    }
+	    catch(IllegalArgumentException e) {
+		throw new DeboException(400, "Invalid cursor.");
+	    }
+	}
+	/**
+	 * Returns a bitmask of the filters present, in QueryShapes.TX_CONDITIONS order
+	 */
+	int mask() {
+	    Object[] fields = {minDate, maxDate, minAmount, maxAmount, currency, debit, credit,
+			       account, commentHas, commentMatches, after};
+	    int mask = 0;
+	    for(int i = 0; i < fields.length; i++) {
+		if(fields[i] != null) {
+		    mask |= 1 << i;
+		}
+	    }
+	    return mask;
+	}
+	/**
+	 * Returns the values bound by a user's query with the filters present: the full-text
+	 * query of a ranked search, the user id and then the filters in QueryShapes.TX_CONDITIONS
+	 * order
+	 */
+	ArrayList<Object> values(int userId) throws DeboException {
+	    ArrayList<Object> values = new ArrayList<Object>();
+	    if(commentMatches != null) {
+		values.add(commentMatches);
+	    }
+	    values.add(userId);
+	    Object[] fields = {minDate, maxDate, minAmount, maxAmount, currency, debit, credit};
+	    for(Object field : fields) {
+		if(field != null) {
+		    values.add(field);
+		}
+	    }
+	    if(account != null) {
+		values.add(account);
+		values.add(account);
+	    }
+	    if(commentHas != null) {
+		values.add(commentHas.replace(" ", ".*"));
+	    }
+	    if(after != null) {
+		Object[] position = position();
+		if(commentMatches != null) {
+		    values.add(position[2]);
+		    values.add(position[2]);
+		}
+		values.add(position[0]);
+		values.add(position[1]);
+	    }
+	    return values;
+	}
 	public String toString() {
 	    return "\"" + commentHas + "\" (" + debit + ":" + credit + ") " + currency + " $"
 		+ minAmount + " - " + maxAmount + "$ <" + minDate + " - " + maxDate + ">";
 	}
     }
 
+    public static class Group {
+	public int id;
+	public String name;
+	public ArrayList<String> members;
+	Group() {}
+	public String toString() {
+	    return id + ": " + name + " " + members;
+	}
+    }
+
+    public static class Member {
+	public String email;
+	Member() {}
+	public String toString() {
+	    return email;
+	}
+    }
+
+    public static class Expense {
+	public int id;
+	public String payer;
+	public String date;
+	public BigDecimal amount;
+	public String currency;
+	public String comment;
+	public HashMap<String, BigDecimal> splits;
+	Expense() {}
+	public String toString() {
+	    return id + ": " + payer + " paid $" + amount + " " + currency + " for " + splits
+		+ " @ " + date + " | " + comment;
+	}
+    }
+
+    public static class Transfer {
+	public String from;
+	public String to;
+	public BigDecimal amount;
+	public String currency;
+	Transfer() {}
+	public String toString() {
+	    return from + " > $" + amount + " " + currency + " > " + to;
+	}
+    }
+
+    public static class Balance {
+	public String accountType;
+	public String account;
+	public String currency;
+	public BigDecimal amount;
+	Balance() {}
+	public String toString() {
+	    return "<" + accountType + "> " + account + ": " + amount + " " + currency;
+	}
+    }
+
+    /**
+     * Supplies transactions one at a time
+     */
+    public interface TxSource {
+	/**
+	 * Returns the next transaction, or null if there are no more. A DeboException means
+	 * the next transaction is invalid; the ones after it can still be read.
+	 */
+	Transaction next() throws IOException, DeboException;
+    }
+
+    /**
+     * Describes a statement to import. The columns are the names in the header of a CSV file,
+     * which default to the names of the fields.
+     */
+    public static class ImportSpec {
+	public String format;
+	public String currency;
+	public String account;
+	public String counterAccount;
+	public String delimiter;
+	public String dateColumn;
+	public String amountColumn;
+	public String currencyColumn;
+	public String debitColumn;
+	public String creditColumn;
+	public String commentColumn;
+	ImportSpec() {}
+    }
+
+    public static class ImportResult {
+	public int read;
+	public int imported;
+	public int duplicates;
+	ImportResult() {}
+    }
+
+    /**
+     * Receives transactions one at a time
+     */
+    public interface TxHandler {
+	void handle(Transaction t) throws IOException;
+    }
+
+    public static class TxPage {
+	public ArrayList<Transaction> transactions;
+	public String next;
+	TxPage() {
+	    transactions = new ArrayList<Transaction>();
+	}
+	public String toString() {
+	    return transactions.size() + " transactions, next: " + next;
+	}
+    }
+
     public static class Transaction {
 	public int id;
 	public String date;
@@ -0,0 +1,99 @@
+package com.github.emi_silva.debo;
+
+import java.util.Map;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Maps each user's currency codes or account names to their ids, for a bounded number of users
+ */
+class NameCache {
+
+    private final int capacity;
+    private final ConcurrentHashMap<Integer, ConcurrentHashMap<String, Integer>> users;
+    private final AtomicLong generation;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+
+    NameCache(int capacity) {
+	this.capacity = capacity;
+	users = new ConcurrentHashMap<Integer, ConcurrentHashMap<String, Integer>>();
+	generation = new AtomicLong();
+	hits = new AtomicLong();
+	misses = new AtomicLong();
+    }
+
+    /**
+     * Returns the id of a name, or null if it must be looked up in the database
+     */
+    Integer get(int userId, String name) {
+	Map<String, Integer> ids = users.get(userId);
+	Integer id = ids == null ? null : ids.get(name);
+	if(id == null) {
+	    misses.incrementAndGet();
+	}
+	else {
+	    hits.incrementAndGet();
+	}
+	return id;
+    }
+
+    /**
+     * Returns the current generation, to be passed to load() before reading the database
+     */
+    long generation() {
+	return generation.get();
+    }
+
+    /**
+     * Replaces a user's names unless they were invalidated since the read started
+     */
+    void load(int userId, Map<String, Integer> ids, long readGeneration) {
+	if(capacity <= 0) {
+	    return;
+	}
+	if(users.size() >= capacity && !users.containsKey(userId)) {
+	    Iterator<Integer> it = users.keySet().iterator();
+	    while(users.size() >= capacity && it.hasNext()) {
+		it.next();
+		it.remove();
+	    }
+	}
+	ConcurrentHashMap<String, Integer> copy = new ConcurrentHashMap<String, Integer>(ids);
+	users.put(userId, copy);
+	if(generation.get() != readGeneration) {
+	    users.remove(userId, copy);
+	}
+    }
+
+    /**
+     * Adds a freshly created name to a user's cached names, if they are cached
+     */
+    void put(int userId, String name, int id) {
+	Map<String, Integer> ids = users.get(userId);
+	if(ids != null) {
+	    ids.put(name, id);
+	}
+    }
+
+    /**
+     * Forgets all of a user's names, e.g. after one of them is renamed or deleted
+     */
+    void invalidateUser(int userId) {
+	generation.incrementAndGet();
+	users.remove(userId);
+    }
+
+    long hits() {
+	return hits.get();
+    }
+
+    long misses() {
+	return misses.get();
+    }
+
+    int size() {
+	return users.size();
+    }
+}
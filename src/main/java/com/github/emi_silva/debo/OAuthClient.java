@@ -0,0 +1,138 @@
+package com.github.emi_silva.debo;
+
+import java.io.InterruptedIOException;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import com.mashape.unirest.http.HttpResponse;
+import com.mashape.unirest.http.Unirest;
+import com.mashape.unirest.http.async.Callback;
+import com.mashape.unirest.http.exceptions.UnirestException;
+import com.mashape.unirest.request.BaseRequest;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Asks Google for a user's email without holding a thread while waiting. Requests share a pool
+ * of kept-alive connections and give up after the configured timeouts, so a slow Google can't
+ * pile up logins.
+ */
+class OAuthClient {
+
+    private final Properties authProps;
+
+    OAuthClient(Properties authProps) {
+	this.authProps = authProps;
+	Unirest.setTimeouts(Long.valueOf(authProps.getProperty("oauthConnectTimeout")),
+			    Long.valueOf(authProps.getProperty("oauthReadTimeout")));
+	int connections = Integer.valueOf(authProps.getProperty("oauthMaxConnections"));
+	Unirest.setConcurrency(connections, connections);
+    }
+
+    /**
+     * Exchanges the code of an authenticated user for their email
+     */
+    CompletableFuture<String> login(String code) {
+	return accessToken(code).thenCompose(this::email);
+    }
+
+    /**
+     * Exchanges the code of an authenticated user for an access token
+     */
+    CompletableFuture<String> accessToken(String code) {
+	BaseRequest request = Unirest.post(authProps.getProperty("accessTokenEndpoint"))
+	    .header("Content-Type", authProps.getProperty("contentHeader"))
+	    .field("code", code)
+	    .field("client_id", authProps.getProperty("clientId"))
+	    .field("client_secret", authProps.getProperty("clientSecret"))
+	    .field("redirect_uri", authProps.getProperty("redirectUri"))
+	    .field("grant_type", authProps.getProperty("grantType"));
+	return send(request).thenApply(body -> {
+		if(!body.has("access_token")) {
+		    throw new CompletionException(new DeboException(400, "Could not obtain an "
+								    + "access token."));
+		}
+		return body.getString("access_token");
+	    });
+    }
+
+    /**
+     * Gets the email of the user an access token belongs to
+     */
+    CompletableFuture<String> email(String accessToken) {
+	String uri = authProps.getProperty("APIEndpoint") + "?alt=" + authProps.getProperty("alt");
+	BaseRequest request = Unirest.get(uri)
+	    .header("Authorization", authProps.getProperty("authKeyword") + " " + accessToken);
+	return send(request).thenApply(body -> {
+		if(!body.has("email")) {
+		    throw new CompletionException(new DeboException(500, "Could not obtain the "
+								    + "user's email."));
+		}
+		return body.getString("email");
+	    });
+    }
+
+    private static CompletableFuture<JSONObject> send(BaseRequest request) {
+	CompletableFuture<JSONObject> future = new CompletableFuture<JSONObject>();
+	request.asStringAsync(new Callback<String>() {
+		public void completed(HttpResponse<String> response) {
+		    try {
+			future.complete(new JSONObject(response.getBody()));
+		    }
+		    catch(JSONException e) {
+			future.completeExceptionally(new DeboException(500, "A network error "
+								       + "occurred."));
+		    }
+		}
+		public void failed(UnirestException e) {
+		    future.completeExceptionally(networkError(e));
+		}
+		public void cancelled() {
+		    future.completeExceptionally(new DeboException(500, "A network error "
+								   + "occurred."));
+		}
+	    });
+	return future;
+    }
+
+    private static DeboException networkError(Throwable e) {
+	for(Throwable cause = e; cause != null; cause = cause.getCause()) {
+	    if(cause instanceof InterruptedIOException) {
+		return new DeboException(504, "Google took too long to answer.");
+	    }
+	}
+	return new DeboException(500, "A network error occurred.");
+    }
+
+    /**
+     * Waits for a future and returns its result, rethrowing the error it failed with
+     */
+    static <T> T await(CompletableFuture<T> future) throws DeboException {
+	try {
+	    return future.get();
+	}
+	catch(ExecutionException e) {
+	    throw failure(e);
+	}
+	catch(InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new DeboException(500, "The request was interrupted.");
+	}
+    }
+
+    /**
+     * Returns the error a future failed with
+     */
+    static DeboException failure(Throwable e) {
+	Throwable cause = e;
+	while((cause instanceof CompletionException || cause instanceof ExecutionException)
+	      && cause.getCause() != null) {
+	    cause = cause.getCause();
+	}
+	if(cause instanceof DeboException) {
+	    return (DeboException) cause;
+	}
+	return new DeboException(500);
+    }
+}
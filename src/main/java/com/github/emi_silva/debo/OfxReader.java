@@ -0,0 +1,169 @@
+package com.github.emi_silva.debo;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+
+/**
+ * Reads the transactions of an OFX statement one at a time, both from SGML (OFX 1.x) and XML
+ * (OFX 2.x) files. Amounts keep their sign: positive ones were paid into the statement's
+ * account and negative ones out of it, so the transactions have neither debit nor credit.
+ */
+class OfxReader implements Model.TxSource {
+
+    private final Reader in;
+    private final StringBuilder text;
+    private int next;
+    private String currency;
+
+    OfxReader(Reader in) throws IOException {
+	this.in = in;
+	text = new StringBuilder();
+	next = in.read();
+    }
+
+    public Model.Transaction next() throws IOException, DeboException {
+	Model.Transaction t = null;
+	String name = null;
+	String memo = null;
+	String amount = null;
+	String date = null;
+	String tag;
+	while((tag = nextTag()) != null) {
+	    if(tag.equals("STMTTRN")) {
+		t = new Model.Transaction();
+		name = memo = amount = date = null;
+	    }
+	    else if(tag.equals("CURDEF")) {
+		currency = value();
+	    }
+	    else if(t == null) {
+		continue;
+	    }
+	    else if(tag.equals("DTPOSTED")) {
+		date = value();
+	    }
+	    else if(tag.equals("TRNAMT")) {
+		amount = value();
+	    }
+	    else if(tag.equals("NAME")) {
+		name = value();
+	    }
+	    else if(tag.equals("MEMO")) {
+		memo = value();
+	    }
+	    else if(tag.equals("/STMTTRN")) {
+		if(amount == null || amount.isEmpty()) {
+		    throw new DeboException(400, "The transaction has no amount.");
+		}
+		try {
+		    t.amount = new BigDecimal(amount.replace(',', '.'));
+		}
+		catch(NumberFormatException e) {
+		    throw new DeboException(400, "Unrecognizable amount '" + amount + "'.");
+		}
+		t.date = date == null ? null : date(date);
+		t.currency = currency;
+		if(name != null && memo != null && !memo.isEmpty() && !memo.equals(name)) {
+		    t.comment = name + " " + memo;
+		}
+		else {
+		    t.comment = name != null ? name : memo;
+		}
+		return t;
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * Converts an OFX date such as 20181231120000.000[-5:EST] to ISO 8601. Dates without a
+     * time zone are in GMT.
+     */
+    static String date(String ofx) throws DeboException {
+	String digits = ofx;
+	String offset = "+00:00";
+	int bracket = ofx.indexOf('[');
+	if(bracket >= 0) {
+	    digits = ofx.substring(0, bracket);
+	    int end = ofx.indexOf(':', bracket);
+	    if(end < 0) {
+		end = ofx.indexOf(']', bracket);
+	    }
+	    if(end < 0) {
+		throw new DeboException(400, "Unrecognizable date '" + ofx + "'.");
+	    }
+	    offset = offset(ofx.substring(bracket + 1, end));
+	}
+	int dot = digits.indexOf('.');
+	if(dot >= 0) {
+	    digits = digits.substring(0, dot);
+	}
+	if((digits.length() != 8 && digits.length() != 12 && digits.length() != 14)
+	   || !digits.chars().allMatch(Character::isDigit)) {
+	    throw new DeboException(400, "Unrecognizable date '" + ofx + "'.");
+	}
+	StringBuilder iso = new StringBuilder(25)
+	    .append(digits, 0, 4).append('-').append(digits, 4, 6).append('-')
+	    .append(digits, 6, 8).append('T');
+	if(digits.length() == 8) {
+	    iso.append("00:00:00");
+	}
+	else {
+	    iso.append(digits, 8, 10).append(':').append(digits, 10, 12).append(':')
+		.append(digits.length() == 14 ? digits.substring(12, 14) : "00");
+	}
+	return iso.append(offset).toString();
+    }
+
+    private static String offset(String hours) throws DeboException {
+	try {
+	    BigDecimal h = new BigDecimal(hours.trim());
+	    int minutes = h.multiply(BigDecimal.valueOf(60)).intValueExact();
+	    int abs = Math.abs(minutes);
+	    return String.format("%s%02d:%02d", minutes < 0 ? "-" : "+", abs / 60, abs % 60);
+	}
+	catch(NumberFormatException | ArithmeticException e) {
+	    throw new DeboException(400, "Unrecognizable time zone '" + hours + "'.");
+	}
+    }
+
+    /**
+     * Skips to the next tag and returns its name, with a leading slash if it's a closing tag,
+     * or null at the end of the input. Headers and processing instructions are skipped.
+     */
+    private String nextTag() throws IOException {
+	while(true) {
+	    while(next >= 0 && next != '<') {
+		next = in.read();
+	    }
+	    if(next < 0) {
+		return null;
+	    }
+	    text.setLength(0);
+	    next = in.read();
+	    while(next >= 0 && next != '>') {
+		text.append((char) next);
+		next = in.read();
+	    }
+	    next = in.read();
+	    if(text.length() > 0 && text.charAt(0) != '?' && text.charAt(0) != '!') {
+		return text.toString().trim().toUpperCase();
+	    }
+	}
+    }
+
+    /**
+     * Reads the text of the element whose tag was just read
+     */
+    private String value() throws IOException {
+	text.setLength(0);
+	while(next >= 0 && next != '<') {
+	    text.append((char) next);
+	    next = in.read();
+	}
+	return text.toString().trim()
+	    .replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"")
+	    .replace("&apos;", "'").replace("&nbsp;", " ").replace("&amp;", "&");
+    }
+}
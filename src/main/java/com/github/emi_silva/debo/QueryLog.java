@@ -0,0 +1,284 @@
+package com.github.emi_silva.debo;
+
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.sql.DataSource;
+import org.rapidoid.data.JSON;
+
+/**
+ * Times the database work of each Model method. A method borrows its connection through
+ * connect(), which hands out a connection that notes the statements run on it and the rows they
+ * return or change. Once the connection is closed, the call is added to its method's totals and,
+ * if it took longer than the threshold, written to the slow-query log as a line of JSON with the
+ * statements, how many times each ran, and the parameters the method was given.
+ */
+class QueryLog {
+
+    private static final Class<?>[] CONNECTION = {Connection.class};
+    private static final Class<?>[] PREPARED = {PreparedStatement.class};
+    private static final Class<?>[] STATEMENT = {Statement.class};
+
+    private final DataSource pool;
+    private final long slowNanos;
+    private final PrintStream out;
+    private final ConcurrentHashMap<String, Totals> totals;
+    private Metrics metrics;
+
+    /**
+     * @param slowMillis the milliseconds above which a call is logged
+     * @param out where slow calls are logged
+     */
+    QueryLog(DataSource pool, long slowMillis, PrintStream out) {
+	this.pool = pool;
+	slowNanos = slowMillis * 1000000;
+	this.out = out;
+	totals = new ConcurrentHashMap<String, Totals>();
+    }
+
+    /**
+     * Borrows a connection for a method
+     */
+    Connection connect(String method) throws SQLException {
+	return connect(method, null);
+    }
+
+    /**
+     * Borrows a connection for a method, logging the parameters it was given if it's slow
+     */
+    Connection connect(String method, Object params) throws SQLException {
+	long start = System.nanoTime();
+	Connection conn = pool.getConnection();
+	Call call = new Call(method, params, start, System.nanoTime() - start, conn);
+	return (Connection) Proxy.newProxyInstance(QueryLog.class.getClassLoader(), CONNECTION,
+						   call);
+    }
+
+    /**
+     * Adds the calls, time and rows of each method to the metrics
+     */
+    synchronized void addMetrics(Metrics metrics) {
+	this.metrics = metrics;
+	for(Map.Entry<String, Totals> t : totals.entrySet()) {
+	    addMetrics(t.getKey(), t.getValue());
+	}
+    }
+
+    private void addMetrics(String method, Totals t) {
+	String label = "method=\"" + method + "\"";
+	metrics.counter("debo_db_calls_total", "Model calls that used the database", label,
+			t.calls::sum);
+	metrics.counter("debo_db_seconds_total", "Time Model calls held a connection, including "
+			+ "waiting for it", label, () -> t.nanos.sum() / 1e9);
+	metrics.counter("debo_db_rows_total", "Rows read or written by Model calls", label,
+			t.rows::sum);
+	metrics.counter("debo_db_statements_total", "Statements run by Model calls", label,
+			t.statements::sum);
+	metrics.counter("debo_db_slow_calls_total", "Model calls slower than slowQueryMillis",
+			label, t.slow::sum);
+    }
+
+    /**
+     * Returns the totals of a method, or null if it hasn't run
+     */
+    Totals totals(String method) {
+	return totals.get(method);
+    }
+
+    /**
+     * Returns how many statements all methods have run
+     */
+    long statements() {
+	long sum = 0;
+	for(Totals t : totals.values()) {
+	    sum += t.statements.sum();
+	}
+	return sum;
+    }
+
+    private Totals totalsOf(String method) {
+	Totals t = totals.get(method);
+	if(t == null) {
+	    synchronized(this) {
+		t = totals.get(method);
+		if(t == null) {
+		    t = new Totals();
+		    totals.put(method, t);
+		    if(metrics != null) {
+			addMetrics(method, t);
+		    }
+		}
+	    }
+	}
+	return t;
+    }
+
+    static class Totals {
+	final LongAdder calls = new LongAdder();
+	final LongAdder nanos = new LongAdder();
+	final LongAdder rows = new LongAdder();
+	final LongAdder slow = new LongAdder();
+	final LongAdder statements = new LongAdder();
+    }
+
+    /**
+     * The database work of one call, noted by the proxies of its connection and statements and
+     * by the result sets they return
+     */
+    private class Call implements InvocationHandler {
+
+	final String method;
+	final Object params;
+	final long start;
+	final long acquireNanos;
+	final Connection conn;
+	LinkedHashMap<String, Integer> statements;
+	ArrayList<CountedResultSet> resultSets;
+	long rows;
+	boolean closed;
+
+	Call(String method, Object params, long start, long acquireNanos, Connection conn) {
+	    this.method = method;
+	    this.params = params;
+	    this.start = start;
+	    this.acquireNanos = acquireNanos;
+	    this.conn = conn;
+	}
+
+	public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+	    String name = m.getName();
+	    if(name.equals("close")) {
+		try {
+		    return forward(conn, m, args);
+		}
+		finally {
+		    finish();
+		}
+	    }
+	    Object result = forward(conn, m, args);
+	    if(result instanceof PreparedStatement) {
+		return statement(result, PREPARED, (String) args[0]);
+	    }
+	    if(result instanceof Statement) {
+		return statement(result, STATEMENT, null);
+	    }
+	    return result;
+	}
+
+	private void ran(String sql) {
+	    if(statements == null) {
+		statements = new LinkedHashMap<String, Integer>();
+	    }
+	    statements.merge(sql, 1, Integer::sum);
+	}
+
+	/**
+	 * Wraps a statement, prepared with some SQL or not, to count its executions and rows
+	 */
+	private Object statement(Object statement, Class<?>[] type, String prepared) {
+	    return Proxy.newProxyInstance(QueryLog.class.getClassLoader(), type,
+					  (proxy, m, args) -> {
+		    String name = m.getName();
+		    if(name.startsWith("execute")) {
+			boolean sql = args != null && args.length > 0 && args[0] instanceof String;
+			ran(sql ? (String) args[0] : prepared);
+		    }
+		    Object result = forward(statement, m, args);
+		    if(name.equals("executeQuery") || name.equals("getResultSet")) {
+			return result == null ? null : resultSet((ResultSet) result);
+		    }
+		    if(name.equals("executeUpdate") || name.equals("executeLargeUpdate")) {
+			rows += ((Number) result).longValue();
+		    }
+		    else if(name.equals("executeBatch")) {
+			for(int count : (int[]) result) {
+			    rows += Math.max(count, 0);
+			}
+		    }
+		    return result;
+		});
+	}
+
+	/**
+	 * Wraps a result set to count its rows. It's a plain class rather than a proxy, since
+	 * every column read goes through it.
+	 */
+	private ResultSet resultSet(ResultSet rs) {
+	    CountedResultSet counted = new CountedResultSet(rs);
+	    if(resultSets == null) {
+		resultSets = new ArrayList<CountedResultSet>();
+	    }
+	    resultSets.add(counted);
+	    return counted;
+	}
+
+	private void finish() {
+	    if(closed) {
+		return;
+	    }
+	    closed = true;
+	    long nanos = System.nanoTime() - start;
+	    if(resultSets != null) {
+		for(CountedResultSet rs : resultSets) {
+		    rows += rs.rows;
+		}
+	    }
+	    Totals t = totalsOf(method);
+	    t.calls.increment();
+	    t.nanos.add(nanos);
+	    t.rows.add(rows);
+	    if(statements != null) {
+		for(int times : statements.values()) {
+		    t.statements.add(times);
+		}
+	    }
+	    if(nanos >= slowNanos) {
+		t.slow.increment();
+		out.println(describe(nanos));
+	    }
+	}
+
+	private String describe(long nanos) {
+	    LinkedHashMap<String, Object> line = new LinkedHashMap<String, Object>();
+	    line.put("slowQuery", method);
+	    line.put("millis", nanos / 1e6);
+	    line.put("acquireMillis", acquireNanos / 1e6);
+	    line.put("rows", rows);
+	    ArrayList<Map<String, Object>> shapes = new ArrayList<Map<String, Object>>();
+	    if(statements != null) {
+		for(Map.Entry<String, Integer> s : statements.entrySet()) {
+		    LinkedHashMap<String, Object> shape = new LinkedHashMap<String, Object>();
+		    shape.put("sql", s.getKey().replaceAll("\\s+", " ").trim());
+		    shape.put("times", s.getValue());
+		    shapes.add(shape);
+		}
+	    }
+	    line.put("statements", shapes);
+	    if(params != null) {
+		line.put("params", params);
+	    }
+	    return JSON.stringify(line);
+	}
+    }
+
+    private static Object forward(Object target, Method m, Object[] args) throws Throwable {
+	try {
+	    return m.invoke(target, args);
+	}
+	catch(InvocationTargetException e) {
+	    throw e.getCause();
+	}
+    }
+}
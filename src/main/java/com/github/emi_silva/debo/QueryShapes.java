@@ -0,0 +1,246 @@
+package com.github.emi_silva.debo;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+/**
+ * Builds the SQL of the statements whose shape depends on which fields a request carries.
+ * Each combination of fields is a bitmask whose SQL is built once, so equal combinations always
+ * send the very same string and the driver can reuse its server-side prepared statement.
+ */
+class QueryShapes {
+
+    /**
+     * Selects transactions with their currency code and account names
+     */
+    static final String TX_SELECT = "SELECT t.id, t.date, t.amount, c.code, a_debit.name, "
+	+ "a_credit.name, t.comment "
+	+ "FROM transactions t "
+	+ "JOIN accounts a_debit ON t.debit = a_debit.id "
+	+ "JOIN accounts a_credit ON t.credit = a_credit.id "
+	+ "JOIN currencies c ON t.currency = c.id ";
+
+    /**
+     * The words of a comment, as indexed by transactions_comment_words
+     */
+    static final String TX_WORDS = "to_tsvector('simple', t.comment)";
+
+    /**
+     * How well a comment matches the full-text query q
+     */
+    static final String TX_RANK = "ts_rank(" + TX_WORDS + ", q)";
+
+    // Filters on transactions, in TxFilter.mask() order. The comment match needs the query q
+    // joined by a ranked search; the last filter resumes after a cursor.
+    static final String[] TX_CONDITIONS = {
+	"t.date >= ?",
+	"t.date <= ?",
+	"t.amount >= ?",
+	"t.amount <= ?",
+	"c.code = ?",
+	"a_debit.name = ?",
+	"a_credit.name = ?",
+	"(a_debit.name = ? OR a_credit.name = ?)",
+	"t.comment ~* ?",
+	TX_WORDS + " @@ q",
+	"(t.date, t.id) > (?, ?)"
+    };
+    static final int TX_MATCHES = 1 << 9;
+    static final int TX_AFTER = 1 << 10;
+
+    // Resumes a ranked search after a cursor, since it's sorted by descending rank first
+    static final String RANKED_AFTER = "(" + TX_RANK + " < ? OR " + TX_RANK + " = ? "
+	+ "AND (t.date, t.id) > (?, ?))";
+
+    // Optional columns of a new transaction
+    static final int TX_DATE = 1;
+    static final int TX_COMMENT = 2;
+
+    // Patchable fields of a currency
+    static final String[] CURRENCY_SETS = {"code = ?", "name = ?", "type = ?"};
+    static final int CURRENCY_CODE = 1;
+    static final int CURRENCY_NAME = 2;
+    static final int CURRENCY_TYPE = 4;
+
+    // Patchable fields of an account
+    static final String[] ACCOUNT_SETS = {"type = ?", "name = ?"};
+    static final int ACCOUNT_TYPE = 1;
+    static final int ACCOUNT_NAME = 2;
+
+    // Patchable fields of a transaction
+    static final String[] TX_SETS = {"date = ?", "amount = ?", "currency = ?", "debit = ?",
+				     "credit = ?", "comment = ?"};
+    static final int TX_SET_DATE = 1;
+    static final int TX_SET_AMOUNT = 2;
+    static final int TX_SET_CURRENCY = 4;
+    static final int TX_SET_DEBIT = 8;
+    static final int TX_SET_CREDIT = 16;
+    static final int TX_SET_COMMENT = 32;
+
+    private static final int SELECT_TRANSACTIONS = 0;
+    private static final int INSERT_TRANSACTION = 1;
+    private static final int PATCH_CURRENCY = 2;
+    private static final int PATCH_ACCOUNT = 3;
+    private static final int PATCH_TRANSACTION = 4;
+    private static final int EXPORT_TRANSACTIONS = 5;
+
+    private final ConcurrentHashMap<Long, String> shapes;
+    private final AtomicLong builds;
+    private final AtomicLong reuses;
+
+    QueryShapes() {
+	shapes = new ConcurrentHashMap<Long, String>();
+	builds = new AtomicLong();
+	reuses = new AtomicLong();
+    }
+
+    /**
+     * Selects a page of a user's transactions matching the filters in the mask, sorted by date
+     * and id, so a page can resume right after the last row of the previous one. A ranked
+     * search sorts the best matches first and selects their rank as an eighth column.
+     */
+    String selectTransactions(int mask) {
+	return shape(SELECT_TRANSACTIONS, mask,
+		     m -> filtered(m).append(order(m)).append(" LIMIT ?").toString());
+    }
+
+    /**
+     * Selects every one of a user's transactions matching the filters in the mask, sorted like
+     * a page
+     */
+    String exportTransactions(int mask) {
+	return shape(EXPORT_TRANSACTIONS, mask, m -> filtered(m).append(order(m)).toString());
+    }
+
+    /**
+     * Inserts a transaction with the optional columns in the mask
+     */
+    String insertTransaction(int mask) {
+	return shape(INSERT_TRANSACTION, mask, m -> {
+		StringBuilder query = new StringBuilder("INSERT INTO transactions (user_id, ");
+		StringBuilder params = new StringBuilder("?, ");
+		if((m & TX_DATE) != 0) {
+		    query.append("date, ");
+		    params.append("?, ");
+		}
+		query.append("amount, currency, debit, credit");
+		params.append("?, ?, ?, ?");
+		if((m & TX_COMMENT) != 0) {
+		    query.append(", comment");
+		    params.append(", ?");
+		}
+		return query.append(") VALUES (").append(params).append(") RETURNING id, date")
+		    .toString();
+	    });
+    }
+
+    /**
+     * Updates the fields in the mask of a user's currency given its code
+     */
+    String patchCurrency(int mask) {
+	return shape(PATCH_CURRENCY, mask, m -> update("currencies", CURRENCY_SETS, m,
+						       " WHERE user_id = ? AND code = ? "
+						       + "RETURNING code"));
+    }
+
+    /**
+     * Updates the fields in the mask of a user's account given its name
+     */
+    String patchAccount(int mask) {
+	return shape(PATCH_ACCOUNT, mask, m -> update("accounts", ACCOUNT_SETS, m,
+						      " WHERE user_id = ? AND name = ? "
+						      + "RETURNING name"));
+    }
+
+    /**
+     * Updates the fields in the mask of a user's transaction given its id
+     */
+    String patchTransaction(int mask) {
+	return shape(PATCH_TRANSACTION, mask, m -> update("transactions", TX_SETS, m,
+							  " WHERE user_id = ? AND id = ? "
+							  + "RETURNING currency, debit, credit, "
+							  + "amount, date"));
+    }
+
+    /**
+     * Returns the number of distinct statement shapes built so far
+     */
+    int size() {
+	return shapes.size();
+    }
+
+    /**
+     * Returns how many times a shape had to be built
+     */
+    long builds() {
+	return builds.get();
+    }
+
+    /**
+     * Returns how many times an already built shape was handed out again
+     */
+    long reuses() {
+	return reuses.get();
+    }
+
+    private String shape(int kind, int mask, IntFunction<String> builder) {
+	Long key = ((long) kind << 32) | mask;
+	String query = shapes.get(key);
+	if(query != null) {
+	    reuses.incrementAndGet();
+	    return query;
+	}
+	return shapes.computeIfAbsent(key, k -> {
+		builds.incrementAndGet();
+		return builder.apply(mask);
+	    });
+    }
+
+    /**
+     * Builds the select and its conditions. A ranked search binds its full-text query first,
+     * before the user id.
+     */
+    private static StringBuilder filtered(int mask) {
+	boolean ranked = (mask & TX_MATCHES) != 0;
+	StringBuilder query = new StringBuilder(TX_SELECT);
+	if(ranked) {
+	    int from = query.indexOf(" FROM ");
+	    query.insert(from, ", " + TX_RANK)
+		.append("CROSS JOIN plainto_tsquery('simple', ?) q ");
+	}
+	query.append("WHERE t.user_id = ?");
+	for(int i = 0; i < TX_CONDITIONS.length; i++) {
+	    if((mask & (1 << i)) != 0) {
+		String condition = TX_CONDITIONS[i];
+		if(ranked && (1 << i) == TX_AFTER) {
+		    condition = RANKED_AFTER;
+		}
+		query.append(" AND ").append(condition);
+	    }
+	}
+	return query;
+    }
+
+    private static String order(int mask) {
+	if((mask & TX_MATCHES) != 0) {
+	    return " ORDER BY " + TX_RANK + " DESC, t.date, t.id";
+	}
+	return " ORDER BY t.date, t.id";
+    }
+
+    private static String update(String table, String[] sets, int mask, String where) {
+	StringBuilder query = new StringBuilder("UPDATE ").append(table).append(" SET ");
+	boolean firstStatement = true;
+	for(int i = 0; i < sets.length; i++) {
+	    if((mask & (1 << i)) != 0) {
+		if(!firstStatement) {
+		    query.append(", ");
+		}
+		firstStatement = false;
+		query.append(sets[i]);
+	    }
+	}
+	return query.append(where).toString();
+    }
+}
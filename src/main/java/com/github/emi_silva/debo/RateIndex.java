@@ -0,0 +1,153 @@
+package com.github.emi_silva.debo;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * An immutable in-memory copy of the exchange rates. Each pair's rates are kept in parallel
+ * arrays sorted by time, so finding the rate in effect at any instant is a binary search.
+ */
+final class RateIndex {
+
+    private final HashMap<String, Series> series;
+    private final HashMap<String, HashSet<String>> neighbors;
+    private final int size;
+
+    private RateIndex(HashMap<String, Series> series, int size) {
+	this.series = series;
+	this.size = size;
+	neighbors = new HashMap<String, HashSet<String>>();
+	for(Series s : series.values()) {
+	    neighbors.computeIfAbsent(s.base, k -> new HashSet<String>()).add(s.quote);
+	    neighbors.computeIfAbsent(s.quote, k -> new HashSet<String>()).add(s.base);
+	}
+    }
+
+    /**
+     * Returns how many units of one currency a unit of another was worth at an instant, or
+     * NaN if it's unknown. Pairs without rates of their own are crossed through a currency
+     * both have rates with.
+     * @param at milliseconds since the epoch
+     */
+    double rate(String from, String to, long at) {
+	if(from.equals(to)) {
+	    return 1;
+	}
+	double rate = direct(from, to, at);
+	if(!Double.isNaN(rate)) {
+	    return rate;
+	}
+	HashSet<String> via = neighbors.get(from);
+	if(via != null) {
+	    for(String pivot : via) {
+		double second = direct(pivot, to, at);
+		if(!Double.isNaN(second)) {
+		    double first = direct(from, pivot, at);
+		    if(!Double.isNaN(first)) {
+			return first * second;
+		    }
+		}
+	    }
+	}
+	return Double.NaN;
+    }
+
+    /**
+     * Returns the number of rates
+     */
+    int size() {
+	return size;
+    }
+
+    private double direct(String from, String to, long at) {
+	Series s = series.get(from + "/" + to);
+	if(s != null) {
+	    double rate = s.at(at);
+	    if(!Double.isNaN(rate)) {
+		return rate;
+	    }
+	}
+	s = series.get(to + "/" + from);
+	return s == null ? Double.NaN : 1 / s.at(at);
+    }
+
+    /**
+     * The rates of a pair, sorted by time
+     */
+    private static class Series {
+
+	final String base;
+	final String quote;
+	long[] times;
+	double[] rates;
+	int length;
+
+	Series(String base, String quote) {
+	    this.base = base;
+	    this.quote = quote;
+	    times = new long[16];
+	    rates = new double[16];
+	}
+
+	void add(long time, double rate) {
+	    if(length == times.length) {
+		times = Arrays.copyOf(times, length * 2);
+		rates = Arrays.copyOf(rates, length * 2);
+	    }
+	    times[length] = time;
+	    rates[length] = rate;
+	    length++;
+	}
+
+	void trim() {
+	    times = Arrays.copyOf(times, length);
+	    rates = Arrays.copyOf(rates, length);
+	}
+
+	/**
+	 * Returns the latest rate at or before an instant, or NaN if there's none
+	 */
+	double at(long time) {
+	    int i = Arrays.binarySearch(times, 0, length, time);
+	    if(i < 0) {
+		i = -i - 2;
+	    }
+	    else {
+		// several rates at the same instant: the last one loaded wins
+		while(i + 1 < length && times[i + 1] == time) {
+		    i++;
+		}
+	    }
+	    return i < 0 ? Double.NaN : rates[i];
+	}
+    }
+
+    /**
+     * Collects rates, which must come sorted by time within each pair
+     */
+    static class Builder {
+
+	private final HashMap<String, Series> series = new HashMap<String, Series>();
+	private int size;
+
+	Builder add(String base, String quote, long time, double rate) {
+	    Series s = series.computeIfAbsent(base + "/" + quote, k -> new Series(base, quote));
+	    if(s.length > 0 && s.times[s.length - 1] > time) {
+		throw new IllegalArgumentException("Rates of " + base + "/" + quote
+						   + " aren't sorted by time.");
+	    }
+	    s.add(time, rate);
+	    size++;
+	    return this;
+	}
+
+	RateIndex build() {
+	    for(Series s : series.values()) {
+		s.trim();
+	    }
+	    return new RateIndex(series, size);
+	}
+    }
+}
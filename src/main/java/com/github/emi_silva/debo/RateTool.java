@@ -0,0 +1,44 @@
+package com.github.emi_silva.debo;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Loads exchange rates from a CSV file with a header and the columns base, quote, time, rate.
+ * Rates already present for a pair and time are replaced.
+ * Usage: RateTool file
+ */
+public class RateTool {
+
+    public static void main(String[] args) {
+	if(args.length != 1) {
+	    System.err.println("Usage: RateTool file");
+	    System.exit(2);
+	}
+	Model model;
+	try {
+	    model = new Model();
+	}
+	catch(Exception e) {
+	    System.err.println(e.toString());
+	    System.exit(1);
+	    return;
+	}
+	int status = 0;
+	try(Reader file = new FileReader(args[0])) {
+	    int rows = model.loadRates(file);
+	    System.out.println("Loaded " + rows + " rates.");
+	}
+	catch(DeboException e) {
+	    System.err.println(e.error);
+	    status = 1;
+	}
+	catch(IOException e) {
+	    System.err.println(e.toString());
+	    status = 1;
+	}
+	model.close();
+	System.exit(status);
+    }
+}
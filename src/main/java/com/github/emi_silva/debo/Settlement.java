@@ -0,0 +1,70 @@
+package com.github.emi_silva.debo;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Settles the debts of a group in one currency with few transfers. The member who owes the
+ * most pays the one who is owed the most, as much as possible, until nobody owes anything.
+ * Each transfer settles at least one member, so there are fewer transfers than members.
+ */
+final class Settlement {
+
+    private Settlement() {}
+
+    /**
+     * Computes the transfers that bring every member's net amount to zero
+     * @param nets what each member is owed (positive) or owes (negative); they must add up to 0
+     */
+    static ArrayList<Model.Transfer> settle(Map<String, BigDecimal> nets, String currency) {
+	// largest amount first; ties broken by name so the answer doesn't depend on map order
+	Comparator<Party> largest = (a, b) -> {
+	    int c = b.amount.compareTo(a.amount);
+	    return c != 0 ? c : a.name.compareTo(b.name);
+	};
+	PriorityQueue<Party> creditors = new PriorityQueue<Party>(largest);
+	PriorityQueue<Party> debtors = new PriorityQueue<Party>(largest);
+	for(Map.Entry<String, BigDecimal> net : nets.entrySet()) {
+	    int sign = net.getValue().signum();
+	    if(sign > 0) {
+		creditors.add(new Party(net.getKey(), net.getValue()));
+	    }
+	    else if(sign < 0) {
+		debtors.add(new Party(net.getKey(), net.getValue().negate()));
+	    }
+	}
+	ArrayList<Model.Transfer> transfers = new ArrayList<Model.Transfer>();
+	while(!creditors.isEmpty() && !debtors.isEmpty()) {
+	    Party creditor = creditors.poll();
+	    Party debtor = debtors.poll();
+	    BigDecimal amount = creditor.amount.min(debtor.amount);
+	    Model.Transfer t = new Model.Transfer();
+	    t.from = debtor.name;
+	    t.to = creditor.name;
+	    t.amount = amount;
+	    t.currency = currency;
+	    transfers.add(t);
+	    creditor.amount = creditor.amount.subtract(amount);
+	    debtor.amount = debtor.amount.subtract(amount);
+	    if(creditor.amount.signum() > 0) {
+		creditors.add(creditor);
+	    }
+	    if(debtor.amount.signum() > 0) {
+		debtors.add(debtor);
+	    }
+	}
+	return transfers;
+    }
+
+    private static class Party {
+	final String name;
+	BigDecimal amount;
+	Party(String name, BigDecimal amount) {
+	    this.name = name;
+	    this.amount = amount;
+	}
+    }
+}
@@ -0,0 +1,152 @@
+package com.github.emi_silva.debo;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Session tokens that carry their user id, issue date and expiration date, signed with an HMAC
+ * key, so they're checked without asking the database. A token looks like
+ * userId.issued.expires.signature, with the dates in epoch milliseconds.
+ * Logging out revokes every token of the user issued until then; revocations are kept in
+ * memory for as long as a revoked token could still be unexpired.
+ */
+class SignedTokens {
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final SecretKeySpec key;
+    private final long lifetimeMillis;
+    private final ThreadLocal<Mac> macs;
+    private final ConcurrentHashMap<Integer, Long> revokedUntil;
+
+    /**
+     * @param key the HMAC key, in Base64
+     * @param lifetime the seconds a token is valid for
+     */
+    SignedTokens(String key, long lifetime) {
+	byte[] bytes = key == null ? new byte[0] : Base64.getDecoder().decode(key.trim());
+	if(bytes.length < 32) {
+	    throw new IllegalArgumentException("The token key must be at least 32 bytes long.");
+	}
+	this.key = new SecretKeySpec(bytes, ALGORITHM);
+	lifetimeMillis = lifetime * 1000;
+	macs = ThreadLocal.withInitial(this::newMac);
+	revokedUntil = new ConcurrentHashMap<Integer, Long>();
+    }
+
+    private Mac newMac() {
+	try {
+	    Mac mac = Mac.getInstance(ALGORITHM);
+	    mac.init(key);
+	    return mac;
+	}
+	catch(GeneralSecurityException e) {
+	    throw new IllegalStateException(e);
+	}
+    }
+
+    /**
+     * Returns whether a token has the shape of a signed one
+     */
+    static boolean isSigned(String token) {
+	return token.indexOf('.') > 0;
+    }
+
+    /**
+     * Issues a token for a user, valid for the configured lifetime
+     */
+    String issue(int userId, Instant now) {
+	Long revoked = revokedUntil.get(userId);
+	// a token issued in the very millisecond of a logout would be revoked with the old ones
+	long issued = revoked == null ? now.toEpochMilli() : Math.max(now.toEpochMilli(),
+								       revoked + 1);
+	String payload = userId + "." + issued + "." + (issued + lifetimeMillis);
+	return payload + "." + sign(payload);
+    }
+
+    /**
+     * Returns the expiration date of a token issued by issue()
+     */
+    static Instant expires(String token) {
+	return Instant.ofEpochMilli(Long.valueOf(token.split("\\.")[2]));
+    }
+
+    /**
+     * Returns the user id of a valid token
+     * @throws DeboException if the token is forged, expired or revoked
+     */
+    int verify(String token, Instant now) throws DeboException {
+	int lastDot = token.lastIndexOf('.');
+	if(lastDot < 0) {
+	    throw new DeboException(401, "Invalid session token.");
+	}
+	String payload = token.substring(0, lastDot);
+	byte[] expected = sign(payload).getBytes(StandardCharsets.US_ASCII);
+	byte[] actual = token.substring(lastDot + 1).getBytes(StandardCharsets.US_ASCII);
+	if(!MessageDigest.isEqual(expected, actual)) {
+	    throw new DeboException(401, "Invalid session token.");
+	}
+	String[] fields = payload.split("\\.");
+	if(fields.length != 3) {
+	    throw new DeboException(401, "Invalid session token.");
+	}
+	int userId;
+	long issued;
+	long expires;
+	try {
+	    userId = Integer.valueOf(fields[0]);
+	    issued = Long.valueOf(fields[1]);
+	    expires = Long.valueOf(fields[2]);
+	}
+	catch(NumberFormatException e) {
+	    throw new DeboException(401, "Invalid session token.");
+	}
+	if(now.toEpochMilli() > expires) {
+	    throw new DeboException(401, "The session expired.");
+	}
+	Long revoked = revokedUntil.get(userId);
+	if(revoked != null && issued <= revoked) {
+	    throw new DeboException(401, "The session expired.");
+	}
+	return userId;
+    }
+
+    /**
+     * Revokes every token of a user issued until a date
+     */
+    void revoke(int userId, Instant until) {
+	revokedUntil.merge(userId, until.toEpochMilli(), Math::max);
+	// a revocation older than a token's lifetime has no unexpired token left to revoke
+	long stale = until.toEpochMilli() - lifetimeMillis;
+	revokedUntil.values().removeIf(revoked -> revoked < stale);
+    }
+
+    /**
+     * Revokes the tokens of several users at once, such as those who logged out before a
+     * restart
+     */
+    void revokeAll(Map<Integer, Instant> revocations) {
+	for(Map.Entry<Integer, Instant> r : revocations.entrySet()) {
+	    revokedUntil.merge(r.getKey(), r.getValue().toEpochMilli(), Math::max);
+	}
+    }
+
+    /**
+     * Returns the number of users with revoked tokens held in memory
+     */
+    int revocations() {
+	return revokedUntil.size();
+    }
+
+    private String sign(String payload) {
+	byte[] mac = macs.get().doFinal(payload.getBytes(StandardCharsets.US_ASCII));
+	return Base64.getUrlEncoder().withoutPadding().encodeToString(mac);
+    }
+}
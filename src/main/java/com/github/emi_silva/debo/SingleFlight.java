@@ -0,0 +1,51 @@
+package com.github.emi_silva.debo;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Coalesces concurrent calls for the same key: while a call is running, every other call with
+ * that key waits for it and gets its result instead of doing the work again.
+ */
+class SingleFlight<K, V> {
+
+    interface Call<V> {
+	V call() throws DeboException;
+    }
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> running;
+
+    SingleFlight() {
+	running = new ConcurrentHashMap<K, CompletableFuture<V>>();
+    }
+
+    /**
+     * Runs a call unless one with the same key is running, in which case waits for its result
+     */
+    V run(K key, Call<V> call) throws DeboException {
+	CompletableFuture<V> mine = new CompletableFuture<V>();
+	CompletableFuture<V> current = running.putIfAbsent(key, mine);
+	if(current != null) {
+	    return OAuthClient.await(current);
+	}
+	try {
+	    V result = call.call();
+	    mine.complete(result);
+	    return result;
+	}
+	catch(DeboException | RuntimeException e) {
+	    mine.completeExceptionally(e);
+	    throw e;
+	}
+	finally {
+	    running.remove(key, mine);
+	}
+    }
+
+    /**
+     * Returns the number of calls running
+     */
+    int size() {
+	return running.size();
+    }
+}
@@ -0,0 +1,152 @@
+package com.github.emi_silva.debo;
+
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded map from session tokens to user ids which honours the tokens' expiration dates.
+ * When full, it drops a tenth of its tokens at once, preferring the ones that weren't used
+ * since the last eviction, so the cost of a sweep is spread over many puts.
+ */
+class TokenCache {
+
+    private final int capacity;
+    private final ConcurrentHashMap<String, Entry> tokens;
+    private final ConcurrentHashMap<Integer, String> users;
+    private final AtomicBoolean evicting;
+    private final AtomicLong generation;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+
+    TokenCache(int capacity) {
+	this.capacity = capacity;
+	tokens = new ConcurrentHashMap<String, Entry>();
+	users = new ConcurrentHashMap<Integer, String>();
+	evicting = new AtomicBoolean();
+	generation = new AtomicLong();
+	hits = new AtomicLong();
+	misses = new AtomicLong();
+    }
+
+    /**
+     * Returns the user id of a cached, unexpired token, or null if it must be looked up
+     */
+    Integer get(String token) {
+	Entry entry = tokens.get(token);
+	if(entry == null) {
+	    misses.incrementAndGet();
+	    return null;
+	}
+	if(Instant.now().isAfter(entry.expires)) {
+	    remove(token, entry);
+	    misses.incrementAndGet();
+	    return null;
+	}
+	entry.used = true;
+	hits.incrementAndGet();
+	return entry.userId;
+    }
+
+    /**
+     * Returns the current generation, to be passed to put() after looking a token up
+     */
+    long generation() {
+	return generation.get();
+    }
+
+    /**
+     * Caches a token unless an invalidation happened since the lookup started
+     */
+    void put(String token, int userId, Instant expires, long lookupGeneration) {
+	if(capacity <= 0) {
+	    return;
+	}
+	if(tokens.size() >= capacity) {
+	    evict();
+	}
+	Entry entry = new Entry(userId, expires);
+	tokens.put(token, entry);
+	String previous = users.put(userId, token);
+	if(previous != null && !previous.equals(token)) {
+	    tokens.remove(previous);
+	}
+	if(generation.get() != lookupGeneration) {
+	    remove(token, entry);
+	}
+    }
+
+    /**
+     * Forgets a user's token, e.g. after they log out or get a new one
+     */
+    void invalidateUser(int userId) {
+	generation.incrementAndGet();
+	String token = users.remove(userId);
+	if(token != null) {
+	    tokens.remove(token);
+	}
+    }
+
+    long hits() {
+	return hits.get();
+    }
+
+    long misses() {
+	return misses.get();
+    }
+
+    int size() {
+	return tokens.size();
+    }
+
+    private void remove(String token, Entry entry) {
+	if(tokens.remove(token, entry)) {
+	    users.remove(entry.userId, token);
+	}
+    }
+
+    /**
+     * Makes room by dropping expired tokens and unused ones down to nine tenths of the capacity,
+     * clearing the used mark of the tokens it passes over. If every token was used, a second
+     * sweep drops the ones it reaches first. Only one thread sweeps at a time.
+     */
+    private void evict() {
+	if(!evicting.compareAndSet(false, true)) {
+	    return;
+	}
+	try {
+	    int target = capacity - Math.max(1, capacity / 10);
+	    Instant now = Instant.now();
+	    for(int sweep = 0; sweep < 2 && tokens.size() > target; sweep++) {
+		Iterator<Map.Entry<String, Entry>> it = tokens.entrySet().iterator();
+		while(it.hasNext()) {
+		    Map.Entry<String, Entry> e = it.next();
+		    Entry entry = e.getValue();
+		    if(now.isAfter(entry.expires)
+		       || (tokens.size() > target && !entry.used)) {
+			remove(e.getKey(), entry);
+		    }
+		    else {
+			entry.used = false;
+		    }
+		}
+	    }
+	}
+	finally {
+	    evicting.set(false);
+	}
+    }
+
+    private static class Entry {
+	final int userId;
+	final Instant expires;
+	volatile boolean used;
+	Entry(int userId, Instant expires) {
+	    this.userId = userId;
+	    this.expires = expires;
+	}
+    }
+}
@@ -0,0 +1,84 @@
+package com.github.emi_silva.debo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import org.rapidoid.data.JSON;
+
+/**
+ * An immutable snapshot of the currency and account types, which are static seed data.
+ * It's loaded once at startup, so resolving a type never needs a database round trip.
+ */
+final class TypeRegistry {
+
+    final List<Model.CurrencyType> currencyTypes;
+    final List<Model.AccountType> accountTypes;
+    private final Map<String, Integer> currencyTypeIds;
+    private final Map<String, Integer> accountTypeIds;
+    private final byte[] currencyTypesJson;
+    private final byte[] accountTypesJson;
+    final String currencyTypesETag;
+    final String accountTypesETag;
+
+    TypeRegistry(List<Model.CurrencyType> currencyTypes, List<Model.AccountType> accountTypes) {
+	this.currencyTypes = Collections.unmodifiableList(new ArrayList<Model.CurrencyType>(currencyTypes));
+	this.accountTypes = Collections.unmodifiableList(new ArrayList<Model.AccountType>(accountTypes));
+	HashMap<String, Integer> ctIds = new HashMap<String, Integer>();
+	for(Model.CurrencyType ct : currencyTypes) {
+	    ctIds.put(ct.name, ct.id);
+	}
+	currencyTypeIds = Collections.unmodifiableMap(ctIds);
+	HashMap<String, Integer> atIds = new HashMap<String, Integer>();
+	for(Model.AccountType at : accountTypes) {
+	    atIds.put(at.name, at.id);
+	}
+	accountTypeIds = Collections.unmodifiableMap(atIds);
+	currencyTypesJson = JSON.stringifyToBytes(this.currencyTypes);
+	accountTypesJson = JSON.stringifyToBytes(this.accountTypes);
+	currencyTypesETag = eTag(currencyTypesJson);
+	accountTypesETag = eTag(accountTypesJson);
+    }
+
+    /**
+     * Returns a currency type's id, or null if there's no such type
+     */
+    Integer currencyTypeId(String name) {
+	return currencyTypeIds.get(name);
+    }
+
+    /**
+     * Returns an account type's id, or null if there's no such type
+     */
+    Integer accountTypeId(String name) {
+	return accountTypeIds.get(name);
+    }
+
+    /**
+     * Returns the currency types serialized as a JSON array. The array is shared; don't modify it.
+     */
+    byte[] currencyTypesJson() {
+	return currencyTypesJson;
+    }
+
+    /**
+     * Returns the account types serialized as a JSON array. The array is shared; don't modify it.
+     */
+    byte[] accountTypesJson() {
+	return accountTypesJson;
+    }
+
+    private static String eTag(byte[] json) {
+	try {
+	    byte[] digest = MessageDigest.getInstance("SHA-256").digest(json);
+	    return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(digest) + "\"";
+	}
+	catch(NoSuchAlgorithmException e) {
+	    throw new IllegalStateException(e);
+	}
+    }
+}
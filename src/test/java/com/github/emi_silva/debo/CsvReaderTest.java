@@ -0,0 +1,63 @@
+package com.github.emi_silva.debo;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import java.io.StringReader;
+import java.math.BigDecimal;
+
+public class CsvReaderTest extends TestCase {
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public CsvReaderTest( String testName ) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(CsvReaderTest.class);
+    }
+
+    /**
+     * Checks quoted fields may hold delimiters, quotes and line breaks
+     */
+    public void testQuotes() throws Exception {
+	CsvReader csv = new CsvReader(new StringReader("a,\"b,\"\"c\"\"\",\"d\r\ne\"\r\n,\n"), ',');
+	String[] record = csv.next();
+	assertEquals(3, record.length);
+	assertEquals("b,\"c\"", record[1]);
+	assertEquals("d\r\ne", record[2]);
+	assertEquals(2, csv.next().length);
+	assertNull(csv.next());
+    }
+
+    /**
+     * Checks columns are found by their header and blank lines are skipped
+     */
+    public void testSource() throws Exception {
+	Model.ImportSpec spec = new Model.ImportSpec();
+	spec.amountColumn = "Value";
+	String statement = "\uFEFFDate;Value;Comment\n2018-10-01;-12.5;\"coffee; to go\"\n\n"
+	    + "2018-10-02;x;\n";
+	CsvSource source = new CsvSource(new CsvReader(new StringReader(statement), ';'), spec);
+	Model.Transaction t = source.next();
+	assertEquals("2018-10-01", t.date);
+	assertEquals(new BigDecimal("-12.5"), t.amount);
+	assertEquals("coffee; to go", t.comment);
+	assertNull(t.debit);
+	try {
+	    source.next();
+	    fail("invalid amount accepted");
+	}
+	catch(DeboException e) {
+	    assertEquals(400, e.code);
+	}
+	assertNull(source.next());
+    }
+}
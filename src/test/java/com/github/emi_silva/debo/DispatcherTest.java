@@ -0,0 +1,75 @@
+package com.github.emi_silva.debo;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class DispatcherTest extends TestCase {
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public DispatcherTest( String testName ) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(DispatcherTest.class);
+    }
+
+    /**
+     * Checks tasks beyond the workers and the queue are turned away until a slot frees up
+     */
+    public void testBackpressure() throws Exception {
+	Dispatcher dispatcher = new Dispatcher(1, 1, false);
+	CountDownLatch release = new CountDownLatch(1);
+	CountDownLatch ran = new CountDownLatch(3);
+	Runnable blocked = () -> {
+	    try {
+		release.await();
+	    }
+	    catch(InterruptedException e) {
+		Thread.currentThread().interrupt();
+	    }
+	    ran.countDown();
+	};
+	assertTrue(dispatcher.execute(blocked));
+	assertTrue(dispatcher.execute(blocked));
+	assertFalse(dispatcher.execute(ran::countDown));
+	assertEquals(2, dispatcher.pending());
+	release.countDown();
+	while(dispatcher.pending() > 0) {
+	    Thread.sleep(1);
+	}
+	assertTrue(dispatcher.execute(ran::countDown));
+	assertTrue(ran.await(5, TimeUnit.SECONDS));
+	dispatcher.shutdown();
+    }
+
+    /**
+     * Checks virtual threads are only used where the JDK has them
+     */
+    public void testVirtual() throws Exception {
+	Dispatcher dispatcher = new Dispatcher(1, 0, true);
+	boolean hasVirtual;
+	try {
+	    Thread.class.getMethod("ofVirtual");
+	    hasVirtual = true;
+	}
+	catch(NoSuchMethodException e) {
+	    hasVirtual = false;
+	}
+	assertEquals(hasVirtual, dispatcher.isVirtual());
+	CountDownLatch ran = new CountDownLatch(1);
+	assertTrue(dispatcher.execute(ran::countDown));
+	assertTrue(ran.await(5, TimeUnit.SECONDS));
+	dispatcher.shutdown();
+    }
+}
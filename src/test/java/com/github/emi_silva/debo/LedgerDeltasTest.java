@@ -0,0 +1,77 @@
+package com.github.emi_silva.debo;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.TreeMap;
+
+public class LedgerDeltasTest extends TestCase {
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public LedgerDeltasTest( String testName ) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(LedgerDeltasTest.class);
+    }
+
+    /**
+     * Checks months are taken in UTC
+     */
+    public void testMonth() {
+	Timestamp newYear = Timestamp.from(Instant.parse("2018-12-31T23:30:00-05:00"));
+	assertEquals(LocalDate.of(2019, 1, 1), LedgerDeltas.month(newYear));
+    }
+
+    /**
+     * Checks reverting and reapplying a moved transaction only changes its months
+     */
+    public void testPatch() {
+	LedgerDeltas deltas = new LedgerDeltas();
+	BigDecimal ten = new BigDecimal("10");
+	deltas.revert(5, 1, 2, Timestamp.from(Instant.parse("2018-10-15T00:00:00Z")), ten);
+	deltas.add(5, 1, 2, Timestamp.from(Instant.parse("2018-09-15T00:00:00Z")), ten);
+	long debit = LedgerDeltas.key(1, 5);
+	assertEquals(0, deltas.balances.get(debit).signum());
+	assertEquals(ten, deltas.months.get(debit).get(LocalDate.of(2018, 9, 1)));
+	assertEquals(ten.negate(), deltas.months.get(debit).get(LocalDate.of(2018, 10, 1)));
+	assertEquals(LocalDate.of(2018, 9, 1), deltas.months.get(debit).firstKey());
+	assertEquals(ten.negate(), deltas.months.get(LedgerDeltas.key(2, 5))
+		     .get(LocalDate.of(2018, 9, 1)));
+	assertEquals(1, LedgerDeltas.account(debit));
+	assertEquals(5, LedgerDeltas.currency(debit));
+    }
+
+    /**
+     * Checks a moved transaction still writes the balance rows of its accounts, and a
+     * transaction that cancels out doesn't
+     */
+    public void testBalanceRows() {
+	LedgerDeltas deltas = new LedgerDeltas();
+	BigDecimal ten = new BigDecimal("10");
+	Timestamp october = Timestamp.from(Instant.parse("2018-10-15T00:00:00Z"));
+	deltas.revert(5, 1, 2, october, ten);
+	deltas.add(5, 1, 2, Timestamp.from(Instant.parse("2018-09-15T00:00:00Z")), ten);
+	deltas.add(6, 3, 4, october, ten);
+	deltas.revert(6, 3, 4, october, ten);
+	deltas.add(7, 1, 4, october, ten);
+	TreeMap<Long, BigDecimal> rows = deltas.balanceRows();
+	assertEquals(4, rows.size());
+	assertEquals(BigDecimal.ZERO, rows.get(LedgerDeltas.key(1, 5)));
+	assertEquals(BigDecimal.ZERO, rows.get(LedgerDeltas.key(2, 5)));
+	assertEquals(ten, rows.get(LedgerDeltas.key(1, 7)));
+	assertFalse(rows.containsKey(LedgerDeltas.key(3, 6)));
+    }
+}
@@ -0,0 +1,130 @@
+package com.github.emi_silva.debo;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashSet;
+
+public class LedgerGeneratorTest extends TestCase {
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public LedgerGeneratorTest( String testName ) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(LedgerGeneratorTest.class);
+    }
+
+    private static LedgerGenerator generator(String... args) {
+	return new LedgerGenerator(LedgerGenerator.Spec.parse(args), 10, 100, 1000, 10000);
+    }
+
+    private static String[] transactions(LedgerGenerator generator) throws IOException {
+	StringWriter out = new StringWriter();
+	generator.transactions(out);
+	return out.toString().split("\n");
+    }
+
+    /**
+     * Checks the same spec always makes the same rows, and another seed other rows
+     */
+    public void testDeterministic() throws IOException {
+	String[] first = transactions(generator("seed=7", "users=3", "transactions=200"));
+	String[] again = transactions(generator("seed=7", "users=3", "transactions=200"));
+	String[] other = transactions(generator("seed=8", "users=3", "transactions=200"));
+	assertEquals(600, first.length);
+	assertTrue(Arrays.equals(first, again));
+	assertFalse(Arrays.equals(first, other));
+	assertEquals(LedgerGenerator.token(7, 2), LedgerGenerator.token(7, 2));
+	assertFalse(LedgerGenerator.token(7, 2).equals(LedgerGenerator.token(7, 1)));
+    }
+
+    /**
+     * Checks transactions satisfy the table's constraints and only reference their user's rows
+     */
+    public void testTransactions() throws IOException {
+	LedgerGenerator.Spec spec = LedgerGenerator.Spec.parse(new String[] {"users=4",
+									     "transactions=500"});
+	String[] rows = transactions(generator("users=4", "transactions=500"));
+	long lastSecond = 0;
+	int lastUser = 0;
+	for(int i = 0; i < rows.length; i++) {
+	    String[] f = rows[i].split(",");
+	    assertEquals(8, f.length);
+	    assertEquals(10000 + i, Integer.parseInt(f[0]));
+	    int user = Integer.parseInt(f[1]) - 10;
+	    long second = Instant.parse(f[2]).getEpochSecond();
+	    if(user == lastUser) {
+		assertTrue(rows[i], second >= lastSecond);
+	    }
+	    lastUser = user;
+	    lastSecond = second;
+	    assertTrue(rows[i], new BigDecimal(f[3]).signum() > 0);
+	    int currency = Integer.parseInt(f[4]) - 100 - user * spec.currencies();
+	    assertTrue(rows[i], currency >= 0 && currency < spec.currencies());
+	    int debit = Integer.parseInt(f[5]) - 1000 - user * spec.accounts();
+	    int credit = Integer.parseInt(f[6]) - 1000 - user * spec.accounts();
+	    assertTrue(rows[i], debit >= 0 && debit < spec.accounts());
+	    assertTrue(rows[i], credit >= 0 && credit < spec.accounts());
+	    assertTrue(rows[i], debit != credit);
+	    assertFalse(f[7].isEmpty());
+	}
+    }
+
+    /**
+     * Checks every user gets currencies of the three types and accounts of the five types
+     */
+    public void testCurrenciesAndAccounts() throws IOException {
+	LedgerGenerator generator = generator("users=2", "fiat=2", "crypto=3", "stablecoin=1");
+	StringWriter currencies = new StringWriter();
+	generator.currencies(currencies);
+	String[] rows = currencies.toString().split("\n");
+	assertEquals(12, rows.length);
+	HashSet<String> codes = new HashSet<String>();
+	for(int i = 0; i < 6; i++) {
+	    String[] f = rows[i].split(",");
+	    assertEquals(3, f[2].length());
+	    assertTrue(codes.add(f[2]));
+	    assertEquals(i < 2 ? "1" : i < 5 ? "2" : "3", f[4]);
+	}
+	StringWriter accounts = new StringWriter();
+	generator.accounts(accounts);
+	HashSet<String> types = new HashSet<String>();
+	HashSet<String> names = new HashSet<String>();
+	for(String row : accounts.toString().split("\n")) {
+	    String[] f = row.split(",");
+	    types.add(f[3]);
+	    assertTrue(row, names.add(f[1] + "/" + f[2]));
+	}
+	assertEquals(5, types.size());
+	StringWriter users = new StringWriter();
+	generator.users(users);
+	assertTrue(users.toString().startsWith("10," + LedgerGenerator.email(1, 0) + ","));
+    }
+
+    /**
+     * Checks unknown keys are refused
+     */
+    public void testParse() {
+	try {
+	    LedgerGenerator.Spec.parse(new String[] {"accounts=3"});
+	    fail();
+	}
+	catch(IllegalArgumentException e) {
+	    assertEquals("Unknown key: accounts", e.getMessage());
+	}
+    }
+}
@@ -3,6 +3,9 @@ package com.github.emi_silva.debo;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.HashMap;
 
 public class LogicTest 
     extends TestCase
@@ -32,4 +35,43 @@ public class LogicTest
     {
         assertTrue( true );
     }
+
+    /**
+     * Checks balances in several currencies add up in a single one
+     */
+    public void testConvert() throws Exception {
+	RateIndex rates = new RateIndex.Builder()
+	    .add("BTC", "USD", Logic.instant("2018-10-01"), 6500)
+	    .add("USD", "COP", Logic.instant("2018-10-01T00:00:00Z"), 3000)
+	    .build();
+	HashMap<String, BigDecimal> balance = new HashMap<String, BigDecimal>();
+	balance.put("BTC", new BigDecimal("0.5"));
+	balance.put("USD", new BigDecimal("-250"));
+	BigDecimal total = Logic.convert(balance, "USD", null, rates);
+	assertEquals(0, new BigDecimal("3000").compareTo(total));
+	try {
+	    Logic.convert(balance, "USD", Instant.parse("2018-09-30T23:59:59Z"), rates);
+	    fail("missing rate ignored");
+	}
+	catch(DeboException e) {
+	    assertEquals(400, e.code);
+	}
+    }
+
+    /**
+     * Checks as-of dates without an offset are read as UTC, whatever the local time zone
+     */
+    public void testInstant() throws Exception {
+	long midnight = Instant.parse("2022-06-30T00:00:00Z").toEpochMilli();
+	assertEquals(midnight, Logic.instant("2022-06-30"));
+	assertEquals(midnight, Logic.instant("2022-06-30 00:00:00"));
+	assertEquals(midnight, Logic.instant("2022-06-29T19:00:00-05:00"));
+	try {
+	    Logic.instant("yesterday-ish");
+	    fail("invalid date accepted");
+	}
+	catch(DeboException e) {
+	    assertEquals(400, e.code);
+	}
+    }
 }
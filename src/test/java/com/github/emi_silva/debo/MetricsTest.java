@@ -0,0 +1,94 @@
+package com.github.emi_silva.debo;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import java.nio.charset.StandardCharsets;
+
+public class MetricsTest extends TestCase {
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public MetricsTest( String testName ) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(MetricsTest.class);
+    }
+
+    /**
+     * Checks every value falls in a bucket whose bounds are within 1/16 of it
+     */
+    public void testBuckets() {
+	for(long v : new long[] {0, 1, 15, 16, 17, 31, 32, 1000, 123456789, 60000000000L}) {
+	    int bucket = Metrics.Histogram.bucket(v);
+	    long highest = Metrics.Histogram.highest(bucket);
+	    assertTrue(v + " above " + highest, v <= highest);
+	    assertTrue(v + " far below " + highest, highest - v <= v / Metrics.Histogram.SUB);
+	    if(bucket > 0) {
+		assertTrue(v > Metrics.Histogram.highest(bucket - 1));
+	    }
+	}
+	assertEquals(Metrics.Histogram.BUCKETS - 1, Metrics.Histogram.bucket(Long.MAX_VALUE));
+    }
+
+    /**
+     * Checks the quantiles of a uniform distribution
+     */
+    public void testQuantiles() {
+	Metrics.Histogram h = new Metrics.Histogram();
+	for(long ms = 1; ms <= 1000; ms++) {
+	    h.record(ms * 1000000);
+	}
+	long[] counts = h.snapshot();
+	assertEquals(1000, Metrics.Histogram.total(counts));
+	assertNear(500000000, Metrics.Histogram.quantile(counts, 0.5));
+	assertNear(990000000, Metrics.Histogram.quantile(counts, 0.99));
+	assertNear(999000000, Metrics.Histogram.quantile(counts, 0.999));
+	assertEquals(0, Metrics.Histogram.quantile(new long[Metrics.Histogram.BUCKETS], 0.5));
+    }
+
+    private static void assertNear(long expected, long actual) {
+	assertTrue(actual + " isn't near " + expected,
+		   actual >= expected && actual - expected <= expected / Metrics.Histogram.SUB);
+    }
+
+    /**
+     * Checks requests and gauges are written in the Prometheus text format
+     */
+    public void testScrape() {
+	Metrics metrics = new Metrics(route -> "GET /" + route);
+	metrics.record("balances", 200, 2000000);
+	metrics.record("balances", 200, 4000000);
+	metrics.record("balances", 503, 1000);
+	metrics.gauge("debo_requests_pending", "Pending requests", null, () -> 3);
+	metrics.counter("debo_cache_lookups_total", "Lookups", "result=\"hit\"", () -> 1.5);
+	String text = new String(metrics.scrape(), StandardCharsets.UTF_8);
+	assertTrue(text, text.contains("# TYPE debo_request_seconds summary\n"));
+	assertTrue(text, text.contains("debo_request_seconds_count{route=\"GET /balances\","
+				       + "code=\"200\"} 2\n"));
+	assertTrue(text, text.contains("debo_request_seconds_sum{route=\"GET /balances\","
+				       + "code=\"200\"} 0.006\n"));
+	assertTrue(text, text.contains("debo_request_seconds_count{route=\"GET /balances\","
+				       + "code=\"503\"} 1\n"));
+	assertTrue(text, text.contains("debo_request_seconds{route=\"GET /balances\",code=\"200\","
+				       + "quantile=\"0.5\"} "));
+	assertTrue(text, text.contains("# TYPE debo_requests_pending gauge\n"
+				       + "debo_requests_pending 3\n"));
+	assertTrue(text, text.contains("debo_cache_lookups_total{result=\"hit\"} 1.5\n"));
+    }
+
+    /**
+     * Checks quotes in label values are escaped
+     */
+    public void testEscape() {
+	assertEquals("a\\\"b\\\\c", Metrics.escape("a\"b\\c"));
+    }
+}
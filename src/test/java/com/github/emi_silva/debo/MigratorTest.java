@@ -0,0 +1,98 @@
+package com.github.emi_silva.debo;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+public class MigratorTest extends TestCase {
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public MigratorTest( String testName ) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(MigratorTest.class);
+    }
+
+    /**
+     * Checks versions are read off file names
+     */
+    public void testVersion() {
+	assertEquals(2018100401L, Migrator.version("2018100401-initial.sql"));
+	assertEquals(2026101807L, Migrator.version("2026101807-indexes.sql"));
+	assertEquals(-1, Migrator.version("README.md"));
+	assertEquals(-1, Migrator.version("initial.sql"));
+    }
+
+    /**
+     * Checks the repository's migrations come in order, starting with the initial schema
+     */
+    public void testFiles() throws Exception {
+	TreeMap<Long, File> files = Migrator.files(new File("database"));
+	assertEquals("2018100401-initial.sql", files.firstEntry().getValue().getName());
+	ArrayList<Long> versions = new ArrayList<Long>(files.keySet());
+	assertTrue(versions.contains(2026101807L));
+    }
+
+    /**
+     * Checks a relative migrations directory is found on the classpath, not in the working
+     * directory
+     */
+    public void testDirectory() throws Exception {
+	File directory = Migrator.directory("database");
+	assertTrue(directory.isAbsolute());
+	assertEquals(Migrator.files(new File("database")).keySet(),
+		     Migrator.files(directory).keySet());
+	File absolute = new File("/var/lib/debo/migrations");
+	assertEquals(absolute, Migrator.directory(absolute.getPath()));
+	try {
+	    Migrator.directory("no-such-migrations");
+	    fail("missing directory accepted");
+	}
+	catch(IOException e) {
+	    assertTrue(e.getMessage().contains("no-such-migrations"));
+	}
+    }
+
+    /**
+     * Checks two files with the same version are refused
+     */
+    public void testSharedVersion() throws Exception {
+	File directory = Files.createTempDirectory("migrations").toFile();
+	File first = new File(directory, "2018100401-initial.sql");
+	File second = new File(directory, "2018100401-other.sql");
+	File other = new File(directory, "notes.txt");
+	try {
+	    assertTrue(first.createNewFile());
+	    assertTrue(other.createNewFile());
+	    assertEquals(1, Migrator.files(directory).size());
+	    assertTrue(second.createNewFile());
+	    try {
+		Migrator.files(directory);
+		fail("shared version accepted");
+	    }
+	    catch(IOException e) {
+		assertTrue(e.getMessage().contains("share a version"));
+	    }
+	}
+	finally {
+	    first.delete();
+	    second.delete();
+	    other.delete();
+	    directory.delete();
+	}
+    }
+}
@@ -5,9 +5,18 @@ import junit.framework.TestCase;
 import junit.framework.TestSuite;
 import java.util.Properties;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.math.BigDecimal;
+import java.time.Instant;
 
 public class ModelTest extends TestCase {
 
@@ -34,7 +43,10 @@ public class ModelTest extends TestCase {
      */
     public void testModel() throws Exception {
 	model = new Model();
-        assertNotNull(model.conn);
+        assertNotNull(model.pool);
+	try(Connection conn = model.pool.getConnection()) {
+	    assertTrue(conn.isValid(1));
+	}
     }
 
     /**
@@ -92,4 +104,174 @@ public class ModelTest extends TestCase {
 	assertEquals(id, 1);
     }
 
+    /**
+     * Checks a page cursor points back at the same date and id
+     */
+    public void testCursor() throws Exception {
+	Model.TxFilter f = new Model.TxFilter();
+	f.after = Model.TxFilter.cursor(new Timestamp(1538352000000L), 42);
+	Object[] position = f.position();
+	assertEquals(new Timestamp(1538352000000L), position[0]);
+	assertEquals(42, position[1]);
+	f.after = "not a cursor";
+	try {
+	    f.position();
+	    fail("invalid cursor accepted");
+	}
+	catch(DeboException e) {
+	    assertEquals(400, e.code);
+	}
+    }
+
+    /**
+     * Checks the rejected date of a failed batch is found in the chained exceptions
+     */
+    public void testInvalidTimestamp() {
+	String msg = "invalid input syntax for type timestamp with time zone";
+	SQLException e = new SQLException("Batch entry 3 was aborted.");
+	assertNull(Model.invalidTimestamp(e, msg));
+	e.setNextException(new SQLException("ERROR: " + msg + ": \"yesterday-ish\""));
+	assertEquals("yesterday-ish", Model.invalidTimestamp(e, msg));
+    }
+
+    /**
+     * Checks signed statement amounts are moved between the account and its counter account
+     */
+    public void testFill() {
+	Model.ImportSpec spec = new Model.ImportSpec();
+	Model.Transaction t = new Model.Transaction();
+	t.amount = new BigDecimal("-3");
+	spec.currency = "USD";
+	spec.account = "bank";
+	spec.counterAccount = "expenses";
+	assertEquals("Imported transactions need a date.", Model.fill(t, spec));
+	t.date = "2018-10-04";
+	spec.account = null;
+	assertNotNull(Model.fill(t, spec));
+	spec.account = "bank";
+	assertNull(Model.fill(t, spec));
+	assertEquals(new BigDecimal("3"), t.amount);
+	assertEquals("expenses", t.debit);
+	assertEquals("bank", t.credit);
+	assertEquals("USD", t.currency);
+    }
+
+    /**
+     * Checks a statement row with a fractional second isn't imported twice
+     */
+    public void testReimportFractionalSecond() throws Exception {
+	model = new Model();
+	int userId = newUser(model);
+	Model.ImportSpec spec = new Model.ImportSpec();
+	spec.currency = "USD";
+	spec.account = "bank";
+	spec.counterAccount = "food";
+	assertEquals(1, model.importTransactions(statement(), spec, userId).imported);
+	Model.ImportResult again = model.importTransactions(statement(), spec, userId);
+	assertEquals(0, again.imported);
+	assertEquals(1, again.duplicates);
+    }
+
+    /**
+     * Checks an as-of balance doesn't count a month twice when the session's time zone is east
+     * of UTC
+     */
+    public void testBalanceAsOfTimeZone() throws Exception {
+	model = new Model();
+	int userId = newUser(model);
+	Model.Transaction t = new Model.Transaction();
+	t.date = "2018-10-15T12:00:00Z";
+	t.amount = new BigDecimal("10");
+	t.currency = "USD";
+	t.debit = "food";
+	t.credit = "bank";
+	model.postTransactions(t, userId);
+	int food = model.findAccountId("food", userId);
+	try(Connection conn = model.pool.getConnection()) {
+	    try(Statement st = conn.createStatement()) {
+		st.execute("SET TIME ZONE 'Europe/Berlin'");
+	    }
+	    try(PreparedStatement st = conn.prepareStatement(Model.BALANCE_AS_OF)) {
+		st.setString(1, "2018-10-20T00:00:00Z");
+		st.setInt(2, food);
+		st.setInt(3, food);
+		st.setInt(4, food);
+		try(ResultSet rs = st.executeQuery()) {
+		    assertTrue(rs.next());
+		    assertEquals("USD", rs.getString(1));
+		    assertEquals(0, new BigDecimal("10").compareTo(rs.getBigDecimal(2)));
+		    assertFalse(rs.next());
+		}
+	    }
+	}
+    }
+
+    /**
+     * Creates a user with a USD currency, a bank account and a food account
+     */
+    private static int newUser(Model model) throws DeboException {
+	String email = "test-" + System.nanoTime() + "@debo.test";
+	model.newToken(email, "test-" + System.nanoTime(), Instant.now().plusSeconds(60));
+	int userId = model.getUserId(email);
+	Model.Currency c = new Model.Currency();
+	c.code = "USD";
+	c.name = "US dollar";
+	c.type = "fiat";
+	model.postCurrencies(c, userId);
+	Model.Account a = new Model.Account();
+	a.type = "asset";
+	a.name = "bank";
+	model.postAccounts(a, userId);
+	a.type = "expense";
+	a.name = "food";
+	model.postAccounts(a, userId);
+	return userId;
+    }
+
+    private static Model.TxSource statement() {
+	Model.Transaction t = new Model.Transaction();
+	t.date = "2018-10-04T12:00:00.7Z";
+	t.amount = new BigDecimal("-12.5");
+	t.comment = "lunch";
+	Iterator<Model.Transaction> rows = Collections.singletonList(t).iterator();
+	return () -> rows.hasNext() ? rows.next() : null;
+    }
+
+    /**
+     * Checks the running balances agree with the transactions
+     */
+    public void testVerifyBalances() throws Exception {
+	model = new Model();
+	assertTrue(model.verifyBalances().isEmpty());
+    }
+
+    /**
+     * Checks a plan only counts as indexed if it uses the expected indexes with a condition
+     */
+    public void testIndexed() {
+	ArrayList<String> plan = new ArrayList<String>();
+	plan.add("Limit  (cost=0.15..8.17 rows=1 width=72)");
+	plan.add("  ->  Index Scan using transactions_user_date on transactions t  (cost=0.15..8.17)");
+	plan.add("        Index Cond: ((user_id = 1) AND (date >= '2018-10-01'))");
+	assertTrue(Model.indexed(plan, new String[] {"transactions_user_date"}));
+	assertFalse(Model.indexed(plan, new String[] {"transactions_debit_date"}));
+	ArrayList<String> full = new ArrayList<String>();
+	full.add("Limit  (cost=0.15..80.17 rows=1 width=72)");
+	full.add("  ->  Index Scan using transactions_pkey on transactions t  (cost=0.15..80.17)");
+	full.add("        Filter: (user_id = 1)");
+	assertFalse(Model.indexed(full, new String[] {}));
+	ArrayList<String> seq = new ArrayList<String>();
+	seq.add("Seq Scan on users  (cost=10000000000.00..10000000001.01 rows=1 width=12)");
+	seq.add("  Filter: ((session_token)::text = 'a session token'::text)");
+	assertFalse(Model.indexed(seq, new String[] {}));
+    }
+
+    /**
+     * Checks the queries behind pages, authentication and balances are answered from indexes
+     */
+    public void testIndexes() throws Exception {
+	model = new Model();
+	assertEquals(new ArrayList<String>(), model.unindexedQueries());
+    }
+
 }
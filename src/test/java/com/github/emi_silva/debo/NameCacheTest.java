@@ -0,0 +1,79 @@
+package com.github.emi_silva.debo;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import java.util.HashMap;
+
+public class NameCacheTest extends TestCase {
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public NameCacheTest( String testName ) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(NameCacheTest.class);
+    }
+
+    private static HashMap<String, Integer> names() {
+	HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	ids.put("USD", 1);
+	ids.put("COP", 5);
+	return ids;
+    }
+
+    /**
+     * Checks loaded names are found and unknown ones aren't
+     */
+    public void testLoad() {
+	NameCache cache = new NameCache(10);
+	assertNull(cache.get(1, "USD"));
+	cache.load(1, names(), cache.generation());
+	assertEquals(Integer.valueOf(5), cache.get(1, "COP"));
+	assertNull(cache.get(1, "BTC"));
+	assertNull(cache.get(2, "USD"));
+    }
+
+    /**
+     * Checks new names are written through and renames drop the user's names
+     */
+    public void testWriteThrough() {
+	NameCache cache = new NameCache(10);
+	cache.load(1, names(), cache.generation());
+	cache.put(1, "BTC", 6);
+	assertEquals(Integer.valueOf(6), cache.get(1, "BTC"));
+	cache.invalidateUser(1);
+	assertNull(cache.get(1, "USD"));
+    }
+
+    /**
+     * Checks a read racing with an invalidation doesn't cache stale names
+     */
+    public void testStaleLoad() {
+	NameCache cache = new NameCache(10);
+	long generation = cache.generation();
+	cache.invalidateUser(1);
+	cache.load(1, names(), generation);
+	assertNull(cache.get(1, "USD"));
+    }
+
+    /**
+     * Checks the number of cached users is bounded
+     */
+    public void testCapacity() {
+	NameCache cache = new NameCache(2);
+	for(int userId = 0; userId < 5; userId++) {
+	    cache.load(userId, names(), cache.generation());
+	}
+	assertTrue(cache.size() <= 2);
+	assertEquals(Integer.valueOf(1), cache.get(4, "USD"));
+    }
+}
@@ -0,0 +1,150 @@
+package com.github.emi_silva.debo;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class OAuthClientTest extends TestCase {
+
+    private HttpServer server;
+    private OAuthClient client;
+    private AtomicInteger tokenRequests;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public OAuthClientTest( String testName ) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(OAuthClientTest.class);
+    }
+
+    /**
+     * Starts a stub of Google's token and user info endpoints on a free local port
+     */
+    protected void setUp() throws IOException {
+	tokenRequests = new AtomicInteger();
+	server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+	server.createContext("/token", exchange -> {
+		tokenRequests.incrementAndGet();
+		String form = new String(readAll(exchange), StandardCharsets.UTF_8);
+		if(form.contains("code=slow")) {
+		    sleep(3000);
+		}
+		if(form.contains("code=good") && form.contains("grant_type=authorization_code")) {
+		    reply(exchange, "{\"access_token\":\"t0k3n\"}");
+		}
+		else {
+		    reply(exchange, "{\"error\":\"invalid_grant\"}");
+		}
+	    });
+	server.createContext("/userinfo", exchange -> {
+		String auth = exchange.getRequestHeaders().getFirst("Authorization");
+		if("Bearer t0k3n".equals(auth)) {
+		    reply(exchange, "{\"email\":\"satoshi@nakamotoinstitute.org\"}");
+		}
+		else {
+		    reply(exchange, "{}");
+		}
+	    });
+	server.start();
+	String base = "http://127.0.0.1:" + server.getAddress().getPort();
+	Properties props = new Properties();
+	props.setProperty("accessTokenEndpoint", base + "/token");
+	props.setProperty("contentHeader", "application/x-www-form-urlencoded");
+	props.setProperty("clientId", "client");
+	props.setProperty("clientSecret", "secret");
+	props.setProperty("redirectUri", "http://localhost/redirect");
+	props.setProperty("grantType", "authorization_code");
+	props.setProperty("APIEndpoint", base + "/userinfo");
+	props.setProperty("alt", "json");
+	props.setProperty("authKeyword", "Bearer");
+	props.setProperty("oauthConnectTimeout", "1000");
+	props.setProperty("oauthReadTimeout", "300");
+	props.setProperty("oauthMaxConnections", "4");
+	client = new OAuthClient(props);
+    }
+
+    protected void tearDown() {
+	server.stop(0);
+    }
+
+    private static byte[] readAll(HttpExchange exchange) throws IOException {
+	byte[] buffer = new byte[4096];
+	int length = 0;
+	int read;
+	while((read = exchange.getRequestBody().read(buffer, length, buffer.length - length)) > 0) {
+	    length += read;
+	}
+	return java.util.Arrays.copyOf(buffer, length);
+    }
+
+    private static void reply(HttpExchange exchange, String json) throws IOException {
+	byte[] body = json.getBytes(StandardCharsets.UTF_8);
+	exchange.getResponseHeaders().set("Content-Type", "application/json");
+	exchange.sendResponseHeaders(200, body.length);
+	try(OutputStream out = exchange.getResponseBody()) {
+	    out.write(body);
+	}
+    }
+
+    private static void sleep(long millis) {
+	try {
+	    Thread.sleep(millis);
+	}
+	catch(InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    /**
+     * Checks a code is exchanged for the user's email
+     */
+    public void testLogin() throws Exception {
+	assertEquals("satoshi@nakamotoinstitute.org", OAuthClient.await(client.login("good")));
+    }
+
+    /**
+     * Checks a rejected code is answered with 400 without asking for the email
+     */
+    public void testBadCode() {
+	try {
+	    OAuthClient.await(client.login("bad"));
+	    fail("bad code accepted");
+	}
+	catch(DeboException e) {
+	    assertEquals(400, e.code);
+	}
+	assertEquals(1, tokenRequests.get());
+    }
+
+    /**
+     * Checks a slow answer is given up on after the read timeout
+     */
+    public void testTimeout() {
+	long start = System.nanoTime();
+	try {
+	    OAuthClient.await(client.login("slow"));
+	    fail("slow answer waited for");
+	}
+	catch(DeboException e) {
+	    assertEquals(504, e.code);
+	}
+	assertTrue(System.nanoTime() - start < 2500000000L);
+    }
+}
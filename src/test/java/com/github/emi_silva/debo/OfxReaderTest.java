@@ -0,0 +1,71 @@
+package com.github.emi_silva.debo;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import java.io.StringReader;
+import java.math.BigDecimal;
+
+public class OfxReaderTest extends TestCase {
+
+    private static final String STATEMENT = "OFXHEADER:100\nDATA:OFXSGML\n\n<OFX><BANKMSGSRSV1>"
+	+ "<STMTTRNRS><STMTRS><CURDEF>USD\n<BANKTRANLIST>\n"
+	+ "<STMTTRN><TRNTYPE>DEBIT<DTPOSTED>20181001120000.000[-5:EST]<TRNAMT>-12.50"
+	+ "<NAME>Coffee &amp; Co<MEMO>to go</STMTTRN>\n"
+	+ "<STMTTRN><TRNTYPE>CREDIT<DTPOSTED>20181002<TRNAMT>1000<NAME>Salary</STMTTRN>\n"
+	+ "<STMTTRN><DTPOSTED>20181003</STMTTRN>\n"
+	+ "</BANKTRANLIST></STMTRS></STMTTRNRS></BANKMSGSRSV1></OFX>";
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public OfxReaderTest( String testName ) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(OfxReaderTest.class);
+    }
+
+    /**
+     * Checks the transactions of an SGML statement are read in order
+     */
+    public void testRead() throws Exception {
+	OfxReader ofx = new OfxReader(new StringReader(STATEMENT));
+	Model.Transaction t = ofx.next();
+	assertEquals("2018-10-01T12:00:00-05:00", t.date);
+	assertEquals(new BigDecimal("-12.50"), t.amount);
+	assertEquals("USD", t.currency);
+	assertEquals("Coffee & Co to go", t.comment);
+	t = ofx.next();
+	assertEquals("2018-10-02T00:00:00+00:00", t.date);
+	assertEquals("Salary", t.comment);
+	try {
+	    ofx.next();
+	    fail("transaction without amount accepted");
+	}
+	catch(DeboException e) {
+	    assertEquals(400, e.code);
+	}
+	assertNull(ofx.next());
+    }
+
+    /**
+     * Checks fractional time zone offsets
+     */
+    public void testDate() throws Exception {
+	assertEquals("2018-10-01T23:59:00+05:30", OfxReader.date("201810012359[5.5:IST]"));
+	try {
+	    OfxReader.date("2018-10-01");
+	    fail("invalid date accepted");
+	}
+	catch(DeboException e) {
+	    assertEquals(400, e.code);
+	}
+    }
+}
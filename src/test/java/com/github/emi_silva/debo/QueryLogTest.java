@@ -0,0 +1,132 @@
+package com.github.emi_silva.debo;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import javax.sql.DataSource;
+
+public class QueryLogTest extends TestCase {
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public QueryLogTest( String testName ) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(QueryLogTest.class);
+    }
+
+    /**
+     * A data source whose queries return three rows and whose updates change two
+     */
+    private static DataSource stubPool() {
+	ClassLoader loader = QueryLogTest.class.getClassLoader();
+	Object rs = Proxy.newProxyInstance(loader, new Class<?>[] {ResultSet.class},
+					   new InvocationHandler() {
+		int rows = 3;
+		public Object invoke(Object proxy, Method m, Object[] args) {
+		    if(m.getName().equals("next")) {
+			return rows-- > 0;
+		    }
+		    return null;
+		}
+	    });
+	Object statement = Proxy.newProxyInstance(loader, new Class<?>[] {PreparedStatement.class},
+						  (proxy, m, args) -> {
+		if(m.getName().equals("executeQuery")) {
+		    return rs;
+		}
+		if(m.getName().equals("executeUpdate")) {
+		    return 2;
+		}
+		return null;
+	    });
+	Object conn = Proxy.newProxyInstance(loader, new Class<?>[] {Connection.class},
+					     (proxy, m, args) -> {
+		if(m.getName().equals("prepareStatement")) {
+		    return statement;
+		}
+		return null;
+	    });
+	return (DataSource) Proxy.newProxyInstance(loader, new Class<?>[] {DataSource.class},
+						   (proxy, m, args) -> {
+		if(m.getName().equals("getConnection")) {
+		    return conn;
+		}
+		return null;
+	    });
+    }
+
+    /**
+     * Checks a call's statements and rows are counted, and fast calls aren't logged
+     */
+    public void testTotals() throws Exception {
+	ByteArrayOutputStream log = new ByteArrayOutputStream();
+	QueryLog queryLog = new QueryLog(stubPool(), 60000, new PrintStream(log, true));
+	try(Connection conn = queryLog.connect("getBalances");
+	    PreparedStatement st = conn.prepareStatement("SELECT 1")) {
+	    ResultSet rs = st.executeQuery();
+	    // column reads reach the driver without going through a proxy
+	    assertTrue(rs instanceof CountedResultSet);
+	    while(rs.next());
+	    st.executeUpdate();
+	}
+	QueryLog.Totals totals = queryLog.totals("getBalances");
+	assertEquals(1, totals.calls.sum());
+	assertEquals(5, totals.rows.sum());
+	assertEquals(2, totals.statements.sum());
+	assertEquals(2, queryLog.statements());
+	assertEquals(0, totals.slow.sum());
+	assertEquals(0, log.size());
+	assertNull(queryLog.totals("authenticate"));
+    }
+
+    /**
+     * Checks slow calls are logged with how many times each statement ran and their parameters
+     */
+    public void testSlowLog() throws Exception {
+	ByteArrayOutputStream log = new ByteArrayOutputStream();
+	QueryLog queryLog = new QueryLog(stubPool(), 0, new PrintStream(log, true));
+	Model.TxFilter f = new Model.TxFilter();
+	f.account = "cash";
+	try(Connection conn = queryLog.connect("getTransactions", f)) {
+	    PreparedStatement st = conn.prepareStatement("SELECT  *\n FROM transactions");
+	    st.executeQuery();
+	    st.executeQuery();
+	}
+	assertEquals(1, queryLog.totals("getTransactions").slow.sum());
+	String line = new String(log.toByteArray(), StandardCharsets.UTF_8);
+	assertTrue(line, line.startsWith("{\"slowQuery\":\"getTransactions\""));
+	assertTrue(line, line.contains("{\"sql\":\"SELECT * FROM transactions\",\"times\":2}"));
+	assertTrue(line, line.contains("\"account\":\"cash\""));
+	assertEquals(1, line.split("\n").length);
+    }
+
+    /**
+     * Checks the totals of each method are exposed as metrics, even for methods run later
+     */
+    public void testMetrics() throws Exception {
+	QueryLog queryLog = new QueryLog(stubPool(), 60000, System.err);
+	Metrics metrics = new Metrics(route -> route.toString());
+	queryLog.addMetrics(metrics);
+	queryLog.connect("authenticate").close();
+	String text = new String(metrics.scrape(), StandardCharsets.UTF_8);
+	assertTrue(text, text.contains("debo_db_calls_total{method=\"authenticate\"} 1\n"));
+    }
+}
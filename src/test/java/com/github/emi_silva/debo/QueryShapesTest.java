@@ -0,0 +1,108 @@
+package com.github.emi_silva.debo;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+
+public class QueryShapesTest extends TestCase {
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public QueryShapesTest( String testName ) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(QueryShapesTest.class);
+    }
+
+    /**
+     * Checks filters are joined in order and their values match the placeholders
+     */
+    public void testSelectTransactions() throws Exception {
+	QueryShapes shapes = new QueryShapes();
+	Model.TxFilter f = new Model.TxFilter();
+	f.minDate = "2018-01-01";
+	f.account = "wallet";
+	String query = shapes.selectTransactions(f.mask());
+	assertTrue(query.endsWith("WHERE t.user_id = ? AND t.date >= ? "
+				  + "AND (a_debit.name = ? OR a_credit.name = ?) "
+				  + "ORDER BY t.date, t.id LIMIT ?"));
+	assertEquals(query.length() - query.replace("?", "").length(), f.values(1).size() + 1);
+    }
+
+    /**
+     * Checks a ranked search binds its query first and resumes after its rank
+     */
+    public void testRankedSearch() throws Exception {
+	QueryShapes shapes = new QueryShapes();
+	Model.TxFilter f = new Model.TxFilter();
+	f.commentMatches = "rent june";
+	f.after = Model.TxFilter.cursor(new Timestamp(1538352000000L), 42, 0.25f);
+	String query = shapes.selectTransactions(f.mask());
+	assertTrue(query.contains("t.comment, ts_rank(to_tsvector('simple', t.comment), q) FROM"));
+	assertTrue(query.contains("CROSS JOIN plainto_tsquery('simple', ?) q WHERE t.user_id = ?"));
+	assertTrue(query.endsWith(" DESC, t.date, t.id LIMIT ?"));
+	ArrayList<Object> values = f.values(7);
+	assertEquals(query.length() - query.replace("?", "").length(), values.size() + 1);
+	assertEquals("rent june", values.get(0));
+	assertEquals(7, values.get(1));
+	assertEquals(0.25f, values.get(2));
+	assertEquals(new Timestamp(1538352000000L), values.get(4));
+	f.after = Model.TxFilter.cursor(new Timestamp(1538352000000L), 42);
+	try {
+	    f.values(7);
+	    fail("unranked cursor accepted");
+	}
+	catch(DeboException e) {
+	    assertEquals(400, e.code);
+	}
+    }
+
+    /**
+     * Checks an export shares the filters of a page but isn't limited
+     */
+    public void testExportTransactions() {
+	QueryShapes shapes = new QueryShapes();
+	Model.TxFilter f = new Model.TxFilter();
+	f.currency = "USD";
+	String page = shapes.selectTransactions(f.mask());
+	String export = shapes.exportTransactions(f.mask());
+	assertEquals(page, export + " LIMIT ?");
+	assertNotSame(export, shapes.selectTransactions(f.mask()));
+    }
+
+    /**
+     * Checks a shape is built once and then handed out again
+     */
+    public void testReuse() {
+	QueryShapes shapes = new QueryShapes();
+	int mask = QueryShapes.TX_SET_AMOUNT | QueryShapes.TX_SET_COMMENT;
+	String query = shapes.patchTransaction(mask);
+	assertSame(query, shapes.patchTransaction(mask));
+	assertEquals("UPDATE transactions SET amount = ?, comment = ? WHERE user_id = ? AND id = ? "
+		     + "RETURNING currency, debit, credit, amount, date", query);
+	shapes.patchCurrency(mask);
+	assertEquals(2, shapes.size());
+	assertEquals(2, shapes.builds());
+	assertEquals(1, shapes.reuses());
+    }
+
+    /**
+     * Checks optional columns of a new transaction get their placeholders
+     */
+    public void testInsertTransaction() {
+	QueryShapes shapes = new QueryShapes();
+	assertEquals("INSERT INTO transactions (user_id, date, amount, currency, debit, credit, "
+		     + "comment) VALUES (?, ?, ?, ?, ?, ?, ?) RETURNING id, date",
+		     shapes.insertTransaction(QueryShapes.TX_DATE | QueryShapes.TX_COMMENT));
+    }
+}
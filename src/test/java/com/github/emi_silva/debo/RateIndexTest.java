@@ -0,0 +1,69 @@
+package com.github.emi_silva.debo;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class RateIndexTest extends TestCase {
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public RateIndexTest( String testName ) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(RateIndexTest.class);
+    }
+
+    private static RateIndex rates() {
+	return new RateIndex.Builder()
+	    .add("BTC", "USD", 1000, 6000)
+	    .add("BTC", "USD", 2000, 6500)
+	    .add("USD", "COP", 1500, 3000)
+	    .build();
+    }
+
+    /**
+     * Checks the rate in effect is the latest one at or before the instant
+     */
+    public void testAt() {
+	RateIndex rates = rates();
+	assertTrue(Double.isNaN(rates.rate("BTC", "USD", 999)));
+	assertEquals(6000.0, rates.rate("BTC", "USD", 1000));
+	assertEquals(6000.0, rates.rate("BTC", "USD", 1999));
+	assertEquals(6500.0, rates.rate("BTC", "USD", Long.MAX_VALUE));
+	assertEquals(1.0, rates.rate("COP", "COP", 0));
+	assertEquals(3, rates.size());
+    }
+
+    /**
+     * Checks pairs are inverted and crossed when they have no rates of their own
+     */
+    public void testCross() {
+	RateIndex rates = rates();
+	assertEquals(1 / 6500.0, rates.rate("USD", "BTC", 2000));
+	assertEquals(6500.0 * 3000, rates.rate("BTC", "COP", 2000));
+	assertEquals(1 / 6000.0 / 3000, rates.rate("COP", "BTC", 1500), 1e-15);
+	assertTrue(Double.isNaN(rates.rate("BTC", "COP", 1200)));
+	assertTrue(Double.isNaN(rates.rate("BTC", "EUR", 2000)));
+    }
+
+    /**
+     * Checks unsorted rates are refused
+     */
+    public void testSorted() {
+	try {
+	    new RateIndex.Builder().add("BTC", "USD", 2000, 1).add("BTC", "USD", 1000, 1);
+	    fail("unsorted rates accepted");
+	}
+	catch(IllegalArgumentException e) {
+	}
+    }
+}
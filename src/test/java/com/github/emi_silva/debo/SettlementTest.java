@@ -0,0 +1,81 @@
+package com.github.emi_silva.debo;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+public class SettlementTest extends TestCase {
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public SettlementTest( String testName ) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(SettlementTest.class);
+    }
+
+    /**
+     * Checks the largest debtor pays the largest creditor first and everybody ends up even
+     */
+    public void testSettle() {
+	HashMap<String, BigDecimal> nets = new HashMap<String, BigDecimal>();
+	nets.put("ana", new BigDecimal("60"));
+	nets.put("bob", new BigDecimal("-45"));
+	nets.put("cy", new BigDecimal("-15"));
+	nets.put("dee", new BigDecimal("0"));
+	ArrayList<Model.Transfer> transfers = Settlement.settle(nets, "USD");
+	assertEquals(2, transfers.size());
+	assertEquals("bob", transfers.get(0).from);
+	assertEquals("ana", transfers.get(0).to);
+	assertEquals(0, new BigDecimal("45").compareTo(transfers.get(0).amount));
+	assertEquals("cy", transfers.get(1).from);
+	assertEquals(0, new BigDecimal("15").compareTo(transfers.get(1).amount));
+	assertEquals("USD", transfers.get(1).currency);
+    }
+
+    /**
+     * Checks there are always fewer transfers than members
+     */
+    public void testFewTransfers() {
+	HashMap<String, BigDecimal> nets = new HashMap<String, BigDecimal>();
+	nets.put("a", new BigDecimal("10.01"));
+	nets.put("b", new BigDecimal("20"));
+	nets.put("c", new BigDecimal("-7"));
+	nets.put("d", new BigDecimal("-13.01"));
+	nets.put("e", new BigDecimal("-10"));
+	ArrayList<Model.Transfer> transfers = Settlement.settle(nets, "EUR");
+	assertTrue(transfers.size() < nets.size());
+	for(Model.Transfer t : transfers) {
+	    nets.put(t.from, nets.get(t.from).add(t.amount));
+	    nets.put(t.to, nets.get(t.to).subtract(t.amount));
+	}
+	for(BigDecimal net : nets.values()) {
+	    assertEquals(0, net.signum());
+	}
+	assertTrue(Settlement.settle(new HashMap<String, BigDecimal>(), "EUR").isEmpty());
+    }
+
+    /**
+     * Checks even splits hand the leftover cents to the first shares
+     */
+    public void testEvenSplit() {
+	BigDecimal[] shares = Model.evenSplit(new BigDecimal("10"), 3);
+	assertEquals(new BigDecimal("3.34"), shares[0]);
+	assertEquals(new BigDecimal("3.33"), shares[1]);
+	assertEquals(new BigDecimal("3.33"), shares[2]);
+	shares = Model.evenSplit(new BigDecimal("0.005"), 2);
+	assertEquals(new BigDecimal("0.003"), shares[0]);
+	assertEquals(new BigDecimal("0.002"), shares[1]);
+    }
+}
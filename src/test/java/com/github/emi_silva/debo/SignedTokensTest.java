@@ -0,0 +1,96 @@
+package com.github.emi_silva.debo;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import java.time.Instant;
+import java.util.HashMap;
+
+public class SignedTokensTest extends TestCase {
+
+    private static final String KEY = "q2Vq9aC3kfjT0Yd7w2Yl0b2c8pN1sZ4eH6uR5tM9xQ0=";
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public SignedTokensTest( String testName ) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(SignedTokensTest.class);
+    }
+
+    private static void assertRejected(SignedTokens tokens, String token, Instant now) {
+	try {
+	    tokens.verify(token, now);
+	    fail("token accepted: " + token);
+	}
+	catch(DeboException e) {
+	    assertEquals(401, e.code);
+	}
+    }
+
+    /**
+     * Checks a token names its user until it expires
+     */
+    public void testVerify() throws Exception {
+	SignedTokens tokens = new SignedTokens(KEY, 3600);
+	Instant now = Instant.ofEpochSecond(1538352000L);
+	String token = tokens.issue(42, now);
+	assertTrue(SignedTokens.isSigned(token));
+	assertEquals(now.plusSeconds(3600), SignedTokens.expires(token));
+	assertEquals(42, tokens.verify(token, now.plusSeconds(3599)));
+	assertRejected(tokens, token, now.plusSeconds(3601));
+	assertFalse(SignedTokens.isSigned("V014adcmHAVMq6DTAv5QCVbGWMg45kaCgCUGmU6VL8bsFpnWuF97zJ15"));
+    }
+
+    /**
+     * Checks tokens with a changed field or signed with another key are rejected
+     */
+    public void testForgery() {
+	SignedTokens tokens = new SignedTokens(KEY, 3600);
+	Instant now = Instant.ofEpochSecond(1538352000L);
+	String token = tokens.issue(42, now);
+	String signature = token.substring(token.lastIndexOf('.'));
+	assertRejected(tokens, "43" + token.substring(2), now);
+	assertRejected(tokens, "42." + now.toEpochMilli() + ".9999999999999" + signature, now);
+	assertRejected(tokens, token.substring(0, token.length() - 1), now);
+	assertRejected(tokens, "garbage", now);
+	SignedTokens other = new SignedTokens("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=", 3600);
+	assertRejected(other, token, now);
+	try {
+	    new SignedTokens("c2hvcnQ=", 3600);
+	    fail("short key accepted");
+	}
+	catch(IllegalArgumentException e) {
+	    // expected
+	}
+    }
+
+    /**
+     * Checks a logout revokes the tokens issued until then but not the ones issued after
+     */
+    public void testRevoke() throws Exception {
+	SignedTokens tokens = new SignedTokens(KEY, 3600);
+	Instant now = Instant.ofEpochSecond(1538352000L);
+	String old = tokens.issue(42, now);
+	String otherUser = tokens.issue(7, now);
+	tokens.revoke(42, now.plusSeconds(10));
+	assertRejected(tokens, old, now.plusSeconds(11));
+	assertEquals(7, tokens.verify(otherUser, now.plusSeconds(11)));
+	String fresh = tokens.issue(42, now.plusSeconds(10));
+	assertEquals(42, tokens.verify(fresh, now.plusSeconds(11)));
+	tokens.revoke(7, now.plusSeconds(7200));
+	assertEquals(1, tokens.revocations());
+	HashMap<Integer, Instant> logouts = new HashMap<Integer, Instant>();
+	logouts.put(42, now.plusSeconds(20));
+	tokens.revokeAll(logouts);
+	assertRejected(tokens, fresh, now.plusSeconds(21));
+    }
+}
@@ -0,0 +1,84 @@
+package com.github.emi_silva.debo;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightTest extends TestCase {
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public SingleFlightTest( String testName ) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(SingleFlightTest.class);
+    }
+
+    /**
+     * Checks concurrent calls with the same key share the result of a single call
+     */
+    public void testCoalesce() throws Exception {
+	SingleFlight<String, String> flight = new SingleFlight<String, String>();
+	AtomicInteger calls = new AtomicInteger();
+	CountDownLatch started = new CountDownLatch(1);
+	CountDownLatch release = new CountDownLatch(1);
+	ExecutorService threads = Executors.newFixedThreadPool(2);
+	Future<String> first = threads.submit(() -> flight.run("a@b.c", () -> {
+		    started.countDown();
+		    await(release);
+		    return "token" + calls.incrementAndGet();
+		}));
+	assertTrue(started.await(5, TimeUnit.SECONDS));
+	Future<String> second = threads.submit(() -> flight.run("a@b.c", () -> {
+		    return "token" + calls.incrementAndGet();
+		}));
+	Thread.sleep(50);
+	release.countDown();
+	assertEquals("token1", first.get(5, TimeUnit.SECONDS));
+	assertEquals("token1", second.get(5, TimeUnit.SECONDS));
+	assertEquals(1, calls.get());
+	assertEquals(0, flight.size());
+	assertEquals("other", flight.run("d@e.f", () -> "other"));
+	threads.shutdown();
+    }
+
+    /**
+     * Checks a failed call fails its waiters too and isn't remembered
+     */
+    public void testFailure() throws Exception {
+	SingleFlight<String, String> flight = new SingleFlight<String, String>();
+	try {
+	    flight.run("a@b.c", () -> {
+		    throw new DeboException(500, "A database error occurred.");
+		});
+	    fail("failure swallowed");
+	}
+	catch(DeboException e) {
+	    assertEquals(500, e.code);
+	}
+	assertEquals("ok", flight.run("a@b.c", () -> "ok"));
+    }
+
+    private static void await(CountDownLatch latch) {
+	try {
+	    latch.await(5, TimeUnit.SECONDS);
+	}
+	catch(InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+}
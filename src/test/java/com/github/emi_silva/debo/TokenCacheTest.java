@@ -0,0 +1,97 @@
+package com.github.emi_silva.debo;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import java.time.Instant;
+
+public class TokenCacheTest extends TestCase {
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public TokenCacheTest( String testName ) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(TokenCacheTest.class);
+    }
+
+    /**
+     * Checks cached tokens are returned and counted as hits
+     */
+    public void testHitAndMiss() {
+	TokenCache cache = new TokenCache(10);
+	assertNull(cache.get("abc"));
+	cache.put("abc", 1, Instant.now().plusSeconds(60), cache.generation());
+	assertEquals(Integer.valueOf(1), cache.get("abc"));
+	assertEquals(1, cache.hits());
+	assertEquals(1, cache.misses());
+    }
+
+    /**
+     * Checks expired tokens are never returned
+     */
+    public void testExpiry() {
+	TokenCache cache = new TokenCache(10);
+	cache.put("abc", 1, Instant.now().minusSeconds(1), cache.generation());
+	assertNull(cache.get("abc"));
+	assertEquals(0, cache.size());
+    }
+
+    /**
+     * Checks a user's token is dropped when they log out or get a new token
+     */
+    public void testInvalidateUser() {
+	TokenCache cache = new TokenCache(10);
+	cache.put("abc", 1, Instant.now().plusSeconds(60), cache.generation());
+	cache.put("def", 2, Instant.now().plusSeconds(60), cache.generation());
+	cache.invalidateUser(1);
+	assertNull(cache.get("abc"));
+	assertEquals(Integer.valueOf(2), cache.get("def"));
+    }
+
+    /**
+     * Checks a lookup racing with an invalidation doesn't cache a stale token
+     */
+    public void testStaleLookup() {
+	TokenCache cache = new TokenCache(10);
+	long generation = cache.generation();
+	cache.invalidateUser(1);
+	cache.put("abc", 1, Instant.now().plusSeconds(60), generation);
+	assertNull(cache.get("abc"));
+    }
+
+    /**
+     * Checks the cache never grows beyond its capacity
+     */
+    public void testCapacity() {
+	TokenCache cache = new TokenCache(3);
+	for(int i = 0; i < 10; i++) {
+	    cache.put("token" + i, i, Instant.now().plusSeconds(60), cache.generation());
+	}
+	assertTrue(cache.size() <= 3);
+	assertEquals(Integer.valueOf(9), cache.get("token9"));
+    }
+
+    /**
+     * Checks a full cache drops a batch of tokens, keeping the ones used since the last sweep
+     */
+    public void testEvictUnused() {
+	TokenCache cache = new TokenCache(20);
+	for(int i = 0; i < 20; i++) {
+	    cache.put("token" + i, i, Instant.now().plusSeconds(60), cache.generation());
+	}
+	assertEquals(Integer.valueOf(0), cache.get("token0"));
+	cache.put("token20", 20, Instant.now().plusSeconds(60), cache.generation());
+	assertEquals(19, cache.size());
+	assertEquals(Integer.valueOf(0), cache.get("token0"));
+	assertEquals(Integer.valueOf(20), cache.get("token20"));
+    }
+}
@@ -0,0 +1,59 @@
+package com.github.emi_silva.debo;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import java.util.ArrayList;
+
+public class TypeRegistryTest extends TestCase {
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public TypeRegistryTest( String testName ) {
+        super(testName);
+    }
+
+    /**
+     * @return the suite of tests being tested
+     */
+    public static Test suite() {
+        return new TestSuite(TypeRegistryTest.class);
+    }
+
+    private static TypeRegistry registry() {
+	ArrayList<Model.CurrencyType> cts = new ArrayList<Model.CurrencyType>();
+	Model.CurrencyType fiat = new Model.CurrencyType();
+	fiat.id = 1;
+	fiat.name = "fiat";
+	cts.add(fiat);
+	ArrayList<Model.AccountType> ats = new ArrayList<Model.AccountType>();
+	Model.AccountType asset = new Model.AccountType();
+	asset.id = 1;
+	asset.name = "asset";
+	ats.add(asset);
+	return new TypeRegistry(cts, ats);
+    }
+
+    /**
+     * Checks type names resolve to their ids
+     */
+    public void testLookup() {
+	TypeRegistry types = registry();
+	assertEquals(Integer.valueOf(1), types.currencyTypeId("fiat"));
+	assertNull(types.currencyTypeId("asset"));
+	assertEquals(Integer.valueOf(1), types.accountTypeId("asset"));
+    }
+
+    /**
+     * Checks the types are serialized the way the endpoints used to return them
+     */
+    public void testJson() {
+	TypeRegistry types = registry();
+	assertEquals("[{\"id\":1,\"name\":\"fiat\"}]", new String(types.currencyTypesJson()));
+	assertEquals("[{\"id\":1,\"name\":\"asset\"}]", new String(types.accountTypesJson()));
+	assertFalse(types.currencyTypesETag.equals(types.accountTypesETag));
+    }
+}